@@ -0,0 +1,12 @@
+package org.cobbzilla.wizard.model;
+
+/**
+ * An entity written with optimistic versioning: the write only succeeds if the stored version still equals
+ * getVersion(), and the version is then incremented. A null version means the entity has never been written.
+ */
+public interface Versioned {
+
+    Long getVersion();
+    void setVersion(Long version);
+
+}
@@ -32,6 +32,8 @@ public class ResultPage {
     public static final String PARAM_SORT_ORDER     = "so";
     public static final String PARAM_FILTER         = "q";
     public static final String PARAM_BOUNDS         = "b";
+    public static final String PARAM_CONTINUATION   = "ct";
+    public static final String PARAM_COUNT_MODE     = "cm";
 
     public static final int MAX_FILTER_LENGTH = 50;
     public static final int MAX_SORTFIELD_LENGTH = 50;
@@ -45,6 +47,15 @@ public class ResultPage {
     }
     public static final String DEFAULT_SORT = SortOrder.DESC.name();
 
+    // how the search computes SearchResults.totalCount
+    public enum CountMode {
+        exact,     // run a count query on every page
+        skip,      // do not count, totalCount will be null
+        estimate,  // use table statistics when the search is unfiltered and the DAO provides them, otherwise a cached count
+        cached;    // run the count query, but reuse its result for a short time
+        @JsonCreator public static CountMode create(String val) { return valueOf(val.toLowerCase()); }
+    }
+
     public static final ResultPage DEFAULT_PAGE = new ResultPage();
     public static final ResultPage FIRST_RESULT = new ResultPage(1, 1);
     public static final int INFINITE = Integer.MAX_VALUE;
@@ -65,6 +76,8 @@ public class ResultPage {
         this.setSortField(other.getSortField());
         this.setSortOrder(other.getSortOrder());
         this.setBounds(other.getBounds());
+        this.setContinuation(other.getContinuation());
+        this.setCountMode(other.getCountMode());
     }
 
     public ResultPage(Integer pageNumber, Integer pageSize, String sortField, String sortOrder, String filter, NameAndValue[] bounds) {
@@ -170,6 +183,14 @@ public class ResultPage {
         return this;
     }
 
+    // opaque token from a previous SearchResults.continuation; when set, the page is found by seeking
+    // past the last-seen row instead of by offset, and pageNumber is ignored
+    @Getter @Setter private String continuation;
+    @JsonIgnore public boolean hasContinuation () { return !empty(continuation); }
+
+    @Getter @Setter private CountMode countMode = CountMode.exact;
+    @JsonIgnore public CountMode getCountModeOrDefault () { return countMode == null ? CountMode.exact : countMode; }
+
     @Getter @Setter private String[] fields;
     @JsonIgnore public boolean getHasFields () { return !empty(fields); }
 
@@ -192,6 +213,8 @@ public class ResultPage {
         if (sortField != null ? !sortField.equals(that.sortField) : that.sortField != null) return false;
         if (sortOrder != null ? !sortOrder.equals(that.sortOrder) : that.sortOrder != null) return false;
         if (!Arrays.equals(that.fields, fields)) return false;
+        if (continuation != null ? !continuation.equals(that.continuation) : that.continuation != null) return false;
+        if (countMode != that.countMode) return false;
         return true;
     }
 
@@ -203,6 +226,8 @@ public class ResultPage {
         result = 31 * result + (filter != null ? filter.hashCode() : 0);
         result = 31 * result + (bounds != null ? Arrays.hashCode(bounds) : 0);
         result = 31 * result + (fields != null ? Arrays.hashCode(fields) : 0);
+        result = 31 * result + (continuation != null ? continuation.hashCode() : 0);
+        result = 31 * result + (countMode != null ? countMode.hashCode() : 0);
         return result;
     }
 }
@@ -0,0 +1,65 @@
+package org.cobbzilla.wizard.model.shard;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Maps the value of an entity's hashOn field to a logical shard.
+ *
+ * Changing the hash function of a shard set that already has data moves entities to different logical shards,
+ * so existing shard sets must keep using sha256 unless their data is migrated.
+ */
+public enum ShardHashFunction {
+
+    /**
+     * The first 28 bits of the SHA-256 digest: the same value as parsing the first 7 hex digits of sha256_hex(id),
+     * without building the hex string.
+     */
+    sha256 {
+        @Override public int hash(String id) {
+            final byte[] d = SHA256.get().digest(id.getBytes(StandardCharsets.UTF_8));
+            return ((d[0] & 0xff) << 20) | ((d[1] & 0xff) << 12) | ((d[2] & 0xff) << 4) | ((d[3] & 0xff) >>> 4);
+        }
+    },
+
+    /**
+     * 32-bit FNV-1a over the characters of the id, with a murmur3 finalizer to spread the bits.
+     * Much faster than sha256 and allocation-free; only for new shard sets, or after migrating data.
+     */
+    fnv1a {
+        @Override public int hash(String id) {
+            int h = 0x811c9dc5;
+            for (int i=0; i<id.length(); i++) {
+                h ^= id.charAt(i);
+                h *= 0x01000193;
+            }
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            h ^= h >>> 16;
+            return h & 0x7fffffff;
+        }
+    };
+
+    /**
+     * @return a non-negative hash of the id
+     */
+    public abstract int hash(String id);
+
+    public int logicalShard(String id, int logicalShards) { return hash(id) % logicalShards; }
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available: "+e, e);
+        }
+    });
+
+    @JsonCreator public static ShardHashFunction create (String val) { return valueOf(val.toLowerCase()); }
+
+}
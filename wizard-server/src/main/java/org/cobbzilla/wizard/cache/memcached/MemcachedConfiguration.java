@@ -1,14 +1,14 @@
 package org.cobbzilla.wizard.cache.memcached;
 
-import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
-import org.cobbzilla.util.daemon.ZillaRuntime;
+
+import java.util.concurrent.TimeUnit;
 
 import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
 
-@NoArgsConstructor @AllArgsConstructor
+@NoArgsConstructor
 public class MemcachedConfiguration {
 
     @Getter @Setter private String host = "127.0.0.1";
@@ -17,6 +17,27 @@ public class MemcachedConfiguration {
 
     public MemcachedConfiguration (String key) { this.key = key; }
 
+    public MemcachedConfiguration (String host, int port, String key) {
+        this.host = host;
+        this.port = port;
+        this.key = key;
+    }
+
     public boolean hasKey() { return !empty(key); }
 
+    // memcached servers as host:port. keys are spread across them by consistent hashing.
+    // if empty, the single server at host:port is used
+    @Getter @Setter private String[] nodes;
+    public String[] getNodeAddresses () { return empty(nodes) ? new String[] {host + ":" + port} : nodes; }
+
+    // connections to each node
+    @Getter @Setter private int poolSize = 4;
+
+    // in milliseconds
+    @Getter @Setter private long connectTimeout = TimeUnit.SECONDS.toMillis(2);
+    @Getter @Setter private long opTimeout = TimeUnit.SECONDS.toMillis(1);
+
+    // threads running async and multi-key operations
+    @Getter @Setter private int asyncThreads = 16;
+
 }
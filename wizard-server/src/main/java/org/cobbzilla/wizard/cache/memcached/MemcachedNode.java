@@ -0,0 +1,74 @@
+package org.cobbzilla.wizard.cache.memcached;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import net.rubyeye.xmemcached.MemcachedClient;
+import net.rubyeye.xmemcached.XMemcachedClientBuilder;
+import net.rubyeye.xmemcached.utils.AddrUtil;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+
+/**
+ * One memcached server, with its own pool of connections and its own stats.
+ */
+@Slf4j
+public class MemcachedNode {
+
+    @Getter private final String address;
+    private final MemcachedConfiguration config;
+    @Getter private final MemcachedNodeStats stats = new MemcachedNodeStats();
+
+    private final AtomicReference<MemcachedClient> client = new AtomicReference<>();
+
+    public MemcachedNode(String address, MemcachedConfiguration config) {
+        this.address = address;
+        this.config = config;
+    }
+
+    public MemcachedClient getClient() {
+        MemcachedClient c = client.get();
+        if (c == null) {
+            synchronized (client) {
+                c = client.get();
+                if (c == null) {
+                    log.info("connecting to memcached at "+address+" with "+config.getPoolSize()+" connections...");
+                    c = newClient();
+                    client.set(c);
+                }
+            }
+        }
+        return c;
+    }
+
+    private MemcachedClient newClient() {
+        try {
+            final XMemcachedClientBuilder builder = new XMemcachedClientBuilder(AddrUtil.getAddresses(address));
+            builder.setConnectionPoolSize(config.getPoolSize());
+            builder.setConnectTimeout(config.getConnectTimeout());
+            builder.setOpTimeout(config.getOpTimeout());
+            return builder.build();
+        } catch (Exception e) {
+            return die("newClient("+address+"): "+e, e);
+        }
+    }
+
+    /**
+     * Close all connections; the next operation connects again
+     */
+    public void reconnect() {
+        final MemcachedClient old;
+        synchronized (client) {
+            old = client.getAndSet(null);
+        }
+        if (old != null) {
+            try { old.shutdown(); } catch (Exception e) {
+                log.warn("reconnect("+address+"): error shutting down memcached client: "+e);
+            }
+        }
+    }
+
+    @Override public String toString() { return address + ": " + stats; }
+
+}
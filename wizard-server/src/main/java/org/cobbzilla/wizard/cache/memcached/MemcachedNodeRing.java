@@ -0,0 +1,58 @@
+package org.cobbzilla.wizard.cache.memcached;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+
+/**
+ * Ketama-style consistent hashing of keys to memcached nodes: each node owns many points on a ring, so adding or
+ * removing a node only moves the keys on that node's points.
+ */
+public class MemcachedNodeRing {
+
+    public static final int POINTS_PER_NODE = 160;
+
+    private final TreeMap<Long, MemcachedNode> ring = new TreeMap<>();
+    private final MemcachedNode[] nodes;
+
+    public MemcachedNodeRing(MemcachedNode[] nodes) {
+        if (nodes.length == 0) die("MemcachedNodeRing: no nodes");
+        this.nodes = nodes;
+        for (MemcachedNode node : nodes) {
+            // each md5 digest gives four points
+            for (int i=0; i<POINTS_PER_NODE/4; i++) {
+                final byte[] digest = md5(node.getAddress() + "-" + i);
+                for (int p=0; p<4; p++) ring.put(point(digest, p), node);
+            }
+        }
+    }
+
+    public MemcachedNode[] getNodes() { return nodes; }
+
+    public MemcachedNode getNode(String key) {
+        if (nodes.length == 1) return nodes[0];
+        final Map.Entry<Long, MemcachedNode> entry = ring.ceilingEntry(point(md5(key), 0));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    private static long point(byte[] digest, int p) {
+        return ((long) (digest[3 + p*4] & 0xff) << 24)
+                | ((long) (digest[2 + p*4] & 0xff) << 16)
+                | ((long) (digest[1 + p*4] & 0xff) << 8)
+                | (digest[p*4] & 0xff);
+    }
+
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (Exception e) {
+            return die("MD5 not available: "+e, e);
+        }
+    });
+
+    private static byte[] md5(String s) { return MD5.get().digest(s.getBytes(StandardCharsets.UTF_8)); }
+
+}
@@ -0,0 +1,41 @@
+package org.cobbzilla.wizard.cache.memcached;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency and error counters for one memcached node.
+ */
+public class MemcachedNodeStats {
+
+    private final LongAdder ops = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder totalTime = new LongAdder();
+    private final LongAccumulator maxTime = new LongAccumulator(Math::max, 0);
+
+    public void op (long time) {
+        ops.increment();
+        totalTime.add(time);
+        maxTime.accumulate(time);
+    }
+
+    public void error () { errors.increment(); }
+    public void timeout () { timeouts.increment(); }
+
+    public long getOps () { return ops.sum(); }
+    public long getErrors () { return errors.sum(); }
+    public long getTimeouts () { return timeouts.sum(); }
+    public long getMaxTime () { return maxTime.get(); }
+
+    public long getAverageTime () {
+        final long o = getOps();
+        return o == 0 ? 0 : totalTime.sum() / o;
+    }
+
+    @Override public String toString () {
+        return "ops=" + getOps() + ", errors=" + getErrors() + ", timeouts=" + getTimeouts()
+                + ", avgTime=" + getAverageTime() + "ms, maxTime=" + getMaxTime() + "ms";
+    }
+
+}
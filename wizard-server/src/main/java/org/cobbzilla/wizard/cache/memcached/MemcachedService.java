@@ -1,81 +1,249 @@
 package org.cobbzilla.wizard.cache.memcached;
 
-import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
-import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import net.rubyeye.xmemcached.GetsResponse;
 import net.rubyeye.xmemcached.MemcachedClient;
-import net.rubyeye.xmemcached.XMemcachedClient;
 import org.cobbzilla.util.security.CryptoUtil;
 import org.springframework.stereotype.Service;
 
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
 
 import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
 import static org.cobbzilla.util.system.Sleep.sleep;
 
-@Service @Slf4j @NoArgsConstructor @AllArgsConstructor
+/**
+ * Memcached across one or more nodes (see MemcachedConfiguration.nodes), with keys spread by consistent hashing.
+ * Each node has its own pool of connections and its own latency/error stats.
+ */
+@Service @Slf4j @NoArgsConstructor
 public class MemcachedService {
 
     public static final int MAX_RETRIES = 5;
+    public static final int DEFAULT_CAS_TRIES = 10;
 
     public MemcachedService (String host, int port, String key) {
         this(new MemcachedConfiguration(host, port, key));
     }
 
-    @Getter @Setter private MemcachedConfiguration configuration;
+    public MemcachedService (MemcachedConfiguration configuration) { this.configuration = configuration; }
 
-    private final AtomicReference<MemcachedClient> memcached = new AtomicReference<>();
-    private MemcachedClient newClient() {
-        try {
-            return new XMemcachedClient(configuration.getHost(), configuration.getPort());
-        } catch (Exception e) {
-            return die("Error creating client: "+e, e);
+    @Getter private MemcachedConfiguration configuration;
+
+    public void setConfiguration (MemcachedConfiguration configuration) {
+        this.configuration = configuration;
+        reconnect();
+        ring.set(null);
+    }
+
+    private final AtomicReference<MemcachedNodeRing> ring = new AtomicReference<>();
+
+    public MemcachedNodeRing getRing () {
+        MemcachedNodeRing r = ring.get();
+        if (r == null) {
+            synchronized (ring) {
+                r = ring.get();
+                if (r == null) {
+                    final String[] addresses = configuration.getNodeAddresses();
+                    final MemcachedNode[] nodes = new MemcachedNode[addresses.length];
+                    for (int i=0; i<addresses.length; i++) nodes[i] = new MemcachedNode(addresses[i], configuration);
+                    r = new MemcachedNodeRing(nodes);
+                    ring.set(r);
+                }
+            }
         }
+        return r;
+    }
+
+    private MemcachedNode node (String name) { return getRing().getNode(name); }
+
+    // runs async and multi-node operations
+    @Getter(lazy=true) private final ExecutorService executor = initExecutor();
+    private ExecutorService initExecutor () {
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        return Executors.newFixedThreadPool(configuration.getAsyncThreads(), r -> {
+            final Thread t = new Thread(() -> {
+                onExecutorThread.set(true);
+                r.run();
+            }, "memcached-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
     }
 
-    private MemcachedClient getMemcached () {
-        synchronized (memcached) {
-            if (memcached.get() == null) {
-                log.info("connecting to memcached...");
-                memcached.set(newClient());
+    // true on the executor's threads, which must not wait on work queued behind them on the same executor
+    private final ThreadLocal<Boolean> onExecutorThread = ThreadLocal.withInitial(() -> false);
+
+    /**
+     * Run one task per node. The first runs on the calling thread and the rest on the executor, unless the caller
+     * is itself an executor thread, in which case all of them run on the calling thread.
+     */
+    private <T> List<T> perNode (List<Callable<T>> tasks) {
+        final List<T> results = new ArrayList<>(tasks.size());
+        if (tasks.isEmpty()) return results;
+        try {
+            if (tasks.size() == 1 || onExecutorThread.get()) {
+                for (Callable<T> task : tasks) results.add(task.call());
+                return results;
             }
+            final List<Future<T>> futures = new ArrayList<>(tasks.size() - 1);
+            for (Callable<T> task : tasks.subList(1, tasks.size())) futures.add(getExecutor().submit(task));
+            results.add(tasks.get(0).call());
+            for (Future<T> f : futures) results.add(f.get());
+            return results;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return die("perNode: interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            return die("perNode: "+e.getCause(), e);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            return die("perNode: "+e, e);
         }
-        return memcached.get();
+    }
+
+    private Map<MemcachedNode, List<String>> byNode (Collection<String> names) {
+        final Map<MemcachedNode, List<String>> byNode = new HashMap<>();
+        for (String name : names) byNode.computeIfAbsent(node(name), k -> new ArrayList<>()).add(name);
+        return byNode;
     }
 
     public String get (String name) {
-        return decrypt(__get(name, 0, MAX_RETRIES));
+        return decrypt(__op(node(name), "__get", c -> c.<String>get(name), 0, MAX_RETRIES));
     }
 
     public boolean set (String name, String value, int expirationSeconds) {
-        return __set(name, encrypt(value), expirationSeconds, 0, MAX_RETRIES);
+        final String encrypted = encrypt(value);
+        return __op(node(name), "__set", c -> c.set(name, expirationSeconds, encrypted), 0, MAX_RETRIES);
     }
 
-    private String __get(String name, int attempt, int maxRetries) {
-        try {
-            return getMemcached().get(name);
-        } catch (Exception e) {
-            if (attempt > maxRetries) {
-                if (e instanceof RuntimeException) throw (RuntimeException) e;
-                die("__get: maxRetries (" + MAX_RETRIES + ") exceeded, last exception: " + e, e);
+    public CompletableFuture<String> getAsync (String name) {
+        return CompletableFuture.supplyAsync(() -> get(name), getExecutor());
+    }
+
+    public CompletableFuture<Boolean> setAsync (String name, String value, int expirationSeconds) {
+        return CompletableFuture.supplyAsync(() -> set(name, value, expirationSeconds), getExecutor());
+    }
+
+    /**
+     * Get many values with one multi-get per node, querying the nodes in parallel
+     * @return a map of name to value, without entries for names that were not found
+     */
+    public Map<String, String> getMulti (Collection<String> names) {
+        final Map<String, String> found = new HashMap<>();
+        if (empty(names)) return found;
+
+        final List<Callable<Map<String, String>>> tasks = new ArrayList<>();
+        for (Map.Entry<MemcachedNode, List<String>> entry : byNode(names).entrySet()) {
+            tasks.add(() -> __getMulti(entry.getKey(), entry.getValue()));
+        }
+        for (Map<String, String> encrypted : perNode(tasks)) {
+            for (Map.Entry<String, String> entry : encrypted.entrySet()) found.put(entry.getKey(), decrypt(entry.getValue()));
+        }
+        return found;
+    }
+
+    private Map<String, String> __getMulti (MemcachedNode node, List<String> names) {
+        final Map<String, String> values = __op(node, "__getMulti", c -> c.<String>get(names), 0, MAX_RETRIES);
+        return values == null ? Collections.<String, String>emptyMap() : values;
+    }
+
+    /**
+     * Set many values, with one task per node writing that node's values, the nodes in parallel
+     * @return true if every value was set
+     */
+    public boolean setMulti (Map<String, String> values, int expirationSeconds) {
+        if (empty(values)) return true;
+        final List<Callable<Boolean>> tasks = new ArrayList<>();
+        for (Map.Entry<MemcachedNode, List<String>> entry : byNode(values.keySet()).entrySet()) {
+            final Map<String, String> encrypted = new LinkedHashMap<>();
+            for (String name : entry.getValue()) encrypted.put(name, encrypt(values.get(name)));
+            // sets are idempotent, so a retry may repeat the whole node's batch
+            tasks.add(() -> __op(entry.getKey(), "__setMulti", c -> {
+                boolean ok = true;
+                for (Map.Entry<String, String> e : encrypted.entrySet()) ok = c.set(e.getKey(), expirationSeconds, e.getValue()) && ok;
+                return ok;
+            }, 0, MAX_RETRIES));
+        }
+        boolean ok = true;
+        for (Boolean result : perNode(tasks)) ok = result && ok;
+        return ok;
+    }
+
+    public String cas (String name, int expirationSeconds, UnaryOperator<String> update) {
+        return cas(name, expirationSeconds, update, DEFAULT_CAS_TRIES);
+    }
+
+    /**
+     * Atomically update a value: read it with its CAS token, apply update, and write the result only if nobody
+     * else wrote in between, retrying on contention
+     * @param update called with the current value (null if none), returns the new value, or null to give up
+     * @return the value written, or null if update gave up or maxTries was reached
+     */
+    public String cas (String name, int expirationSeconds, UnaryOperator<String> update, int maxTries) {
+        final MemcachedNode node = node(name);
+        for (int i=0; i<maxTries; i++) {
+            final GetsResponse<String> current = __op(node, "__gets", c -> c.<String>gets(name), 0, MAX_RETRIES);
+            final String value = update.apply(current == null ? null : decrypt(current.getValue()));
+            if (value == null) return null;
+            final String encrypted = encrypt(value);
+            // a failed write is not retried as is: it may have succeeded, so the next try reads again and sees its token
+            final boolean written;
+            try {
+                written = current == null
+                        ? __op(node, "__add", c -> c.add(name, expirationSeconds, encrypted), 0, -1)
+                        : __op(node, "__cas", c -> c.cas(name, expirationSeconds, encrypted, current.getCas()), 0, -1);
+            } catch (RuntimeException e) {
+                if (Thread.currentThread().isInterrupted()) throw e;
+                log.warn("cas("+name+"): write failed, reading again: "+e);
+                continue;
             }
-            resetForRetry(attempt, "retrying MemcachedService.__get");
-            return __get(name, attempt+1, maxRetries);
+            if (written) return value;
         }
+        log.warn("cas("+name+"): gave up after "+maxTries+" tries");
+        return null;
+    }
+
+    /**
+     * @return stats for each node, by address
+     */
+    public Map<String, MemcachedNodeStats> getNodeStats () {
+        final Map<String, MemcachedNodeStats> stats = new LinkedHashMap<>();
+        for (MemcachedNode node : getRing().getNodes()) stats.put(node.getAddress(), node.getStats());
+        return stats;
     }
 
-    private boolean __set(String name, String value, int expirationSeconds, int attempt, int maxRetries) {
+    private interface MemcachedOp<T> { T apply(MemcachedClient client) throws Exception; }
+
+    private <T> T __op(MemcachedNode node, String name, MemcachedOp<T> op, int attempt, int maxRetries) {
+        final long start = now();
         try {
-            return getMemcached().set(name, expirationSeconds, value);
+            final T result = op.apply(node.getClient());
+            node.getStats().op(now() - start);
+            return result;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return die(name+": interrupted");
+
         } catch (Exception e) {
+            if (e instanceof TimeoutException) node.getStats().timeout(); else node.getStats().error();
             if (attempt > maxRetries) {
                 if (e instanceof RuntimeException) throw (RuntimeException) e;
-                die("__set: maxRetries (" + MAX_RETRIES + ") exceeded, last exception: "+e, e);
+                return die(name+": maxRetries (" + maxRetries + ") exceeded for "+node.getAddress()+", last exception: " + e, e);
             }
-            resetForRetry(attempt, "retrying MemcachedService.__set");
-            return __set(name, value, expirationSeconds, attempt+1, maxRetries);
+            resetForRetry(attempt, "retrying MemcachedService."+name);
+            return __op(node, name, op, attempt+1, maxRetries);
         }
     }
 
@@ -91,21 +259,15 @@ public class MemcachedService {
         return CryptoUtil.string_decrypt(data, configuration.getKey());
     }
 
+    // the client re-establishes broken connections itself, so a retry only needs to wait
     private void resetForRetry(int attempt, String reason) {
-        reconnect();
         sleep(attempt * 10, reason);
     }
 
     public void reconnect () {
-        log.info("marking memcached for reconnection...");
-        synchronized (memcached) {
-            if (memcached.get() != null) {
-                try { memcached.get().shutdown(); } catch (Exception e) {
-                    log.warn("error shutting down memcached client before reconnecting: "+e);
-                }
-            }
-            memcached.set(null);
-        }
+        log.info("reconnecting to memcached...");
+        final MemcachedNodeRing r = ring.get();
+        if (r != null) for (MemcachedNode node : r.getNodes()) node.reconnect();
     }
 
 }
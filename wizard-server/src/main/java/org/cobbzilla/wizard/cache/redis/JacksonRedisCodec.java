@@ -0,0 +1,43 @@
+package org.cobbzilla.wizard.cache.redis;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
+import static org.cobbzilla.util.reflect.ReflectionUtil.instantiate;
+
+/**
+ * A RedisCodec for any Jackson data format, chosen by RedisCodecConfiguration.jsonFactory, for example
+ * com.fasterxml.jackson.dataformat.smile.SmileFactory or com.fasterxml.jackson.dataformat.cbor.CBORFactory.
+ * The format's jackson-dataformat jar must be on the classpath.
+ */
+public class JacksonRedisCodec implements RedisCodec {
+
+    private volatile ObjectMapper mapper;
+
+    @Override public RedisCodec init(RedisCodecConfiguration config) {
+        if (empty(config.getJsonFactory())) return die("init: jsonFactory is required");
+        final JsonFactory factory = instantiate(config.getJsonFactory());
+        mapper = new ObjectMapper(factory).configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        return this;
+    }
+
+    @Override public byte[] encode(Object thing) {
+        try {
+            return mapper.writeValueAsBytes(thing);
+        } catch (Exception e) {
+            return die("encode: "+e, e);
+        }
+    }
+
+    @Override public <T> T decode(byte[] data, Class<T> clazz) {
+        try {
+            return mapper.readValue(data, clazz);
+        } catch (Exception e) {
+            return die("decode: "+e, e);
+        }
+    }
+
+}
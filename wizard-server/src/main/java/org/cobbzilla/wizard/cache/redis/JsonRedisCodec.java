@@ -0,0 +1,22 @@
+package org.cobbzilla.wizard.cache.redis;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.cobbzilla.util.json.JsonUtil.fromJsonOrDie;
+import static org.cobbzilla.util.json.JsonUtil.toJsonOrDie;
+
+/**
+ * The default RedisCodec: the same JSON as JsonUtil. Without compression, values are stored exactly as before
+ * codecs were introduced, so existing data stays readable.
+ */
+public class JsonRedisCodec implements RedisCodec {
+
+    @Override public RedisCodec init(RedisCodecConfiguration config) { return this; }
+
+    @Override public byte[] encode(Object thing) { return toJsonOrDie(thing).getBytes(StandardCharsets.UTF_8); }
+
+    @Override public <T> T decode(byte[] data, Class<T> clazz) {
+        return fromJsonOrDie(new String(data, StandardCharsets.UTF_8), clazz);
+    }
+
+}
@@ -0,0 +1,122 @@
+package org.cobbzilla.wizard.cache.redis;
+
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.json.JsonUtil.toJsonOrDie;
+import static org.cobbzilla.wizard.cache.redis.RedisService.bytes;
+import static org.cobbzilla.wizard.cache.redis.RedisService.exSeconds;
+
+/**
+ * Commands queued on a single Redis connection and sent in one round trip, see RedisService.pipeline.
+ * Keys are prefixed and values encrypted exactly like the corresponding single-key RedisService methods.
+ * Results are available from the returned Suppliers only after the pipeline has been sent.
+ */
+public class RedisBatch {
+
+    private final RedisService redis;
+    private final Pipeline pipeline;
+
+    RedisBatch(RedisService redis, Pipeline pipeline) {
+        this.redis = redis;
+        this.pipeline = pipeline;
+    }
+
+    public Supplier<String> get(String key) {
+        final Response<String> response = pipeline.get(redis.prefix(key));
+        return () -> redis.decrypt(response.get());
+    }
+
+    public Supplier<Boolean> exists(String key) {
+        final Response<Boolean> response = pipeline.exists(redis.prefix(key));
+        return response::get;
+    }
+
+    public RedisBatch set(String key, String value) {
+        pipeline.set(redis.prefix(key), redis.encrypt(value));
+        return this;
+    }
+
+    /**
+     * Set a value with an expiration, in one command
+     * @param expx EX for seconds, PX for milliseconds
+     */
+    public RedisBatch set(String key, String value, String expx, long time) {
+        switch (expx.toUpperCase()) {
+            case "EX": pipeline.setex(redis.prefix(key), exSeconds(time), redis.encrypt(value)); break;
+            case "PX": pipeline.psetex(redis.prefix(key), time, redis.encrypt(value)); break;
+            default: die("set: invalid expx: "+expx);
+        }
+        return this;
+    }
+
+    public RedisBatch set(String key, String value, String nxxx, String expx, long time) {
+        pipeline.set(redis.prefix(key), redis.encrypt(value), nxxx, expx, time);
+        return this;
+    }
+
+    /**
+     * Store an object like RedisService.setObject, using the service's codec
+     * @param expx EX for seconds, PX for milliseconds, or null for no expiration
+     */
+    public RedisBatch setObject(String key, Object thing, String expx, long time) {
+        if (redis.getCodecConfiguration().isLegacyFormat()) {
+            return expx == null ? set(key, toJsonOrDie(thing)) : set(key, toJsonOrDie(thing), expx, time);
+        }
+        final byte[] k = bytes(redis.prefix(key));
+        final byte[] value = redis.encodeObject(thing);
+        if (expx == null) {
+            pipeline.set(k, value);
+            return this;
+        }
+        switch (expx.toUpperCase()) {
+            case "EX": pipeline.setex(k, exSeconds(time), value); break;
+            case "PX": pipeline.psetex(k, time, value); break;
+            default: die("setObject: invalid expx: "+expx);
+        }
+        return this;
+    }
+
+    public RedisBatch setObject(String key, Object thing) { return setObject(key, thing, null, 0); }
+
+    public RedisBatch expire(String key, int seconds) {
+        pipeline.expire(redis.prefix(key), seconds);
+        return this;
+    }
+
+    public RedisBatch del(String key) {
+        pipeline.del(redis.prefix(key));
+        return this;
+    }
+
+    public RedisBatch lpush(String key, String value) {
+        pipeline.lpush(redis.prefix(key), redis.encrypt(value));
+        return this;
+    }
+
+    public RedisBatch sadd(String key, String value) {
+        pipeline.sadd(redis.prefix(key), value);
+        return this;
+    }
+
+    public RedisBatch srem(String key, String value) {
+        pipeline.srem(redis.prefix(key), value);
+        return this;
+    }
+
+    // keys are prefixed, like RedisService.eval
+    public Supplier<Object> evalsha(String scriptsha, List<String> keys, List<String> args) {
+        final Response<Object> response = pipeline.evalsha(scriptsha, redis.prefix(keys), args);
+        return response::get;
+    }
+
+    public Supplier<Long> incrBy(String key, long value) {
+        final Response<Long> response = pipeline.incrBy(redis.prefix(key), value);
+        return response::get;
+    }
+
+}
@@ -0,0 +1,16 @@
+package org.cobbzilla.wizard.cache.redis;
+
+/**
+ * Serializes objects stored by RedisService.setObject and read by getObject.
+ * Compression and encryption are applied by RedisService, a codec only converts objects to and from bytes.
+ * Implementations must be thread-safe and have a public no-arg constructor.
+ */
+public interface RedisCodec {
+
+    RedisCodec init(RedisCodecConfiguration config);
+
+    byte[] encode(Object thing);
+
+    <T> T decode(byte[] data, Class<T> clazz);
+
+}
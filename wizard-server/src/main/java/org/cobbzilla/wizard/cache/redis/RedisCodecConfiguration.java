@@ -0,0 +1,34 @@
+package org.cobbzilla.wizard.cache.redis;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
+
+/**
+ * How RedisService stores objects (setObject/getObject). Set per namespace in RedisConfiguration.codecs.
+ * Changing the codec of a namespace makes its existing values unreadable: flush the namespace first.
+ */
+@NoArgsConstructor @Accessors(chain=true) @ToString
+public class RedisCodecConfiguration {
+
+    // class name of the RedisCodec implementation to use
+    @Setter private String engine;
+    public String getEngine () { return empty(engine) ? JsonRedisCodec.class.getName() : engine; }
+
+    // for JacksonRedisCodec: class name of the Jackson JsonFactory for the format
+    @Getter @Setter private String jsonFactory;
+
+    // values whose encoded size is at least this many bytes are compressed. zero or negative disables compression
+    @Getter @Setter private int compressionThreshold = 0;
+    public boolean hasCompression () { return compressionThreshold > 0; }
+
+    /**
+     * @return true if values are stored as encrypted JSON strings, the same as before codecs were introduced
+     */
+    public boolean isLegacyFormat () { return getEngine().equals(JsonRedisCodec.class.getName()) && !hasCompression(); }
+
+}
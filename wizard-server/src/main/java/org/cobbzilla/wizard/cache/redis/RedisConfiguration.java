@@ -1,11 +1,13 @@
 package org.cobbzilla.wizard.cache.redis;
 
-import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 
-@NoArgsConstructor @AllArgsConstructor
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@NoArgsConstructor
 public class RedisConfiguration {
 
     @Getter @Setter private String host = "127.0.0.1";
@@ -16,4 +18,40 @@ public class RedisConfiguration {
 
     public RedisConfiguration (String key) { this.key = key; }
 
+    public RedisConfiguration (String host, int port, String key, String prefix) {
+        this.host = host;
+        this.port = port;
+        this.key = key;
+        this.prefix = prefix;
+    }
+
+    // connection pool settings
+    @Getter @Setter private int maxConnections = 32;
+    @Getter @Setter private int maxIdleConnections = 16;
+    @Getter @Setter private int minIdleConnections = 0;
+
+    // how long to wait for a free connection before failing, in milliseconds
+    @Getter @Setter private long maxWait = TimeUnit.SECONDS.toMillis(2);
+
+    // socket connect/read timeout, in milliseconds
+    @Getter @Setter private int timeout = (int) TimeUnit.SECONDS.toMillis(2);
+
+    // how often idle connections are checked, in milliseconds
+    @Getter @Setter private long healthCheckInterval = TimeUnit.SECONDS.toMillis(30);
+
+    // PING each connection as it is checked out (safer, but adds a round trip per operation)
+    @Getter @Setter private boolean testOnBorrow = false;
+
+    // how objects are stored, keyed by namespace (the prefix passed to RedisService.prefixNamespace)
+    @Getter @Setter private Map<String, RedisCodecConfiguration> codecs;
+
+    /**
+     * @return the codec configuration for a namespace, or the default (legacy JSON) if none is configured
+     */
+    public RedisCodecConfiguration getCodec (String namespace) {
+        final RedisCodecConfiguration codec = codecs == null || namespace == null ? null : codecs.get(namespace);
+        return codec != null ? codec : DEFAULT_CODEC;
+    }
+    private static final RedisCodecConfiguration DEFAULT_CODEC = new RedisCodecConfiguration();
+
 }
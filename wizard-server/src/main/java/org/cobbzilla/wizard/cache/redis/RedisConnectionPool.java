@@ -0,0 +1,113 @@
+package org.cobbzilla.wizard.cache.redis;
+
+import lombok.extern.slf4j.Slf4j;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
+
+/**
+ * A pool of Jedis connections to one Redis server, shared by a RedisService and all of its namespaces.
+ * Each operation checks out its own connection, so threads no longer wait on a single shared socket.
+ */
+@Slf4j
+public class RedisConnectionPool {
+
+    private final RedisConfiguration config;
+    private final AtomicReference<JedisPool> pool = new AtomicReference<>();
+
+    private final LongAdder checkouts = new LongAdder();
+    private final LongAdder checkoutTime = new LongAdder();
+    private final LongAdder checkoutErrors = new LongAdder();
+
+    public RedisConnectionPool(RedisConfiguration config) { this.config = config; }
+
+    private JedisPool getPool() {
+        JedisPool p = pool.get();
+        if (p == null) {
+            synchronized (pool) {
+                p = pool.get();
+                if (p == null) {
+                    log.debug("creating redis connection pool: "+config.getHost()+":"+config.getPort()+", maxTotal="+config.getMaxConnections());
+                    p = new JedisPool(poolConfig(), config.getHost(), config.getPort(), config.getTimeout());
+                    pool.set(p);
+                }
+            }
+        }
+        return p;
+    }
+
+    private JedisPoolConfig poolConfig() {
+        final JedisPoolConfig poolConfig = new JedisPoolConfig();
+        poolConfig.setMaxTotal(config.getMaxConnections());
+        poolConfig.setMaxIdle(config.getMaxIdleConnections());
+        poolConfig.setMinIdle(config.getMinIdleConnections());
+        poolConfig.setMaxWaitMillis(config.getMaxWait());
+        poolConfig.setBlockWhenExhausted(true);
+        // health checks: idle connections are PINGed and evicted if dead
+        poolConfig.setTestOnBorrow(config.isTestOnBorrow());
+        poolConfig.setTestWhileIdle(true);
+        poolConfig.setTimeBetweenEvictionRunsMillis(config.getHealthCheckInterval());
+        return poolConfig;
+    }
+
+    /**
+     * Check out a connection. Always close it when done (try-with-resources): this returns it to the pool,
+     * or discards it if it broke while in use.
+     */
+    public Jedis getResource() {
+        final long start = now();
+        try {
+            final Jedis jedis = getPool().getResource();
+            checkouts.increment();
+            return jedis;
+        } catch (RuntimeException e) {
+            checkoutErrors.increment();
+            throw e;
+        } finally {
+            checkoutTime.add(now() - start);
+        }
+    }
+
+    /**
+     * Replace the pool with a new one and close the old one. Connections checked out of the old pool
+     * are closed when they are returned.
+     */
+    public void reset() {
+        final JedisPool old;
+        synchronized (pool) {
+            old = pool.getAndSet(null);
+        }
+        if (old != null) {
+            try { old.close(); } catch (Exception e) {
+                log.warn("reset: error closing redis connection pool: "+e);
+            }
+        }
+    }
+
+    public int getActive() { final JedisPool p = pool.get(); return p == null ? 0 : p.getNumActive(); }
+    public int getIdle() { final JedisPool p = pool.get(); return p == null ? 0 : p.getNumIdle(); }
+    public int getWaiters() { final JedisPool p = pool.get(); return p == null ? 0 : p.getNumWaiters(); }
+
+    public long getCheckouts() { return checkouts.sum(); }
+    public long getCheckoutErrors() { return checkoutErrors.sum(); }
+
+    // average time to check out a connection, in milliseconds
+    public long getAverageWait() {
+        final long c = getCheckouts() + getCheckoutErrors();
+        return c == 0 ? 0 : checkoutTime.sum() / c;
+    }
+
+    public long getMaxWait() { final JedisPool p = pool.get(); return p == null ? 0 : p.getMaxBorrowWaitTimeMillis(); }
+
+    @Override public String toString() {
+        return "active=" + getActive() + ", idle=" + getIdle() + ", waiters=" + getWaiters()
+                + ", checkouts=" + getCheckouts() + ", checkoutErrors=" + getCheckoutErrors()
+                + ", avgWait=" + getAverageWait() + "ms, maxWait=" + getMaxWait() + "ms";
+    }
+
+}
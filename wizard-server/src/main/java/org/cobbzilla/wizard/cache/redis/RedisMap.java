@@ -4,9 +4,7 @@ import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.Setter;
 
-import java.util.Collection;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 
 import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
 import static org.cobbzilla.util.daemon.ZillaRuntime.notSupported;
@@ -46,8 +44,7 @@ public class RedisMap<V> implements Map<String, V> {
         } else if (duration == null) {
             redis.set(keyName(key), toJsonOrDie(value));
         } else {
-            redis.set(keyName(key), toJsonOrDie(value), "NX", "PX", duration);
-            redis.set(keyName(key), toJsonOrDie(value), "XX", "PX", duration);
+            redis.set(keyName(key), toJsonOrDie(value), "PX", duration);
         }
         return null;
     }
@@ -57,10 +54,41 @@ public class RedisMap<V> implements Map<String, V> {
         return null;
     }
 
+    /**
+     * Get many values in one round trip
+     * @return a map of key to value, without entries for missing keys
+     */
+    public Map<String, V> getAll(Collection<String> keys) {
+        final List<String> keyList = new ArrayList<>(keys);
+        final List<String> keyNames = new ArrayList<>(keyList.size());
+        for (String key : keyList) keyNames.add(keyName(key));
+
+        final List<String> values = redis.mget(keyNames);
+        final Map<String, V> found = new LinkedHashMap<>();
+        for (int i=0; i<keyList.size(); i++) {
+            final String value = values.get(i);
+            if (!empty(value)) found.put(keyList.get(i), fromJsonOrDie(value, getValueClass()));
+        }
+        return found;
+    }
+
+    // empty values are deleted, like put
     @Override public void putAll(Map<? extends String, ? extends V> m) {
+        final Map<String, String> values = new LinkedHashMap<>();
+        final List<String> deletes = new ArrayList<>();
         for (Map.Entry<? extends String, ? extends V> entry : m.entrySet()) {
-            put(entry.getKey(), entry.getValue());
+            if (empty(entry.getValue())) {
+                deletes.add(keyName(entry.getKey()));
+            } else {
+                values.put(keyName(entry.getKey()), toJsonOrDie(entry.getValue()));
+            }
+        }
+        if (duration == null) {
+            redis.mset(values);
+        } else {
+            redis.mset(values, "PX", duration);
         }
+        redis.delAll(deletes);
     }
 
 }
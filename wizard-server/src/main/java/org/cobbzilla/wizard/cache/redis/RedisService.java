@@ -7,15 +7,32 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import redis.clients.jedis.Jedis;
-
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
 
 import static net.sf.cglib.core.CollectionUtils.transform;
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
 import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
 import static org.cobbzilla.util.json.JsonUtil.fromJsonOrDie;
 import static org.cobbzilla.util.json.JsonUtil.toJsonOrDie;
+import static org.cobbzilla.util.reflect.ReflectionUtil.instantiate;
 import static org.cobbzilla.util.security.CryptoUtil.string_decrypt;
 import static org.cobbzilla.util.security.CryptoUtil.string_encrypt;
 import static org.cobbzilla.util.system.Sleep.sleep;
@@ -24,17 +41,49 @@ import static org.cobbzilla.util.system.Sleep.sleep;
 public class RedisService {
 
     public static final int MAX_RETRIES = 5;
+    public static final int DEFAULT_SCAN_BATCH = 1000;
+
+    // UNLINK frees memory in the background; on servers older than Redis 4 we fall back to DEL
+    private static final String UNLINK_SCRIPT = "return redis.call('UNLINK', unpack(KEYS))";
+    private static volatile boolean unlinkSupported = true;
+
+    // keys per UNLINK/DEL call, well under the Lua unpack() limit (about 8000)
+    public static final int UNLINK_CHUNK = 1000;
+
+    private static boolean isUnknownCommand(JedisDataException e) {
+        final String message = e.getMessage() == null ? "" : e.getMessage().toLowerCase();
+        return message.contains("unknown command") || message.contains("unknown redis command");
+    }
 
     @Autowired @Getter @Setter private HasRedisConfiguration configuration;
 
     @Getter @Setter private String key;
     protected boolean hasKey () { return !empty(getKey()); }
 
-    private final AtomicReference<Jedis> redis = new AtomicReference<>();
-    private Jedis newJedis() { return new Jedis(configuration.getRedis().getHost(), configuration.getRedis().getPort()); }
+    // shared with every RedisService created by prefixNamespace
+    private AtomicReference<RedisConnectionPool> pool = new AtomicReference<>();
 
     @Getter @Setter private String prefix = null;
 
+    // how setObject/getObject store values, see RedisCodecConfiguration
+    @Getter private RedisCodecConfiguration codecConfiguration = new RedisCodecConfiguration();
+    private volatile RedisCodec codec;
+
+    public RedisService setCodecConfiguration(RedisCodecConfiguration config) {
+        this.codecConfiguration = config == null ? new RedisCodecConfiguration() : config;
+        this.codec = null;
+        return this;
+    }
+
+    public RedisCodec getCodec() {
+        RedisCodec c = codec;
+        if (c == null) {
+            c = ((RedisCodec) instantiate(codecConfiguration.getEngine())).init(codecConfiguration);
+            codec = c;
+        }
+        return c;
+    }
+
     public RedisService(HasRedisConfiguration configuration) {
         this(configuration, configuration.getRedis().getPrefix(), configuration.getRedis().getKey());
     }
@@ -59,6 +108,8 @@ public class RedisService {
             String basePrefix = (this.prefix != null) ? this.prefix : configuration.getRedis().getPrefix();
             basePrefix = empty(basePrefix) ? "" : basePrefix + ".";
             r = new RedisService(configuration, basePrefix + prefix, key);
+            r.pool = pool;
+            r.setCodecConfiguration(configuration.getRedis().getCodec(prefix));
             prefixServiceCache.put(prefix, r);
         }
         return r;
@@ -66,43 +117,55 @@ public class RedisService {
     }
 
     public void reconnect () {
-        log.debug("marking redis for reconnection...");
-        synchronized (redis) {
-            if (redis.get() != null) {
-                try { redis.get().disconnect(); } catch (Exception e) {
-                    log.warn("error disconnecting from redis before reconnecting: "+e);
-                }
-            }
-            redis.set(null);
-        }
+        log.debug("resetting redis connection pool...");
+        final RedisConnectionPool p = pool.get();
+        if (p != null) p.reset();
     }
 
-    private Jedis getRedis () {
-        synchronized (redis) {
-            if (redis.get() == null) {
-                log.debug("connecting to redis...");
-                redis.set(newJedis());
+    public RedisConnectionPool getConnectionPool() {
+        RedisConnectionPool p = pool.get();
+        if (p == null) {
+            synchronized (pool) {
+                p = pool.get();
+                if (p == null) {
+                    p = new RedisConnectionPool(configuration.getRedis());
+                    pool.set(p);
+                }
             }
         }
-        return redis.get();
+        return p;
     }
 
+    // each call checks out a connection, which must be closed to return it to the pool
+    private Jedis getRedis () { return getConnectionPool().getResource(); }
+
     public <V> RedisMap<V> map (String prefix) { return map(prefix, null); }
     public <V> RedisMap<V> map (String prefix, Long duration) { return new RedisMap<>(prefix, duration, this); }
 
     public boolean exists(String key) { return __exists(key, 0, MAX_RETRIES); }
 
-    public boolean anyExists(Collection<String> keys) {
-        for (String k : keys) if (exists(k)) return true;
-        return false;
+    /**
+     * Check many keys in one round trip
+     * @return for each key, in order, whether it exists
+     */
+    public List<Boolean> existsMulti(Collection<String> keys) {
+        if (empty(keys)) return new ArrayList<>();
+        final List<Supplier<Boolean>> responses = new ArrayList<>(keys.size());
+        __pipeline(batch -> {
+            responses.clear(); // in case of retry
+            for (String k : keys) responses.add(batch.exists(k));
+        }, 0, MAX_RETRIES);
+        final List<Boolean> found = new ArrayList<>(responses.size());
+        for (Supplier<Boolean> r : responses) found.add(r.get());
+        return found;
     }
 
-    public boolean allExist(Collection<String> keys) {
-        for (String k : keys) if (!exists(k)) return false;
-        return true;
-    }
+    public boolean anyExists(Collection<String> keys) { return existsMulti(keys).contains(true); }
+
+    public boolean allExist(Collection<String> keys) { return !existsMulti(keys).contains(false); }
 
     public <T> T getObject(String key, Class<T> clazz) {
+        if (!codecConfiguration.isLegacyFormat()) return decodeObject(__getBytes(key, 0, MAX_RETRIES), clazz);
         final String json = get(key);
         return empty(json) ? null : fromJsonOrDie(json, clazz);
     }
@@ -111,29 +174,231 @@ public class RedisService {
 
     public String get_plaintext(String key) { return __get(key, 0, MAX_RETRIES); }
 
+    /**
+     * Get a value and reset its expiration in one round trip, without rewriting the value
+     */
+    public String getAndExpire(String key, int seconds) {
+        final List<Supplier<String>> response = new ArrayList<>(1);
+        __pipeline(batch -> {
+            response.clear(); // in case of retry
+            response.add(batch.get(key));
+            batch.expire(key, seconds);
+        }, 0, MAX_RETRIES);
+        return response.get(0).get();
+    }
+
+    public Long expire(String key, int seconds) { return __expire(key, seconds, 0, MAX_RETRIES); }
+
+    /**
+     * Get many values with a single MGET
+     * @return the decrypted values, in the same order as the keys, with null for missing keys
+     */
+    public List<String> mget(Collection<String> keys) {
+        if (empty(keys)) return new ArrayList<>();
+        final List<String> values = __mget(prefix(keys), 0, MAX_RETRIES);
+        final List<String> decrypted = new ArrayList<>(values.size());
+        for (String v : values) decrypted.add(decrypt(v));
+        return decrypted;
+    }
+
+    /**
+     * Get many objects with a single MGET
+     * @return the objects, in the same order as the keys, with null for missing keys
+     */
+    public <T> List<T> getObjects(Collection<String> keys, Class<T> clazz) {
+        final List<T> things = new ArrayList<>(keys.size());
+        if (empty(keys)) return things;
+        if (codecConfiguration.isLegacyFormat()) {
+            for (String json : mget(keys)) things.add(empty(json) ? null : fromJsonOrDie(json, clazz));
+        } else {
+            for (byte[] value : __mgetBytes(prefix(keys), 0, MAX_RETRIES)) things.add(decodeObject(value, clazz));
+        }
+        return things;
+    }
+
     public String lpop(String data) { return decrypt(__lpop(data, 0, MAX_RETRIES)); }
 
     public void set(String key, String value, String nxxx, String expx, long time) {
         __set(key, value, nxxx, expx, time, 0, MAX_RETRIES);
     }
 
-    public void set(String key, String value, String expx, long time) {
-        __set(key, value, "XX", expx, time, 0, MAX_RETRIES);
-        __set(key, value, "NX", expx, time, 0, MAX_RETRIES);
+    /**
+     * Like set with NX or XX, but reports whether the value was written
+     * @return false if the NX or XX condition was not met
+     */
+    public boolean trySet(String key, String value, String nxxx, String expx, long time) {
+        return "OK".equals(__set(key, value, nxxx, expx, time, 0, MAX_RETRIES));
     }
 
+    /**
+     * Set a value with an expiration, whether or not the key exists, in one round trip
+     * @param expx EX for seconds, PX for milliseconds
+     */
+    public void set(String key, String value, String expx, long time) { __set(key, value, expx, time, 0, MAX_RETRIES); }
+
     public void set(String key, String value) { __set(key, value, 0, MAX_RETRIES); }
 
     public void setAll(Collection<String> keys, String value, String expx, long time) {
-        for (String k : keys) set(k, value, expx, time);
+        if (empty(keys)) return;
+        __pipeline(batch -> { for (String k : keys) batch.set(k, value, expx, time); }, 0, MAX_RETRIES);
+    }
+
+    /**
+     * Set many values with a single MSET
+     */
+    public void mset(Map<String, String> values) {
+        if (empty(values)) return;
+        final String[] keysvalues = new String[values.size()*2];
+        int i = 0;
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            keysvalues[i++] = prefix(entry.getKey());
+            keysvalues[i++] = encrypt(entry.getValue());
+        }
+        __mset(keysvalues, 0, MAX_RETRIES);
+    }
+
+    /**
+     * Set many values with the same expiration, in one round trip (MSET has no TTL, so this pipelines SET commands)
+     * @param expx EX for seconds, PX for milliseconds
+     */
+    public void mset(Map<String, String> values, String expx, long time) {
+        if (empty(values)) return;
+        __pipeline(batch -> { for (Map.Entry<String, String> e : values.entrySet()) batch.set(e.getKey(), e.getValue(), expx, time); }, 0, MAX_RETRIES);
+    }
+
+    public <T> void setObject(String key, T thing) {
+        if (codecConfiguration.isLegacyFormat()) {
+            __set(key, toJsonOrDie(thing), 0, MAX_RETRIES);
+        } else {
+            __setBytes(key, encodeObject(thing), null, 0, 0, MAX_RETRIES);
+        }
+    }
+
+    /**
+     * @param expx EX for seconds, PX for milliseconds
+     */
+    public <T> void setObject(String key, T thing, String expx, long time) {
+        if (codecConfiguration.isLegacyFormat()) {
+            __set(key, toJsonOrDie(thing), expx, time, 0, MAX_RETRIES);
+        } else {
+            __setBytes(key, encodeObject(thing), expx, time, 0, MAX_RETRIES);
+        }
+    }
+
+    /**
+     * Optimistic versioned write: store thing only if the version at versionKey still equals expectedVersion
+     * (a missing version counts as 0), and increment the version, atomically via WATCH/MULTI/EXEC.
+     * Not retried, since the write may have been applied.
+     * @param expx EX for seconds, PX for milliseconds, or null for no expiration. the version expires with the value
+     * @return the new version, or null if the stored version did not match
+     */
+    public Long setObjectIfVersion(String key, Object thing, String versionKey, long expectedVersion, String expx, long time) {
+        try (Jedis redis = getRedis()) {
+            final String vkey = prefix(versionKey);
+            redis.watch(vkey);
+            final String current = redis.get(vkey);
+            if ((current == null ? 0 : Long.parseLong(current)) != expectedVersion) {
+                redis.unwatch();
+                return null;
+            }
+            final long next = expectedVersion + 1;
+            final Transaction tx = redis.multi();
+            if (codecConfiguration.isLegacyFormat()) {
+                final String k = prefix(key);
+                final String value = encrypt(toJsonOrDie(thing));
+                if (expx == null) {
+                    tx.set(k, value);
+                    tx.set(vkey, String.valueOf(next));
+                } else if (expx.equalsIgnoreCase("EX")) {
+                    tx.setex(k, exSeconds(time), value);
+                    tx.setex(vkey, exSeconds(time), String.valueOf(next));
+                } else {
+                    tx.psetex(k, time, value);
+                    tx.psetex(vkey, time, String.valueOf(next));
+                }
+            } else {
+                final byte[] k = bytes(prefix(key));
+                final byte[] value = encodeObject(thing);
+                final byte[] v = bytes(String.valueOf(next));
+                final byte[] vk = bytes(vkey);
+                if (expx == null) {
+                    tx.set(k, value);
+                    tx.set(vk, v);
+                } else if (expx.equalsIgnoreCase("EX")) {
+                    tx.setex(k, exSeconds(time), value);
+                    tx.setex(vk, exSeconds(time), v);
+                } else {
+                    tx.psetex(k, time, value);
+                    tx.psetex(vk, time, v);
+                }
+            }
+            final List<Object> result = tx.exec();
+            return empty(result) ? null : next;
+        }
+    }
+
+    // codec-encoded values: [format byte][encoded value, maybe deflated], then encrypted if we have a key
+    byte[] encodeObject(Object thing) {
+        return encryptBytes(RedisValueFormat.frame(getCodec().encode(thing), codecConfiguration.getCompressionThreshold()));
     }
 
-    public <T> void setObject(String key, T thing) { __set(key, toJsonOrDie(thing), 0, MAX_RETRIES); }
+    <T> T decodeObject(byte[] value, Class<T> clazz) {
+        if (value == null) return null;
+        return getCodec().decode(RedisValueFormat.unframe(decryptBytes(value)), clazz);
+    }
 
-    public void lpush(String key, String value) { __lpush(key, value, 0, MAX_RETRIES); }
+    /**
+     * @return an EX expiration, checked instead of silently truncated to an int
+     */
+    static int exSeconds(long time) {
+        if (time <= 0 || time > Integer.MAX_VALUE) return die("invalid EX expiration (seconds): "+time);
+        return (int) time;
+    }
+
+    static byte[] bytes(String s) { return s.getBytes(StandardCharsets.UTF_8); }
+
+    public void lpush(String key, String value) { __lpush(key, new String[] {encrypt(value)}, 0, MAX_RETRIES); }
+
+    public void lpushAll(String key, Collection<String> values) {
+        if (empty(values)) return;
+        final String[] encrypted = new String[values.size()];
+        int i = 0;
+        for (String v : values) encrypted[i++] = encrypt(v);
+        __lpush(key, encrypted, 0, MAX_RETRIES);
+    }
 
     public void del(String key) { __del(key, 0, MAX_RETRIES); }
 
+    /**
+     * Delete many keys with a single DEL
+     * @return the number of keys deleted
+     */
+    public Long delAll(Collection<String> keys) {
+        if (empty(keys)) return 0L;
+        final List<String> prefixed = prefix(keys);
+        return __delAll(prefixed.toArray(new String[prefixed.size()]), 0, MAX_RETRIES);
+    }
+
+    public Long publish(String channel, String message) { return __publish(channel, message, 0, MAX_RETRIES); }
+
+    /**
+     * Listen for messages published to a channel (in this service's namespace) on a dedicated connection
+     * @param listener called with each decrypted message, on the subscription's thread
+     * @param onSubscribe if not null, called each time the subscription (re)connects
+     * @return the subscription, close it to stop listening
+     */
+    public RedisSubscription subscribe(String channel, Consumer<String> listener, Runnable onSubscribe) {
+        return new RedisSubscription(this, channel, listener, onSubscribe);
+    }
+
+    /**
+     * Queue commands on one connection and send them in a single round trip. Keys are prefixed and values
+     * encrypted the same way as the single-key methods. The results of the RedisBatch's Suppliers can be read
+     * once this method returns.
+     * The pipeline is not retried on failure, since some of its commands may already have been applied.
+     */
+    public void pipeline(Consumer<RedisBatch> batch) { __pipeline(batch, 0, -1); }
+
     public void set_plaintext(String key, String value, String nxxx, String expx, long time) {
         __set(key, value, nxxx, expx, time, 0, MAX_RETRIES);
     }
@@ -149,6 +414,7 @@ public class RedisService {
     public Long srem(String key, String[] values) { return __srem(key, values, 0, MAX_RETRIES); }
 
     public Set<String> smembers(String key) { return __smembers(key, 0, MAX_RETRIES); }
+    public boolean sismember(String key, String value) { return __sismember(key, value, 0, MAX_RETRIES); }
 
     public List<String> srandmembers(String key, int count) { return __srandmember(key, count, 0, MAX_RETRIES); }
     public String srandmember(String key) {
@@ -173,14 +439,73 @@ public class RedisService {
 
     public List<String> list(String key) { return __list(key, 0, MAX_RETRIES); }
 
-    public Collection<String> keys(String key) { return __keys(key, 0, MAX_RETRIES); }
+    /**
+     * Find keys matching a pattern. Uses SCAN, so the server is not blocked, but all matching keys are held in memory:
+     * prefer scan for large namespaces.
+     * @return the matching keys, including this service's prefix
+     */
+    public Collection<String> keys(String key) {
+        final Set<String> keys = new LinkedHashSet<>();
+        String cursor = ScanParams.SCAN_POINTER_START;
+        final ScanParams params = scanParams(prefix(key), DEFAULT_SCAN_BATCH);
+        do {
+            final ScanResult<String> page = __scan(cursor, params, 0, MAX_RETRIES);
+            keys.addAll(page.getResult());
+            cursor = page.getStringCursor();
+        } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+        return keys;
+    }
+
+    /**
+     * Stream the keys matching a pattern, fetching them with SCAN a batch at a time.
+     * A key may be returned more than once, and keys added or removed during the scan may or may not be returned.
+     * @param pattern a glob-style pattern, relative to this service's prefix
+     * @param batchSize the number of keys to ask for per SCAN (a hint to the server, not a limit)
+     * @return an iterator over the matching keys, relative to this service's prefix (ready for get/del)
+     */
+    public Iterator<String> scan(String pattern, int batchSize) { return new ScanIterator(pattern, batchSize); }
+
+    private ScanParams scanParams(String prefixedPattern, int batchSize) {
+        return new ScanParams().match(prefixedPattern).count(batchSize);
+    }
+
+    private String unprefix(String prefixedKey) {
+        final String namespace = prefix("");
+        return prefixedKey.startsWith(namespace) ? prefixedKey.substring(namespace.length()) : prefixedKey;
+    }
+
+    private class ScanIterator implements Iterator<String> {
+
+        private final ScanParams params;
+        private String cursor = ScanParams.SCAN_POINTER_START;
+        private boolean done = false;
+        private Iterator<String> page = Collections.emptyIterator();
+
+        ScanIterator(String pattern, int batchSize) { params = scanParams(prefix(pattern), batchSize); }
+
+        @Override public boolean hasNext() {
+            // a page may be empty even though the scan has not finished
+            while (!page.hasNext() && !done) {
+                final ScanResult<String> result = __scan(cursor, params, 0, MAX_RETRIES);
+                page = result.getResult().iterator();
+                cursor = result.getStringCursor();
+                done = cursor.equals(ScanParams.SCAN_POINTER_START);
+            }
+            return page.hasNext();
+        }
+
+        @Override public String next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return unprefix(page.next());
+        }
+    }
 
     public String loadScript(String script) { return __loadScript(script, 0, MAX_RETRIES); }
 
     private String __loadScript(String script, int attempt, int maxRetries) {
         try {
-            synchronized (redis) {
-                return getRedis().scriptLoad(script);
+            try (Jedis redis = getRedis()) {
+                return redis.scriptLoad(script);
             }
         } catch (RuntimeException e) {
             if (attempt > maxRetries) throw e;
@@ -196,9 +521,11 @@ public class RedisService {
 
     private Object __eval(String scriptsha, List<String> keys, List<String> args, int attempt, int maxRetries) {
         try {
-            synchronized (redis) {
-                return getRedis().evalsha(scriptsha, keys, args);
+            try (Jedis redis = getRedis()) {
+                return redis.evalsha(scriptsha, keys, args);
             }
+        } catch (JedisDataException e) {
+            throw e; // the script or server returned an error (e.g. NOSCRIPT), retrying will not help
         } catch (RuntimeException e) {
             if (attempt > maxRetries) throw e;
             resetForRetry(attempt, "retrying RedisService.__eval");
@@ -221,15 +548,83 @@ public class RedisService {
         return string_decrypt(data, getKey());
     }
 
+    // binary-safe encryption for codec-encoded values (AES-GCM, random IV prepended), no base64 expansion
+    public static final String BINARY_CIPHER = "AES/GCM/NoPadding";
+    public static final int BINARY_IV_LENGTH = 12;
+    private static final SecureRandom random = new SecureRandom();
+
+    // HKDF (RFC 5869) parameters for deriving the binary-value key from the configured key
+    private static final byte[] BINARY_KEY_SALT = bytes("org.cobbzilla.wizard.cache.redis.RedisService");
+    private static final byte[] BINARY_KEY_INFO = bytes("binary-values/aes-gcm/v1");
+    public static final int BINARY_KEY_LENGTH = 16;
+
+    @Getter(lazy=true) private final SecretKeySpec binaryKey = initBinaryKey();
+    private SecretKeySpec initBinaryKey() {
+        try {
+            return new SecretKeySpec(hkdfSha256(bytes(getKey()), BINARY_KEY_SALT, BINARY_KEY_INFO, BINARY_KEY_LENGTH), "AES");
+        } catch (Exception e) {
+            return die("initBinaryKey: "+e, e);
+        }
+    }
+
+    static byte[] hkdfSha256(byte[] inputKey, byte[] salt, byte[] info, int length) throws Exception {
+        final Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+        final byte[] prk = mac.doFinal(inputKey);
+
+        mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+        final byte[] okm = new byte[length];
+        byte[] block = new byte[0];
+        for (int offset = 0, i = 1; offset < length; i++) {
+            mac.update(block);
+            mac.update(info);
+            mac.update((byte) i);
+            block = mac.doFinal();
+            final int n = Math.min(block.length, length - offset);
+            System.arraycopy(block, 0, okm, offset, n);
+            offset += n;
+        }
+        return okm;
+    }
+
+    protected byte[] encryptBytes(byte[] data) {
+        if (!hasKey()) return data;
+        try {
+            final byte[] iv = new byte[BINARY_IV_LENGTH];
+            random.nextBytes(iv);
+            final Cipher cipher = Cipher.getInstance(BINARY_CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, getBinaryKey(), new GCMParameterSpec(128, iv));
+            final byte[] encrypted = cipher.doFinal(data);
+            final byte[] result = new byte[iv.length + encrypted.length];
+            System.arraycopy(iv, 0, result, 0, iv.length);
+            System.arraycopy(encrypted, 0, result, iv.length, encrypted.length);
+            return result;
+        } catch (Exception e) {
+            return die("encryptBytes: "+e, e);
+        }
+    }
+
+    protected byte[] decryptBytes(byte[] data) {
+        if (!hasKey()) return data;
+        if (data == null) return null;
+        try {
+            final Cipher cipher = Cipher.getInstance(BINARY_CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, getBinaryKey(), new GCMParameterSpec(128, data, 0, BINARY_IV_LENGTH));
+            return cipher.doFinal(data, BINARY_IV_LENGTH, data.length - BINARY_IV_LENGTH);
+        } catch (Exception e) {
+            return die("decryptBytes: "+e, e);
+        }
+    }
+
+    // a connection that failed is discarded when it is closed, so the retry checks out a different one
     private void resetForRetry(int attempt, String reason) {
-        reconnect();
         sleep(attempt * 10, reason);
     }
 
     private String __get(String key, int attempt, int maxRetries) {
         try {
-            synchronized (redis) {
-                return getRedis().get(prefix(key));
+            try (Jedis redis = getRedis()) {
+                return redis.get(prefix(key));
             }
         } catch (RuntimeException e) {
             if (attempt > maxRetries) throw e;
@@ -240,8 +635,8 @@ public class RedisService {
 
     private boolean __exists(String key, int attempt, int maxRetries) {
         try {
-            synchronized (redis) {
-                return getRedis().exists(prefix(key));
+            try (Jedis redis = getRedis()) {
+                return redis.exists(prefix(key));
             }
         } catch (RuntimeException e) {
             if (attempt > maxRetries) throw e;
@@ -252,8 +647,8 @@ public class RedisService {
 
     private String __set(String key, String value, String nxxx, String expx, long time, int attempt, int maxRetries) {
         try {
-            synchronized (redis) {
-                return getRedis().set(prefix(key), encrypt(value), nxxx, expx, time);
+            try (Jedis redis = getRedis()) {
+                return redis.set(prefix(key), encrypt(value), nxxx, expx, time);
             }
         } catch (RuntimeException e) {
             if (attempt > maxRetries) throw e;
@@ -262,10 +657,26 @@ public class RedisService {
         }
     }
 
+    private String __set(String key, String value, String expx, long time, int attempt, int maxRetries) {
+        try {
+            try (Jedis redis = getRedis()) {
+                switch (expx.toUpperCase()) {
+                    case "EX": return redis.setex(prefix(key), exSeconds(time), encrypt(value));
+                    case "PX": return redis.psetex(prefix(key), time, encrypt(value));
+                    default: return die("set: invalid expx: "+expx);
+                }
+            }
+        } catch (RuntimeException e) {
+            if (attempt > maxRetries) throw e;
+            resetForRetry(attempt, "retrying RedisService.__set");
+            return __set(key, value, expx, time, attempt + 1, maxRetries);
+        }
+    }
+
     private String __set(String key, String value, int attempt, int maxRetries) {
         try {
-            synchronized (redis) {
-                return getRedis().set(prefix(key), encrypt(value));
+            try (Jedis redis = getRedis()) {
+                return redis.set(prefix(key), encrypt(value));
             }
         } catch (RuntimeException e) {
             if (attempt > maxRetries) throw e;
@@ -274,22 +685,141 @@ public class RedisService {
         }
     }
 
-    private Long __lpush(String key, String value, int attempt, int maxRetries) {
+    private byte[] __getBytes(String key, int attempt, int maxRetries) {
+        try {
+            try (Jedis redis = getRedis()) {
+                return redis.get(bytes(prefix(key)));
+            }
+        } catch (RuntimeException e) {
+            if (attempt > maxRetries) throw e;
+            resetForRetry(attempt, "retrying RedisService.__getBytes");
+            return __getBytes(key, attempt+1, maxRetries);
+        }
+    }
+
+    private List<byte[]> __mgetBytes(List<String> prefixed, int attempt, int maxRetries) {
+        try {
+            final byte[][] keys = new byte[prefixed.size()][];
+            for (int i=0; i<keys.length; i++) keys[i] = bytes(prefixed.get(i));
+            try (Jedis redis = getRedis()) {
+                return redis.mget(keys);
+            }
+        } catch (RuntimeException e) {
+            if (attempt > maxRetries) throw e;
+            resetForRetry(attempt, "retrying RedisService.__mgetBytes");
+            return __mgetBytes(prefixed, attempt+1, maxRetries);
+        }
+    }
+
+    // expx null means no expiration
+    private String __setBytes(String key, byte[] value, String expx, long time, int attempt, int maxRetries) {
         try {
-            synchronized (redis) {
-                return getRedis().lpush(prefix(key), encrypt(value));
+            try (Jedis redis = getRedis()) {
+                if (expx == null) return redis.set(bytes(prefix(key)), value);
+                switch (expx.toUpperCase()) {
+                    case "EX": return redis.setex(bytes(prefix(key)), exSeconds(time), value);
+                    case "PX": return redis.psetex(bytes(prefix(key)), time, value);
+                    default: return die("setObject: invalid expx: "+expx);
+                }
+            }
+        } catch (RuntimeException e) {
+            if (attempt > maxRetries) throw e;
+            resetForRetry(attempt, "retrying RedisService.__setBytes");
+            return __setBytes(key, value, expx, time, attempt+1, maxRetries);
+        }
+    }
+
+    private Long __expire(String key, int seconds, int attempt, int maxRetries) {
+        try {
+            try (Jedis redis = getRedis()) {
+                return redis.expire(prefix(key), seconds);
+            }
+        } catch (RuntimeException e) {
+            if (attempt > maxRetries) throw e;
+            resetForRetry(attempt, "retrying RedisService.__expire");
+            return __expire(key, seconds, attempt+1, maxRetries);
+        }
+    }
+
+    private Long __publish(String channel, String message, int attempt, int maxRetries) {
+        try {
+            try (Jedis redis = getRedis()) {
+                return redis.publish(prefix(channel), encrypt(message));
+            }
+        } catch (RuntimeException e) {
+            if (attempt > maxRetries) throw e;
+            resetForRetry(attempt, "retrying RedisService.__publish");
+            return __publish(channel, message, attempt+1, maxRetries);
+        }
+    }
+
+    private Long __lpush(String key, String[] encrypted, int attempt, int maxRetries) {
+        try {
+            try (Jedis redis = getRedis()) {
+                return redis.lpush(prefix(key), encrypted);
             }
         } catch (RuntimeException e) {
             if (attempt > maxRetries) throw e;
             resetForRetry(attempt, "retrying RedisService.__lpush");
-            return __lpush(key, value, attempt + 1, maxRetries);
+            return __lpush(key, encrypted, attempt + 1, maxRetries);
+        }
+    }
+
+    private List<String> __mget(List<String> prefixed, int attempt, int maxRetries) {
+        try {
+            try (Jedis redis = getRedis()) {
+                return redis.mget(prefixed.toArray(new String[prefixed.size()]));
+            }
+        } catch (RuntimeException e) {
+            if (attempt > maxRetries) throw e;
+            resetForRetry(attempt, "retrying RedisService.__mget");
+            return __mget(prefixed, attempt+1, maxRetries);
+        }
+    }
+
+    private String __mset(String[] keysvalues, int attempt, int maxRetries) {
+        try {
+            try (Jedis redis = getRedis()) {
+                return redis.mset(keysvalues);
+            }
+        } catch (RuntimeException e) {
+            if (attempt > maxRetries) throw e;
+            resetForRetry(attempt, "retrying RedisService.__mset");
+            return __mset(keysvalues, attempt+1, maxRetries);
+        }
+    }
+
+    private Long __delAll(String[] prefixed, int attempt, int maxRetries) {
+        try {
+            try (Jedis redis = getRedis()) {
+                return redis.del(prefixed);
+            }
+        } catch (RuntimeException e) {
+            if (attempt > maxRetries) throw e;
+            resetForRetry(attempt, "retrying RedisService.__delAll");
+            return __delAll(prefixed, attempt+1, maxRetries);
+        }
+    }
+
+    // only retry pipelines whose commands are all idempotent
+    private void __pipeline(Consumer<RedisBatch> batch, int attempt, int maxRetries) {
+        try {
+            try (Jedis redis = getRedis()) {
+                final Pipeline pipeline = redis.pipelined();
+                batch.accept(new RedisBatch(this, pipeline));
+                pipeline.sync();
+            }
+        } catch (RuntimeException e) {
+            if (attempt > maxRetries) throw e;
+            resetForRetry(attempt, "retrying RedisService.__pipeline");
+            __pipeline(batch, attempt+1, maxRetries);
         }
     }
 
     private String __lpop(String data, int attempt, int maxRetries) {
         try {
-            synchronized (redis) {
-                return getRedis().lpop(data);
+            try (Jedis redis = getRedis()) {
+                return redis.lpop(data);
             }
         } catch (RuntimeException e) {
             if (attempt > maxRetries) throw e;
@@ -300,8 +830,8 @@ public class RedisService {
 
     private Long __del(String key, int attempt, int maxRetries) {
         try {
-            synchronized (redis) {
-                return getRedis().del(prefix(key));
+            try (Jedis redis = getRedis()) {
+                return redis.del(prefix(key));
             }
         } catch (RuntimeException e) {
             if (attempt > maxRetries) throw e;
@@ -312,8 +842,8 @@ public class RedisService {
 
     private Long __sadd(String key, String[] members, int attempt, int maxRetries) {
         try {
-            synchronized (redis) {
-                return getRedis().sadd(prefix(key), members);
+            try (Jedis redis = getRedis()) {
+                return redis.sadd(prefix(key), members);
             }
         } catch (RuntimeException e) {
             if (attempt > maxRetries) throw e;
@@ -324,8 +854,8 @@ public class RedisService {
 
     private Long __srem(String key, String[] members, int attempt, int maxRetries) {
         try {
-            synchronized (redis) {
-                return getRedis().srem(prefix(key), members);
+            try (Jedis redis = getRedis()) {
+                return redis.srem(prefix(key), members);
             }
         } catch (RuntimeException e) {
             if (attempt > maxRetries) throw e;
@@ -336,8 +866,8 @@ public class RedisService {
 
     private Set<String> __smembers(String key, int attempt, int maxRetries) {
         try {
-            synchronized (redis) {
-                return getRedis().smembers(prefix(key));
+            try (Jedis redis = getRedis()) {
+                return redis.smembers(prefix(key));
             }
         } catch (RuntimeException e) {
             if (attempt > maxRetries) throw e;
@@ -346,10 +876,22 @@ public class RedisService {
         }
     }
 
+    private boolean __sismember(String key, String member, int attempt, int maxRetries) {
+        try {
+            try (Jedis redis = getRedis()) {
+                return redis.sismember(prefix(key), member);
+            }
+        } catch (RuntimeException e) {
+            if (attempt > maxRetries) throw e;
+            resetForRetry(attempt, "retrying RedisService.__sismember");
+            return __sismember(key, member, attempt+1, maxRetries);
+        }
+    }
+
     private List<String> __srandmember(String key, int count, int attempt, int maxRetries) {
         try {
-            synchronized (redis) {
-                return getRedis().srandmember(prefix(key), count);
+            try (Jedis redis = getRedis()) {
+                return redis.srandmember(prefix(key), count);
             }
         } catch (RuntimeException e) {
             if (attempt > maxRetries) throw e;
@@ -360,8 +902,8 @@ public class RedisService {
 
     private Set<String> __spop(String key, long count, int attempt, int maxRetries) {
         try {
-            synchronized (redis) {
-                return getRedis().spop(prefix(key), count);
+            try (Jedis redis = getRedis()) {
+                return redis.spop(prefix(key), count);
             }
         } catch (RuntimeException e) {
             if (attempt > maxRetries) throw e;
@@ -372,8 +914,8 @@ public class RedisService {
 
     private Long __scard(String key, int attempt, int maxRetries) {
         try {
-            synchronized (redis) {
-                return getRedis().scard(prefix(key));
+            try (Jedis redis = getRedis()) {
+                return redis.scard(prefix(key));
             }
         } catch (RuntimeException e) {
             if (attempt > maxRetries) throw e;
@@ -384,8 +926,8 @@ public class RedisService {
 
     private Long __incrBy(String key, long value, int attempt, int maxRetries) {
         try {
-            synchronized (redis) {
-                return getRedis().incrBy(prefix(key), value);
+            try (Jedis redis = getRedis()) {
+                return redis.incrBy(prefix(key), value);
             }
         } catch (RuntimeException e) {
             if (attempt > maxRetries) throw e;
@@ -396,8 +938,8 @@ public class RedisService {
 
     private Long __decrBy(String key, long value, int attempt, int maxRetries) {
         try {
-            synchronized (redis) {
-                return getRedis().decrBy(prefix(key), value);
+            try (Jedis redis = getRedis()) {
+                return redis.decrBy(prefix(key), value);
             }
         } catch (RuntimeException e) {
             if (attempt > maxRetries) throw e;
@@ -408,15 +950,11 @@ public class RedisService {
 
     private List<String> __list(String key, int attempt, int maxRetries) {
         try {
-            final Long llen;
-            synchronized (redis) {
-                llen = getRedis().llen(prefix(key));
-            }
-            if (llen == null) return null;
-
             final List<String> range;
-            synchronized (redis) {
-                range = getRedis().lrange(prefix(key), 0, llen);
+            try (Jedis redis = getRedis()) {
+                final Long llen = redis.llen(prefix(key));
+                if (llen == null) return null;
+                range = redis.lrange(prefix(key), 0, llen);
             }
             final List<String> list = new ArrayList<>(range.size());
             for (String item : range) list.add(decrypt(item));
@@ -430,26 +968,89 @@ public class RedisService {
         }
     }
 
-    private Collection<String> __keys(String key, int attempt, int maxRetries) {
+    private ScanResult<String> __scan(String cursor, ScanParams params, int attempt, int maxRetries) {
         try {
-            final Set<String> keys;
-            synchronized (redis) {
-                keys = getRedis().keys(prefix(key));
+            try (Jedis redis = getRedis()) {
+                return redis.scan(cursor, params);
             }
-            return keys;
-
         } catch (RuntimeException e) {
             if (attempt > maxRetries) throw e;
-            resetForRetry(attempt, "retrying RedisService.__keys");
-            return __list(key, attempt + 1, maxRetries);
+            resetForRetry(attempt, "retrying RedisService.__scan");
+            return __scan(cursor, params, attempt+1, maxRetries);
         }
     }
 
-    public void flush() {
-        final Collection<String> keys = keys(prefix("*"));
-        for (String key : keys) {
-            del(key);
+    private long unlink(List<String> prefixed) {
+        long deleted = 0;
+        for (int i=0; i<prefixed.size(); i+=UNLINK_CHUNK) {
+            deleted += __unlink(prefixed.subList(i, Math.min(i+UNLINK_CHUNK, prefixed.size())), 0, MAX_RETRIES);
         }
+        return deleted;
+    }
+
+    private long __unlink(List<String> prefixed, int attempt, int maxRetries) {
+        try {
+            try (Jedis redis = getRedis()) {
+                if (unlinkSupported) {
+                    try {
+                        return (Long) redis.eval(UNLINK_SCRIPT, prefixed, Collections.<String>emptyList());
+                    } catch (JedisDataException e) {
+                        // only a server without UNLINK switches us to DEL; any other error is a real failure
+                        if (!isUnknownCommand(e)) throw e;
+                        log.warn("__unlink: UNLINK not supported, falling back to DEL: "+e);
+                        unlinkSupported = false;
+                    }
+                }
+                return redis.del(prefixed.toArray(new String[prefixed.size()]));
+            }
+        } catch (RuntimeException e) {
+            if (attempt > maxRetries) throw e;
+            resetForRetry(attempt, "retrying RedisService.__unlink");
+            return __unlink(prefixed, attempt+1, maxRetries);
+        }
+    }
+
+    /**
+     * Delete every key in this namespace, see deleteMatching
+     */
+    public void flush() { flush(DEFAULT_SCAN_BATCH, 0, null); }
+
+    /**
+     * Delete every key in this namespace, see deleteMatching
+     * @return the number of keys deleted
+     */
+    public long flush(int batchSize, long maxKeysPerSecond, LongConsumer progress) {
+        return deleteMatching("*", batchSize, maxKeysPerSecond, progress);
+    }
+
+    /**
+     * Delete the keys matching a pattern without blocking the server: keys are found with SCAN and each batch
+     * is removed with UNLINK (or DEL, on servers without UNLINK), at most UNLINK_CHUNK keys per call.
+     * @param pattern a glob-style pattern, relative to this service's prefix
+     * @param batchSize the number of keys to ask for per SCAN
+     * @param maxKeysPerSecond if positive, pause between batches to delete no faster than this
+     * @param progress if not null, called after each batch with the total number of keys deleted so far
+     * @return the number of keys deleted
+     */
+    public long deleteMatching(String pattern, int batchSize, long maxKeysPerSecond, LongConsumer progress) {
+        final ScanParams params = scanParams(prefix(pattern), batchSize);
+        final long start = now();
+        long deleted = 0;
+        String cursor = ScanParams.SCAN_POINTER_START;
+        do {
+            final ScanResult<String> page = __scan(cursor, params, 0, MAX_RETRIES);
+            cursor = page.getStringCursor();
+            if (page.getResult().isEmpty()) continue;
+
+            deleted += unlink(page.getResult());
+            if (progress != null) progress.accept(deleted);
+
+            if (maxKeysPerSecond > 0) {
+                final long wait = (1000L * deleted / maxKeysPerSecond) - (now() - start);
+                if (wait > 0) sleep(wait, "deleteMatching: rate limit");
+            }
+        } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+        return deleted;
     }
 
 }
@@ -0,0 +1,85 @@
+package org.cobbzilla.wizard.cache.redis;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+
+import java.util.function.Consumer;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.daemon;
+import static org.cobbzilla.util.system.Sleep.sleep;
+
+/**
+ * A pub/sub subscription to one channel, see RedisService.subscribe.
+ * A subscribed connection cannot run other commands, so this uses its own connection outside the pool, on a
+ * daemon thread, and reconnects if the connection is lost. Messages published while disconnected are lost:
+ * onSubscribe is called on every (re)connect so the subscriber can discard anything it may have missed.
+ */
+@Slf4j
+public class RedisSubscription {
+
+    public static final long RECONNECT_DELAY = 1000;
+
+    private final RedisService redis;
+    @Getter private final String channel;
+    private final Consumer<String> listener;
+    private final Runnable onSubscribe;
+
+    private volatile boolean running = true;
+    private volatile JedisPubSub pubSub;
+
+    RedisSubscription(RedisService redis, String channel, Consumer<String> listener, Runnable onSubscribe) {
+        this.redis = redis;
+        this.channel = channel;
+        this.listener = listener;
+        this.onSubscribe = onSubscribe;
+        daemon(this::run);
+    }
+
+    private void run() {
+        final RedisConfiguration config = redis.getConfiguration().getRedis();
+        while (running) {
+            final JedisPubSub ps = new JedisPubSub() {
+                @Override public void onSubscribe(String ch, int subscribedChannels) {
+                    // closed while we were connecting
+                    if (!running) {
+                        unsubscribe();
+                        return;
+                    }
+                    if (onSubscribe != null) onSubscribe.run();
+                }
+                @Override public void onMessage(String ch, String message) {
+                    try {
+                        listener.accept(redis.decrypt(message));
+                    } catch (Exception e) {
+                        log.warn("onMessage("+channel+"): "+e, e);
+                    }
+                }
+            };
+            pubSub = ps;
+            // no socket timeout: a subscriber waits on the socket indefinitely between messages
+            try (Jedis jedis = new Jedis(config.getHost(), config.getPort(), config.getTimeout(), 0)) {
+                // blocks until unsubscribed or the connection fails
+                jedis.subscribe(ps, redis.prefix(channel));
+            } catch (Exception e) {
+                if (!running) break;
+                log.warn("run("+channel+"): subscription failed, reconnecting: "+e);
+                sleep(RECONNECT_DELAY, "RedisSubscription: reconnecting");
+            }
+        }
+    }
+
+    public boolean isRunning() { return running; }
+
+    public void close() {
+        running = false;
+        final JedisPubSub ps = pubSub;
+        if (ps != null && ps.isSubscribed()) {
+            try { ps.unsubscribe(); } catch (Exception e) {
+                log.warn("close("+channel+"): error unsubscribing: "+e);
+            }
+        }
+    }
+
+}
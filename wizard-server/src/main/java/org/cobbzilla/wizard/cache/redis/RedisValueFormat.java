@@ -0,0 +1,72 @@
+package org.cobbzilla.wizard.cache.redis;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+
+/**
+ * The binary layout of values written by a RedisCodec (before encryption): one format byte, then the encoded
+ * value, deflated if it was at least the compression threshold.
+ */
+class RedisValueFormat {
+
+    static final byte RAW = 0;
+    static final byte DEFLATE = 1;
+
+    static byte[] frame(byte[] encoded, int compressionThreshold) {
+        final boolean compress = compressionThreshold > 0 && encoded.length >= compressionThreshold;
+        final byte[] data = compress ? deflate(encoded) : encoded;
+        final byte[] framed = new byte[data.length + 1];
+        framed[0] = compress ? DEFLATE : RAW;
+        System.arraycopy(data, 0, framed, 1, data.length);
+        return framed;
+    }
+
+    static byte[] unframe(byte[] framed) {
+        if (framed.length == 0) return die("unframe: empty value");
+        final byte[] data = Arrays.copyOfRange(framed, 1, framed.length);
+        switch (framed[0]) {
+            case RAW:     return data;
+            case DEFLATE: return inflate(data);
+            default:      return die("unframe: unknown format: "+framed[0]);
+        }
+    }
+
+    private static byte[] deflate(byte[] data) {
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+            final byte[] buf = new byte[8192];
+            while (!deflater.finished()) out.write(buf, 0, deflater.deflate(buf));
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data) {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 3);
+            final byte[] buf = new byte[8192];
+            while (!inflater.finished()) {
+                final int n = inflater.inflate(buf);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) return die("inflate: truncated value");
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            return die("inflate: "+e, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+}
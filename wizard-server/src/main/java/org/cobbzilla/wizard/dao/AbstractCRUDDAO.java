@@ -9,20 +9,31 @@ import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.cobbzilla.util.reflect.ReflectionUtil;
 import org.cobbzilla.wizard.api.CrudOperation;
+import org.cobbzilla.wizard.dao.AuditLogWriter.PendingAudit;
+import org.cobbzilla.wizard.dao.cache.CacheDependencyIndex;
+import org.cobbzilla.wizard.dao.cache.DAOCacheConfiguration;
+import org.cobbzilla.wizard.dao.cache.ObjectCache;
+import org.cobbzilla.wizard.dao.cache.ObjectCacheStats;
 import org.cobbzilla.wizard.model.AuditLog;
 import org.cobbzilla.wizard.model.Identifiable;
+import org.cobbzilla.wizard.server.config.DatabaseConfiguration;
+import org.cobbzilla.wizard.server.config.HasAuditLogConfiguration;
+import org.cobbzilla.wizard.server.config.HasDatabaseConfiguration;
+import org.cobbzilla.wizard.server.config.RestServerConfiguration;
 import org.hibernate.FlushMode;
+import org.hibernate.Session;
 import org.hibernate.criterion.Criterion;
 import org.hibernate.criterion.DetachedCriteria;
 import org.hibernate.criterion.Order;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.orm.hibernate4.HibernateTemplate;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.validation.Valid;
 import javax.validation.constraints.NotNull;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
@@ -31,7 +42,9 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static org.cobbzilla.util.daemon.ZillaRuntime.*;
 import static org.cobbzilla.util.json.JsonUtil.toJsonOrDie;
 import static org.cobbzilla.util.reflect.ReflectionUtil.*;
+import static org.cobbzilla.util.security.ShaUtil.sha256_hex;
 import static org.cobbzilla.util.time.TimeUtil.formatDuration;
+import static org.cobbzilla.wizard.dao.cache.CacheDependencyIndex.*;
 import static org.hibernate.criterion.Restrictions.*;
 
 @Transactional @Slf4j
@@ -42,6 +55,20 @@ public abstract class AbstractCRUDDAO<E extends Identifiable> extends AbstractDA
     public <A extends AuditLog> AuditLogDAO<A> getAuditLogDAO() { return null; }
     public boolean auditingEnabled () { return getAuditLogDAO() != null; }
 
+    /**
+     * @return how audit logs are written: sync (in the entity's transaction, the default), or after_commit/best_effort
+     * (queued after the transaction commits and written in batches by the AuditLogDAO's AuditLogWriter)
+     */
+    protected AuditDurability getAuditDurability () {
+        return configuration instanceof HasAuditLogConfiguration
+                ? ((HasAuditLogConfiguration) configuration).getAuditDurability()
+                : AuditDurability.sync;
+    }
+    protected boolean auditAsync () {
+        final AuditDurability durability = getAuditDurability();
+        return durability != null && durability.isAsync();
+    }
+
     @Transactional(readOnly=true)
     @Override public List<E> findAll() { return list(criteria()); }
 
@@ -69,39 +96,84 @@ public abstract class AbstractCRUDDAO<E extends Identifiable> extends AbstractDA
 
     protected String subCacheAttribute () { return null; }
 
+    /**
+     * Fields whose values determine which cached lookups an entity can appear in. When non-null, a write evicts
+     * only the cache keys whose results referenced the written entity's uuid or one of its values for these fields,
+     * plus any keys whose results could not be attributed to an entity (null, empty or non-entity results).
+     * Only override this when every cached collection lookup selects rows by equality on some of these fields.
+     * @return the dependency fields, or null to flush the whole (sub)cache on every write
+     */
+    protected String[] cacheDependencyFields () { return null; }
+
+    /**
+     * @deprecated the object cache is no longer a map of maps: use getObjectCache, getObjectCacheStats or
+     * flushObjectCache. For existing callers, the map is an always-empty view (every lookup misses, puts throw
+     * UnsupportedOperationException), and clearing it or setting the reference flushes the cache as before.
+     */
+    @Deprecated public AtomicReference<Map<String, Object>> getOcache() { return legacyOcache; }
+
+    private final AtomicReference<Map<String, Object>> legacyOcache = new AtomicReference<Map<String, Object>>(new LegacyOcacheView()) {
+        @Override public void set(Map<String, Object> ignored) { flushObjectCache(); }
+    };
+
+    private class LegacyOcacheView extends AbstractMap<String, Object> {
+        @Override public Set<Entry<String, Object>> entrySet() { return Collections.emptySet(); }
+        @Override public void clear() { flushObjectCache(); }
+    }
+
     public boolean flushObjectCache() {
-        synchronized (ocache) {
-            if (empty(ocache.get())) {
-                return false;
-            } else {
-                ocache.set(new ConcurrentHashMap<>());
-                return true;
-            }
-        }
+        cacheEpoch.incrementAndGet();
+        cacheLoads.clear();
+        cacheDependencyIndex.clear();
+        return getObjectCache().clear();
     }
 
     public void flushObjectCache(E entity) {
-        synchronized (ocache) {
-            if (empty(ocache.get())) return;
+        // bumped before evicting, so a lookup that loaded before this write does not cache its result afterwards
+        cacheEpoch.incrementAndGet();
+        // lookups started from now on must not share the result of a load that began before this write
+        cacheLoads.clear();
+        final ObjectCache<String, Object> cache = getObjectCache();
+
+        final String[] dependencyFields = cacheDependencyFields();
+        if (dependencyFields != null) {
+            final Set<String> deps = new HashSet<>();
+            addCacheDependencies(deps, entity, dependencyFields);
+            final Set<String> keys = cacheDependencyIndex.invalidate(deps);
+            for (String key : keys) cache.remove(key);
+            if (log.isDebugEnabled()) log.debug("flushObjectCache("+getClass().getSimpleName()+"): invalidated "+keys.size()+" keys for "+entity.getUuid());
+            return;
+        }
 
-            final String subCacheAttr = subCacheAttribute();
-            final Object val = (subCacheAttr != null) ? ReflectionUtil.get(entity, subCacheAttr) : null;
+        final String subCacheAttr = subCacheAttribute();
+        final Object val = (subCacheAttr != null) ? ReflectionUtil.get(entity, subCacheAttr) : null;
+
+        if (val != null) {
+            final String subPrefix = cacheKeyPrefix(val.toString());
+            final String globalPrefix = cacheKeyPrefix(NO_SUB_KEY);
+            cache.removeIf(k -> k.startsWith(subPrefix) || k.startsWith(globalPrefix));
+        } else {
+            cache.clear();
+        }
+    }
 
-            if (val != null) {
-                Map<Object, Object> subCache = (Map<Object, Object>) ocache.get().get(val);
-                if (subCache != null && !subCache.isEmpty()) {
-                    subCache = new ConcurrentHashMap<>();
-                    ocache.get().put(val.toString(), subCache);
-                }
-            } else {
-                ocache.set(new ConcurrentHashMap<>());
-            }
+    private void addCacheDependencies(Set<String> deps, Identifiable entity, String[] dependencyFields) {
+        if (entity.getUuid() != null) deps.add(uuidDependency(entity.getUuid()));
+        for (String field : dependencyFields) deps.add(fieldDependency(field, ReflectionUtil.get(entity, field)));
+    }
 
-            final Map globalCache = (Map) ocache.get().get(NO_SUB_KEY);
-            if (!empty(globalCache)) {
-                ocache.get().put(NO_SUB_KEY, new ConcurrentHashMap<>());
+    private Set<String> cacheDependencies(Object thing, String[] dependencyFields) {
+        final Set<String> deps = new HashSet<>();
+        if (thing instanceof Identifiable) {
+            addCacheDependencies(deps, (Identifiable) thing, dependencyFields);
+        } else if (thing instanceof Collection) {
+            for (Object element : (Collection) thing) {
+                if (!(element instanceof Identifiable)) return Collections.singleton(UNKNOWN);
+                addCacheDependencies(deps, (Identifiable) element, dependencyFields);
             }
         }
+        if (deps.isEmpty()) deps.add(UNKNOWN);
+        return deps;
     }
 
     @Override public E postCreate(E entity, Object context) {
@@ -158,30 +230,146 @@ public abstract class AbstractCRUDDAO<E extends Identifiable> extends AbstractDA
         final E found = get(checkNotNull(uuid));
         setFlushMode();
         if (found != null) {
-            final AuditLog auditLog = auditingEnabled() ? audit_delete(found) : null;
+            final boolean async = auditingEnabled() && auditAsync();
+            final PendingAudit pending = async ? pendingAudit(found, null, CrudOperation.delete) : null;
+            final AuditLog auditLog = auditingEnabled() && !async ? audit_delete(found) : null;
             getHibernateTemplate().delete(found);
             getHibernateTemplate().flush();
             flushObjectCache(found);
             if (auditLog != null) commit_audit_delete(auditLog);
+            if (pending != null) enqueueAudits(Collections.singletonList(pending));
         }
     }
 
-    @Override public void delete(Collection<E> entities) {
-        if (empty(entities)) return;
+    public static final int DEFAULT_BULK_BATCH_SIZE = 50;
+
+    /**
+     * @return how many rows the bulk write methods send before flushing and clearing the session.
+     * Defaults to the configured hibernate.jdbcBatchSize if set, so each flush is a single JDBC batch per statement type
+     */
+    protected int getBulkBatchSize() {
+        if (configuration instanceof HasDatabaseConfiguration) {
+            final DatabaseConfiguration db = ((HasDatabaseConfiguration) configuration).getDatabase();
+            if (db != null && db.getHibernate() != null && db.getHibernate().hasJdbcBatchSize()) return db.getHibernate().getJdbcBatchSize();
+        }
+        return DEFAULT_BULK_BATCH_SIZE;
+    }
+
+    /**
+     * Called on each entity by the bulk write methods, in place of the preCreate/preUpdate hooks
+     * @param entity the entity about to be written
+     * @return the entity to write
+     */
+    protected E prepareForBulkWrite(E entity) { return entity; }
+
+    @Getter private final BulkWriteStats bulkWriteStats = new BulkWriteStats();
+
+    private Session currentSession() { return getHibernateTemplate().getSessionFactory().getCurrentSession(); }
+
+    private void bulkFlush(Session session, boolean clear) {
+        final long start = now();
+        session.flush();
+        if (clear) session.clear();
+        bulkWriteStats.flushed(now() - start);
+    }
+
+    private void flushObjectCache(Collection<E> entities) {
+        if (cacheDependencyFields() == null && subCacheAttribute() == null) {
+            flushObjectCache();
+        } else {
+            for (E e : entities) flushObjectCache(e);
+        }
+    }
+
+    /**
+     * Create many entities using JDBC batching: the session is flushed and cleared every getBulkBatchSize() rows,
+     * and audit logs (if enabled) are written in bulk after all entities are saved (or queued, see getAuditDurability).
+     * The preCreate/postCreate hooks are NOT called, use prepareForBulkWrite instead.
+     * Anything else in the current session is detached when the session is cleared.
+     * @param entities the entities to create
+     * @return the created entities
+     */
+    public List<E> createAll(Collection<E> entities) {
+        if (empty(entities)) return new ArrayList<>();
+        final long start = now();
+        final int batchSize = getBulkBatchSize();
         setFlushMode();
-        final List<AuditLog> logs = auditingEnabled() ? new ArrayList<>() : null;
-        if (logs != null) {
-            for (E e : entities) {
-                logs.add(audit_delete(checkNotNull(e)));
-            }
+        final Session session = currentSession();
+        final List<PendingAudit> audits = auditingEnabled() ? new ArrayList<>(entities.size()) : null;
+        final List<E> created = new ArrayList<>(entities.size());
+        for (E entity : entities) {
+            checkNotNull(entity).beforeCreate();
+            entity = prepareForBulkWrite(entity);
+            session.save(entity);
+            created.add(entity);
+            if (audits != null) audits.add(pendingAudit(null, entity, CrudOperation.create));
+            if (created.size() % batchSize == 0) bulkFlush(session, true);
         }
-        getHibernateTemplate().deleteAll(entities);
-        getHibernateTemplate().flush();
-        if (logs != null) {
-            for (AuditLog log : logs) {
-                commit_audit_delete(log);
+        bulkFlush(session, true);
+        if (audits != null) writeAudits(audits);
+        flushObjectCache(created);
+        bulkWriteStats.created(created.size(), now() - start);
+        return created;
+    }
+
+    /**
+     * Update many entities using JDBC batching. Current rows are loaded with chunked IN-queries (for auditing and
+     * so merge does not select each row), and the session is flushed and cleared every getBulkBatchSize() rows.
+     * The preUpdate/postUpdate hooks are NOT called, use prepareForBulkWrite instead.
+     * Anything else in the current session is detached when the session is cleared.
+     * @param entities the entities to update
+     * @return the updated entities
+     */
+    public List<E> updateAll(Collection<E> entities) {
+        if (empty(entities)) return new ArrayList<>();
+        final long start = now();
+        final int batchSize = getBulkBatchSize();
+        setFlushMode();
+        final Session session = currentSession();
+        final List<PendingAudit> audits = auditingEnabled() ? new ArrayList<>(entities.size()) : null;
+        final List<E> updated = new ArrayList<>(entities.size());
+        final List<E> toUpdate = new ArrayList<>(entities);
+        for (int i = 0; i < toUpdate.size(); i += batchSize) {
+            final List<E> chunk = toUpdate.subList(i, Math.min(i + batchSize, toUpdate.size()));
+            final Map<String, E> existing = new HashMap<>();
+            for (E e : list(criteria().add(in("uuid", toUuidList(chunk))))) existing.put(e.getUuid(), e);
+
+            for (E entity : chunk) {
+                checkNotNull(entity).beforeUpdate();
+                entity = prepareForBulkWrite(entity);
+                if (audits != null) audits.add(pendingAudit(existing.get(entity.getUuid()), entity, CrudOperation.update));
+                updated.add((E) session.merge(entity));
             }
+            bulkFlush(session, true);
+        }
+        if (audits != null) writeAudits(audits);
+        flushObjectCache(updated);
+        bulkWriteStats.updated(updated.size(), now() - start);
+        return updated;
+    }
+
+    /**
+     * Delete many entities using JDBC batching, flushing and clearing the session every getBulkBatchSize() rows.
+     * Audit logs (if enabled) are written in bulk after all entities are deleted.
+     * @param entities the entities to delete
+     */
+    public void deleteAll(Collection<E> entities) {
+        if (empty(entities)) return;
+        final long start = now();
+        final int batchSize = getBulkBatchSize();
+        setFlushMode();
+        final Session session = currentSession();
+        final List<PendingAudit> audits = auditingEnabled() ? new ArrayList<>(entities.size()) : null;
+        int count = 0;
+        for (E entity : entities) {
+            if (audits != null) audits.add(pendingAudit(checkNotNull(entity), null, CrudOperation.delete));
+            session.delete(checkNotNull(entity));
+            if (++count % batchSize == 0) bulkFlush(session, true);
         }
+        bulkFlush(session, true);
+        if (audits != null) writeAudits(audits);
+        flushObjectCache(entities);
+        bulkWriteStats.deleted(count, now() - start);
     }
 
     @Transactional(readOnly=true)
@@ -322,12 +510,33 @@ public abstract class AbstractCRUDDAO<E extends Identifiable> extends AbstractDA
         return list(sort(criteria().add(and(expr1, expr2, expr3, expr4))), 0, getFinderMaxResults());
     }
 
-    @Getter private final AtomicReference<Map<String, Object>> ocache = new AtomicReference<>(new ConcurrentHashMap<>());
+    @Autowired(required=false) private RestServerConfiguration configuration;
+
+    @Getter(lazy=true) private final DAOCacheConfiguration objectCacheConfig = initObjectCacheConfig();
+    private DAOCacheConfiguration initObjectCacheConfig() {
+        return configuration == null ? new DAOCacheConfiguration() : configuration.getDaoCacheConfiguration(getClass().getSimpleName());
+    }
+
+    @Getter(lazy=true) private final ObjectCache<String, Object> objectCache = initObjectCache();
+    private ObjectCache<String, Object> initObjectCache() {
+        final DAOCacheConfiguration config = getObjectCacheConfig();
+        final ObjectCache<String, Object> cache = instantiate(config.getEngine());
+        cache.setRemovalListener(cacheDependencyIndex::remove);
+        return cache.init(config);
+    }
+
+    public ObjectCacheStats getObjectCacheStats() { return getObjectCache().getStats(); }
+
+    @Getter private final CacheDependencyIndex cacheDependencyIndex = new CacheDependencyIndex();
+
+    // incremented by every invalidation; lookups only cache what they loaded if it has not changed since they started
+    private final AtomicLong cacheEpoch = new AtomicLong(0);
 
     private static final Object NULL_OBJECT = new Object();
-    private static final AtomicInteger cacheHits = new AtomicInteger(0);
-    private static final AtomicInteger cacheMisses = new AtomicInteger(0);
-    private static final AtomicLong cacheMissTime = new AtomicLong(0);
+    private static final String CACHE_KEY_SEP = ":";
+    private final Map<String, CompletableFuture<Object>> cacheLoads = new ConcurrentHashMap<>();
+
+    private static String cacheKeyPrefix(String cacheSubKey) { return cacheSubKey + CACHE_KEY_SEP; }
 
     @Transactional(readOnly=true)
     public <T> T cacheLookup(String cacheKey, Function<Object[], T> lookup, Object... args) {
@@ -336,37 +545,219 @@ public abstract class AbstractCRUDDAO<E extends Identifiable> extends AbstractDA
 
     @Transactional(readOnly=true)
     public <T> T cacheLookup(String cacheKey, String cacheSubKey, Function<Object[], T> lookup, Object... args) {
-        final String subCacheAttr = subCacheAttribute();
-        final Map<String, Object> c;
-        synchronized (ocache) {
-            c = subCacheAttr == null ? ocache.get() : (Map<String, Object>) ocache.get().computeIfAbsent(cacheSubKey, o -> new ConcurrentHashMap<String, Object>());
+        if (!getObjectCacheConfig().isEnabled()) return lookup.apply(args);
+
+        final ObjectCache<String, Object> c = getObjectCache();
+        final boolean readOnly = isObjectCacheReadOnly();
+        final String key = cacheKeyPrefix(subCacheAttribute() == null ? NO_SUB_KEY : cacheSubKey) + cacheKey;
+
+        Object thing = c.get(key);
+        if (thing != null) {
+            c.getStats().hit();
+            return readOnly ? cacheShare((T) thing) : cacheCopy((T) thing);
+        }
+
+        // single-flight: the first caller for a key loads it, concurrent callers for the same key wait on its
+        // result, and callers for other keys are never blocked
+        final CompletableFuture<Object> load = new CompletableFuture<>();
+        final CompletableFuture<Object> inFlight = cacheLoads.putIfAbsent(key, load);
+        if (inFlight != null) {
+            try {
+                thing = inFlight.join();
+            } catch (Exception e) {
+                return die("cacheLookup: shared lookup failed: "+e, e);
+            }
+            c.getStats().sharedLoad();
+            return readOnly ? cacheShare((T) thing) : cacheCopy((T) thing);
+        }
+
+        try {
+            // another caller may have finished loading between our get and putIfAbsent
+            thing = c.get(key);
+            if (thing == null) {
+                final long epoch = cacheEpoch.get();
+                final long start = now();
+                final T found = lookup.apply(args);
+                c.getStats().miss(now() - start);
+
+                thing = found == null ? NULL_OBJECT : readOnly ? cacheFreeze(found) : found;
+                final String[] dependencyFields = cacheDependencyFields();
+                cachePut(key, thing, dependencyFields == null ? null : cacheDependencies(found, dependencyFields), epoch);
+
+                if (c.getStats().getMisses() % 1000 == 0) {
+                    log.info("DAO-cache("+getClass().getSimpleName()+"): "+c.getStats()+", size="+c.size()
+                            +", saved "+formatDuration(c.getStats().getHits()*c.getStats().getAverageMissTime()));
+                }
+            }
+            load.complete(thing);
+
+        } catch (Exception e) {
+            load.completeExceptionally(e);
+            return die("cacheLookup: lookup failed: "+e, e);
+
+        } finally {
+            cacheLoads.remove(key, load);
+        }
+        return readOnly ? cacheShare((T) thing) : cacheCopy((T) thing);
+    }
+
+    /**
+     * Cache a loaded value, unless the cache was invalidated after the load started (at epoch).
+     * Invalidations bump the epoch before evicting, so checking again after the put catches one that raced with it.
+     * @param dependencies the value's dependencies, or null if this DAO does not track them
+     * @return true if the value was cached
+     */
+    private boolean cachePut(String key, Object thing, Collection<String> dependencies, long epoch) {
+        if (cacheEpoch.get() != epoch) return false;
+        final ObjectCache<String, Object> c = getObjectCache();
+        c.put(key, thing);
+        if (dependencies != null) cacheDependencyIndex.register(key, dependencies);
+        if (cacheEpoch.get() != epoch) {
+            c.remove(key);
+            cacheDependencyIndex.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    public static final String CACHE_KEY_UUID = "uuid/";
+    // within the bind-parameter and IN-list limits of every common dialect (SQLite allows 999, Oracle 1000)
+    public static final int DEFAULT_MULTI_GET_CHUNK = 500;
+
+    /**
+     * Fetch many entities by uuid. Whatever is in the object cache is served from there; the rest is fetched
+     * with IN-queries of getMultiGetChunkSize() uuids each, and then cached.
+     * @param uuids the uuids to find
+     * @return a Map of uuid to entity, in the iteration order of uuids. uuids that were not found are not in the Map
+     */
+    @Transactional(readOnly=true)
+    public Map<String, E> getMany(Collection<String> uuids) {
+        final Map<String, E> results = new LinkedHashMap<>();
+        if (empty(uuids)) return results;
+
+        final boolean useCache = getObjectCacheConfig().isEnabled();
+        final ObjectCache<String, Object> c = getObjectCache();
+        final boolean readOnly = isObjectCacheReadOnly();
+        final String prefix = cacheKeyPrefix(NO_SUB_KEY) + CACHE_KEY_UUID;
+
+        final Map<String, Object> found = new HashMap<>();
+        final Set<String> missing = new LinkedHashSet<>();
+        for (String uuid : uuids) {
+            if (uuid == null || found.containsKey(uuid) || missing.contains(uuid)) continue;
+            final Object thing = useCache ? c.get(prefix + uuid) : null;
+            if (thing != null) {
+                c.getStats().hit();
+                found.put(uuid, thing);
+            } else {
+                missing.add(uuid);
+            }
         }
-        if (!c.containsKey(cacheKey)) {
-            synchronized (c) {
-                if (!c.containsKey(cacheKey)) {
-                    final long start = now();
-                    final T thing;
-                    try {
-                        thing = lookup.apply(args);
-                    } catch (Exception e) {
-                        return die("cacheLookup: lookup failed: "+e, e);
-                    }
-                    final long end = now();
-                    int misses = cacheMisses.incrementAndGet();
-                    long missTime = cacheMissTime.addAndGet(end - start);
-                    if (misses % 1000 == 0) log.info("DAO-cache: "+misses+" misses took "+cacheMissTime + " to look up, average of "+(missTime/misses)+"ms per lookup");
 
-                    c.put(cacheKey, thing == null ? NULL_OBJECT : thing);
+        if (!missing.isEmpty()) {
+            final String[] dependencyFields = cacheDependencyFields();
+            final int chunkSize = getMultiGetChunkSize();
+            final List<String> toFetch = new ArrayList<>(missing);
+            for (int i = 0; i < toFetch.size(); i += chunkSize) {
+                final List<String> chunk = toFetch.subList(i, Math.min(i + chunkSize, toFetch.size()));
+                final long epoch = cacheEpoch.get();
+                final long start = now();
+                final List<E> fetched = list(criteria().add(in("uuid", chunk)));
+                final long elapsed = now() - start;
+
+                final Set<String> notFound = new HashSet<>(chunk);
+                for (E entity : fetched) {
+                    notFound.remove(entity.getUuid());
+                    if (useCache) {
+                        final Object thing = readOnly ? cacheFreeze(entity) : entity;
+                        cachePut(prefix + entity.getUuid(), thing, dependencyFields == null ? null : cacheDependencies(entity, dependencyFields), epoch);
+                        found.put(entity.getUuid(), thing);
+                    } else {
+                        found.put(entity.getUuid(), entity);
+                    }
+                }
+                if (useCache) {
+                    for (String uuid : notFound) {
+                        cachePut(prefix + uuid, NULL_OBJECT, dependencyFields == null ? null : Collections.singleton(UNKNOWN), epoch);
+                    }
+                    c.getStats().miss(chunk.size(), elapsed);
                 }
             }
         }
-        return getOrNull(cacheKey, c);
+
+        for (String uuid : uuids) {
+            if (uuid == null || results.containsKey(uuid)) continue;
+            final Object thing = found.get(uuid);
+            if (thing == null || thing == NULL_OBJECT) continue;
+            results.put(uuid, useCache ? (readOnly ? cacheShare((E) thing) : cacheCopy((E) thing)) : (E) thing);
+        }
+        return results;
+    }
+
+    /**
+     * @return how many uuids to put in each IN-query for getMany. Override to use larger chunks on databases
+     * that allow them
+     */
+    protected int getMultiGetChunkSize() { return DEFAULT_MULTI_GET_CHUNK; }
+
+    /**
+     * When true, cached values are frozen once when stored (collections become unmodifiable snapshots, entities
+     * are mirrored) and every hit returns the same shared instance instead of a deep copy.
+     * Callers of cacheLookup MUST NOT modify what they get back; see DAOCacheConfiguration.verifyReadOnly
+     * to detect callers that do.
+     * @return true if this DAO's object cache is read-only
+     */
+    protected boolean isObjectCacheReadOnly() { return getObjectCacheConfig().isReadOnly(); }
+
+    // a read-only cached value with the fingerprint it had when stored, used when verifyReadOnly is enabled
+    private static class VerifiedValue {
+        final Object value;
+        final String fingerprint;
+        VerifiedValue(Object value) { this.value = value; this.fingerprint = fingerprint(value); }
+        static String fingerprint(Object value) { return sha256_hex(toJsonOrDie(value)); }
+    }
+
+    private <T> T cacheShare(T thing) {
+        if (thing == NULL_OBJECT) return null;
+        if (thing instanceof VerifiedValue) {
+            final VerifiedValue verified = (VerifiedValue) thing;
+            if (!VerifiedValue.fingerprint(verified.value).equals(verified.fingerprint)) {
+                return die("cacheShare("+getClass().getSimpleName()+"): a caller modified a read-only cached "
+                        + verified.value.getClass().getSimpleName()+", flush the cache and fix the caller");
+            }
+            return (T) verified.value;
+        }
+        return thing;
     }
 
-    private <T> T getOrNull(String cacheKey, Map<String, Object> c) {
-        int hits = cacheHits.incrementAndGet();
-        if (hits % 1000 == 0) log.info("DAO-cache: "+hits+" cache hits, saved "+formatDuration(hits*(cacheMissTime.get()/cacheMisses.get())));
-        return cacheCopy((T) c.get(cacheKey));
+    private Object cacheFreeze(Object thing) {
+        final Object frozen = freeze(thing);
+        return getObjectCacheConfig().isVerifyReadOnly() && !empty(frozen) ? new VerifiedValue(frozen) : frozen;
+    }
+
+    private Object freeze(Object thing) {
+        if (empty(thing)) return thing;
+        try {
+            if (thing instanceof List) {
+                final List<Object> frozen = new ArrayList<>(((List) thing).size());
+                for (Object element : (List) thing) frozen.add(freeze(element));
+                return Collections.unmodifiableList(frozen);
+
+            } else if (thing instanceof Set) {
+                final Set<Object> frozen = new LinkedHashSet<>();
+                for (Object element : (Set) thing) frozen.add(freeze(element));
+                return Collections.unmodifiableSet(frozen);
+
+            } else if (thing instanceof Collection) {
+                final List<Object> frozen = new ArrayList<>(((Collection) thing).size());
+                for (Object element : (Collection) thing) frozen.add(freeze(element));
+                return Collections.unmodifiableCollection(frozen);
+
+            } else {
+                return mirror(thing);
+            }
+        } catch (Exception e) {
+            return die("cacheFreeze: error copying: " + thing + ": " + e, e);
+        }
     }
 
     private <T> T cacheCopy(T thing) {
@@ -400,30 +791,63 @@ public abstract class AbstractCRUDDAO<E extends Identifiable> extends AbstractDA
     public void refresh(E entity) { getHibernateTemplate().getSessionFactory().getCurrentSession().refresh(entity); }
 
     private static final String PROP_AUDIT_LOG = "__auditLog";
+    private static final String PROP_PENDING_AUDIT = "__pendingAudit";
 
     private Object audit(E prevEntity, E newEntity, CrudOperation operation) {
 
         if (newEntity == null) die("audit("+operation.name()+"): newEntity cannot be null");
 
-        AuditLog auditLog = getAuditLogDAO().newEntity()
-                .setEntityType(getEntityClass().getName())
-                .setEntityUuid(newEntity.getUuid())
-                .setOperation(operation)
-                .setPrevState(prevEntity == null ? null : toJsonOrDie(toMap(prevEntity)))
-                .setNewState(toJsonOrDie(toMap(newEntity, getAuditFields(), getAuditExcludeFields())));
-
-        auditLog = getAuditLogDAO().create(auditLog);
-
         final Map<String, Object> ctx = new HashMap<>();
-        ctx.put(PROP_AUDIT_LOG, auditLog);
+        if (auditAsync()) {
+            // snapshot the states now, the audit log is queued in postCreate/postUpdate
+            ctx.put(PROP_PENDING_AUDIT, pendingAudit(prevEntity, newEntity, operation));
+        } else {
+            ctx.put(PROP_AUDIT_LOG, getAuditLogDAO().create(newAuditLog(prevEntity, newEntity, operation)));
+        }
         return ctx;
     }
 
+    private AuditLog newAuditLog(E prevEntity, E newEntity, CrudOperation operation) {
+        return pendingAudit(prevEntity, newEntity, operation).toAuditLog();
+    }
+
+    // captures entity states, serialized now so later changes to the entity do not leak into the audit log
+    private PendingAudit pendingAudit(E prevEntity, E newEntity, CrudOperation operation) {
+        final E entity = newEntity != null ? newEntity : prevEntity;
+        final AuditLog auditLog = getAuditLogDAO().newEntity()
+                .setEntityType(getEntityClass().getName())
+                .setEntityUuid(entity.getUuid())
+                .setOperation(operation);
+        return new PendingAudit(auditLog,
+                prevEntity == null ? null : toMap(prevEntity),
+                newEntity == null ? null : toMap(newEntity, getAuditFields(), getAuditExcludeFields()));
+    }
+
+    private void writeAudits(List<PendingAudit> audits) {
+        if (auditAsync()) {
+            enqueueAudits(audits);
+        } else {
+            final List<AuditLog> auditLogs = new ArrayList<>(audits.size());
+            for (PendingAudit pending : audits) auditLogs.add(pending.toAuditLog().setSuccess(true));
+            getAuditLogDAO().createAll((Collection) auditLogs);
+        }
+    }
+
+    private void enqueueAudits(List<PendingAudit> audits) {
+        for (PendingAudit pending : audits) pending.success();
+        getAuditLogDAO().getWriter().enqueueAfterCommit(audits, getAuditDurability());
+    }
+
     protected String[] getAuditFields() { return null; }
     protected String[] getAuditExcludeFields() { return null; }
 
     private E commit_audit(E entity, Object context) {
         final Map<String, Object> ctx = (Map<String, Object>) context;
+        final PendingAudit pending = (PendingAudit) ctx.get(PROP_PENDING_AUDIT);
+        if (pending != null) {
+            enqueueAudits(Collections.singletonList(pending));
+            return entity;
+        }
         final AuditLog auditLog = (AuditLog) ctx.get(PROP_AUDIT_LOG);
         auditLog.setSuccess(true);
         getAuditLogDAO().update(auditLog);
@@ -431,14 +855,7 @@ public abstract class AbstractCRUDDAO<E extends Identifiable> extends AbstractDA
     }
 
     private AuditLog audit_delete(E found) {
-        AuditLog auditLog = getAuditLogDAO().newEntity()
-                .setEntityType(getEntityClass().getName())
-                .setEntityUuid(found.getUuid())
-                .setOperation(CrudOperation.delete)
-                .setPrevState(toJsonOrDie(toMap(found)))
-                .setNewState(null);
-
-        return getAuditLogDAO().create(auditLog);
+        return getAuditLogDAO().create(newAuditLog(found, null, CrudOperation.delete));
     }
 
     private void commit_audit_delete(AuditLog auditLog) {
@@ -5,11 +5,17 @@ package org.cobbzilla.wizard.dao;
  * https://github.com/dropwizard/dropwizard/blob/master/LICENSE
  */
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.util.collection.ArrayUtil;
 import org.cobbzilla.util.collection.NameAndValue;
 import org.cobbzilla.util.reflect.ReflectionUtil;
 import org.cobbzilla.util.string.StringUtil;
+import org.cobbzilla.wizard.dao.cache.DAOCacheConfiguration;
+import org.cobbzilla.wizard.dao.cache.LruObjectCache;
+import org.cobbzilla.wizard.dao.cache.ObjectCache;
 import org.cobbzilla.wizard.model.Identifiable;
 import org.cobbzilla.wizard.model.IdentifiableBase;
 import org.cobbzilla.wizard.model.search.ResultPage;
@@ -24,21 +30,26 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.orm.hibernate4.HibernateTemplate;
 
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static org.cobbzilla.util.daemon.ZillaRuntime.die;
 import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
 import static org.cobbzilla.util.daemon.ZillaRuntime.notSupported;
 import static org.cobbzilla.util.reflect.ReflectionUtil.instantiate;
+import static org.cobbzilla.wizard.resources.ResourceUtil.invalidEx;
 
 /**
  * An abstract base class for Hibernate DAO classes.
  *
  * @param <E> the class which this DAO manages
  */
+@Slf4j
 public abstract class AbstractDAO<E extends Identifiable> implements DAO<E> {
 
     @Autowired @Getter @Setter private HibernateTemplate hibernateTemplate;
@@ -131,35 +142,111 @@ public abstract class AbstractDAO<E extends Identifiable> implements DAO<E> {
     }
 
     /**
-     * Apply a filter and continue querying the database until maxResults or end of query results
+     * Apply a filter and continue reading query results until maxResults are accepted or results are exhausted
      *
      * @param criteria the {@link Criteria} query to run
-     * @param firstResult the first result number (skip results before this)
+     * @param firstResult the number of accepted results to skip
      * @param maxResults the maximum number of results
      * @param filter An object implementing the EntityFilter interface
-     * @return the list of matched query results
-     * @see Criteria#list()
+     * @return the list of matched query results, or null if the query returned nothing at all
+     * @see #filteredList(DetachedCriteria, int, int, EntityFilter)
      */
-    @SuppressWarnings("unchecked")
     protected List<E> list(DetachedCriteria criteria, int firstResult, int maxResults, EntityFilter<E> filter) throws HibernateException {
-        final List<E> results = new ArrayList<>();
-        int offset = firstResult;
-        while (results.size() < maxResults) {
-
-            final List<E> candidates = (List<E>) getHibernateTemplate().findByCriteria(checkNotNull(criteria), offset, maxResults);
-            offset += candidates.size();
-            if (candidates.isEmpty()) {
-                if (offset == firstResult) return null; // end of everything
-            } else {
-                break;
-            }
-            if (filter == null) return candidates;
+        final SearchResults<E> results = filteredList(criteria, firstResult, maxResults, filter);
+        return results.getScannedCount() == 0 ? null : results.getResults();
+    }
+
+    public static final int MIN_FILTER_FETCH_SIZE = 10;
+    public static final int MAX_FILTER_FETCH_SIZE = 5000;
+
+    // running totals across all filtered queries, used to size the cursor's fetch for the next one
+    private final LongAdder filterScanned = new LongAdder();
+    private final LongAdder filterAccepted = new LongAdder();
+
+    public double getFilterAcceptanceRatio() {
+        final long scanned = filterScanned.sum();
+        final long accepted = filterAccepted.sum();
+        return scanned == 0 || accepted == 0 ? 1.0d : ((double) accepted) / ((double) scanned);
+    }
+
+    protected int filterFetchSize(int rowsWanted) {
+        final double size = Math.ceil(rowsWanted / getFilterAcceptanceRatio());
+        return (int) Math.max(MIN_FILTER_FETCH_SIZE, Math.min(MAX_FILTER_FETCH_SIZE, size));
+    }
 
-            for (E thing : candidates) {
-                if (filter.isAcceptable(thing)) results.add(thing);
+    /**
+     * Apply a filter to a query's results until maxResults rows are accepted or results are exhausted.
+     * Within a transaction, rows are read from a single database cursor in the current session, so the caller's
+     * uncommitted changes are visible and the results are managed entities. The cursor's fetch size grows with the
+     * observed rejection rate of this DAO's filtered queries, so selective filters read bigger batches.
+     * Without a transaction, rows are read in bounded pages instead.
+     *
+     * @param criteria the {@link Criteria} query to run
+     * @param firstResult the number of accepted results to skip
+     * @param maxResults the maximum number of results
+     * @param filter An object implementing the EntityFilter interface, or null to accept everything
+     * @return the accepted results, with scannedCount and acceptedCount set
+     */
+    protected SearchResults<E> filteredList(DetachedCriteria criteria, int firstResult, int maxResults, EntityFilter<E> filter) throws HibernateException {
+        if (filter == null) {
+            final List<E> results = list(criteria, firstResult, maxResults);
+            return new SearchResults<>(results).setScannedCount(results.size()).setAcceptedCount(results.size());
+        }
+        final Session session = currentTransactionalSession();
+        final int rowsWanted = (int) Math.min(Integer.MAX_VALUE, (long) firstResult + maxResults);
+        final int fetchSize = filterFetchSize(rowsWanted);
+        final Filtering<E> filtering = new Filtering<>(firstResult, maxResults, filter);
+        if (session != null) {
+            try (EntityCursor<E> cursor = EntityCursor.inSession(session, checkNotNull(criteria), fetchSize)) {
+                while (!filtering.isFull() && cursor.hasNext()) filtering.offer(cursor.next());
+            }
+        } else {
+            int offset = 0;
+            while (!filtering.isFull()) {
+                final List<E> candidates = list(criteria, offset, fetchSize);
+                for (E thing : candidates) if (!filtering.isFull()) filtering.offer(thing);
+                if (candidates.size() < fetchSize) break;
+                offset += candidates.size();
             }
         }
-        return results;
+        filterScanned.add(filtering.scanned);
+        filterAccepted.add(filtering.accepted);
+        return new SearchResults<>(filtering.results).setScannedCount(filtering.scanned).setAcceptedCount(filtering.accepted);
+    }
+
+    private static class Filtering<E> {
+        private final List<E> results = new ArrayList<>();
+        private final int firstResult;
+        private final int maxResults;
+        private final EntityFilter<E> filter;
+        private int scanned = 0;
+        private int accepted = 0;
+
+        Filtering(int firstResult, int maxResults, EntityFilter<E> filter) {
+            this.firstResult = firstResult;
+            this.maxResults = maxResults;
+            this.filter = filter;
+        }
+
+        boolean isFull() { return results.size() >= maxResults; }
+
+        void offer(E thing) {
+            scanned++;
+            if (!filter.isAcceptable(thing)) return;
+            if (accepted++ >= firstResult) results.add(thing);
+        }
+    }
+
+    /**
+     * @return the session bound to the current transaction, or null if there is none
+     */
+    protected Session currentTransactionalSession() {
+        try {
+            final Session session = getHibernateTemplate().getSessionFactory().getCurrentSession();
+            return session.getTransaction().isActive() ? session : null;
+        } catch (HibernateException e) {
+            return null;
+        }
     }
 
     /**
@@ -184,6 +271,57 @@ public abstract class AbstractDAO<E extends Identifiable> implements DAO<E> {
         return session;
     }
 
+    public static final int DEFAULT_FETCH_SIZE = 500;
+
+    /**
+     * Open a database cursor over the results of a {@link Criteria} query. Runs on its own read-only session and transaction,
+     * which is cleared every fetchSize rows, so very large result sets can be walked in constant memory.
+     * The caller MUST close the cursor.
+     *
+     * @param criteria the {@link Criteria} query to run
+     * @param fetchSize the JDBC fetch size, also how often the session is cleared
+     * @return a cursor over the matched query results
+     */
+    public EntityCursor<E> cursor(DetachedCriteria criteria, int fetchSize) {
+        return new EntityCursor<>(readOnlySession(), checkNotNull(criteria), fetchSize, fetchSize);
+    }
+
+    /**
+     * Stream the results of a {@link Criteria} query from a database cursor. Rows are read only as the stream
+     * consumes them. The caller MUST close the stream (use try-with-resources), this closes the cursor and session.
+     *
+     * @param criteria the {@link Criteria} query to run
+     * @param fetchSize the JDBC fetch size, also how often the session is cleared
+     * @return a sequential Stream of the matched query results
+     */
+    public Stream<E> stream(DetachedCriteria criteria, int fetchSize) {
+        final EntityCursor<E> cursor = cursor(criteria, fetchSize);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED|Spliterator.NONNULL), false)
+                .onClose(cursor::close);
+    }
+
+    public Stream<E> stream(DetachedCriteria criteria) { return stream(criteria, DEFAULT_FETCH_SIZE); }
+
+    /**
+     * Visit every result of a {@link Criteria} query, reading from a database cursor. The next row is not fetched
+     * until the visitor returns, so a slow visitor naturally slows the read.
+     *
+     * @param criteria the {@link Criteria} query to run
+     * @param fetchSize the JDBC fetch size, also how often the session is cleared
+     * @param visitor called for each result
+     * @return the number of results visited
+     */
+    public long forEach(DetachedCriteria criteria, int fetchSize, Consumer<E> visitor) {
+        try (EntityCursor<E> cursor = cursor(criteria, fetchSize)) {
+            while (cursor.hasNext()) visitor.accept(cursor.next());
+            return cursor.getCount();
+        }
+    }
+
+    public long forEach(DetachedCriteria criteria, Consumer<E> visitor) { return forEach(criteria, DEFAULT_FETCH_SIZE, visitor); }
+
+    public long forEach(Consumer<E> visitor) { return forEach(criteria(), DEFAULT_FETCH_SIZE, visitor); }
+
     /**
      * Return the persistent instance of {@code <E>} with the given identifier, or {@code null} if
      * there is no such persistent instance. (If the instance, or a proxy for the instance, is
@@ -246,6 +384,9 @@ public abstract class AbstractDAO<E extends Identifiable> implements DAO<E> {
         return search(resultPage, getEntityClass().getSimpleName());
     }
 
+    public static final String SEEK_VALUE_PARAM = "__seekValue";
+    public static final String SEEK_UUID_PARAM = "__seekUuid";
+
     @Override public SearchResults<E> search(ResultPage resultPage, String entityType) {
         String filterClause = "";
         String[] params;
@@ -264,26 +405,133 @@ public abstract class AbstractDAO<E extends Identifiable> implements DAO<E> {
                 filterClause += formatBound(entityAlias, bound.getName(), bound.getValue());
             }
         }
+        final boolean filtered = filterClause.length() > 0;
+        final String countFilterClause = filtered ? "where "+filterClause : "";
+
+        // keyset pagination: instead of an offset, seek past the last-seen (sort value, uuid).
+        // nulls sort last ascending and first descending (the PostgreSQL default), so the seek clause can place them
+        final String sortField = entityAlias + "." + resultPage.getSortField();
+        final String sortType = resultPage.getSortType().name();
+        final boolean ascending = resultPage.getSortType().isAscending();
+        final SearchContinuation seek = resultPage.hasContinuation() ? SearchContinuation.decode(resultPage.getContinuation()) : null;
+        if (seek != null) {
+            if (!seek.matches(resultPage)) throw invalidEx("err.continuation.invalid", "continuation does not match sort ("+resultPage.getSortField()+" "+sortType+")");
+            final String op = ascending ? ">" : "<";
+            final String uuidAfter = entityAlias + ".uuid " + op + " :" + SEEK_UUID_PARAM;
+            if (filterClause.length() > 0) filterClause += "and ";
+            if (seek.hasValue()) {
+                filterClause += "(" + sortField + " " + op + " :" + SEEK_VALUE_PARAM
+                        + " or (" + sortField + " = :" + SEEK_VALUE_PARAM + " and " + uuidAfter + ")"
+                        + (ascending ? " or " + sortField + " is null" : "") + ") ";
+            } else {
+                filterClause += "((" + sortField + " is null and " + uuidAfter + ")"
+                        + (ascending ? "" : " or " + sortField + " is not null") + ") ";
+            }
+        }
         if (filterClause.length() > 0) filterClause = "where "+filterClause;
 
         final String selectClause = getSelectClause(resultPage);
-        final StringBuilder qBuilder = new StringBuilder("select ")
-                .append(selectClause).append(" ")
-                .append("from ").append(getEntityClass().getSimpleName()).append(" ").append(entityAlias).append(" ")
-                .append(filterClause);
+        final String fromClause = "from " + getEntityClass().getSimpleName() + " " + entityAlias + " ";
+        final String query = "select " + selectClause + " " + fromClause + filterClause
+                + " order by " + sortField + " " + sortType + (ascending ? " nulls last" : " nulls first")
+                + ", " + entityAlias + ".uuid " + sortType;
+
+        List<E> results;
+        if (seek != null) {
+            final String[] seekParams = seek.hasValue() ? ArrayUtil.append(params, SEEK_VALUE_PARAM, SEEK_UUID_PARAM) : ArrayUtil.append(params, SEEK_UUID_PARAM);
+            final Object[] seekValues = seek.hasValue() ? ArrayUtil.append(values, seek.sortValue(), seek.getUuid()) : ArrayUtil.append(values, seek.getUuid());
+            results = query(query, new ResultPage(resultPage).setPageNumber(1), seekParams, seekValues);
+        } else {
+            results = query(query, resultPage, params, values);
+        }
 
-        final String countQuery = "select count(*) " + qBuilder.toString();
-        final String query = qBuilder.append(" order by ").append(entityAlias).append(".").append(resultPage.getSortField()).append(" ").append(resultPage.getSortType().name()).toString();
+        final SearchResults<E> searchResults = new SearchResults<>();
+        if (!resultPage.isInfinitePage() && results.size() >= resultPage.getPageSize()) {
+            final Object last = results.get(results.size() - 1);
+            if (last instanceof Identifiable) {
+                final SearchContinuation next = SearchContinuation.after((Identifiable) last, resultPage);
+                if (next != null) searchResults.setContinuation(next.encode());
+            }
+        }
 
-        List<E> results = query(query, resultPage, params, values);
-        final int totalCount = Integer.valueOf(""+query(countQuery, ResultPage.INFINITE_PAGE, params, values).get(0));
+        final String countQuery = "select count(*) " + fromClause + countFilterClause;
+        switch (resultPage.getCountModeOrDefault()) {
+            case skip: break;
+            case estimate:
+                final Integer estimate = filtered ? null : estimateRowCount();
+                if (estimate != null) {
+                    searchResults.setTotalCount(estimate).setTotalCountEstimated(true);
+                    break;
+                }
+                // fall through to cached count
+            case cached:
+                searchResults.setTotalCount(cachedCount(countQuery, params, values)).setTotalCountEstimated(true);
+                break;
+            case exact: default:
+                searchResults.setTotalCount(count(countQuery, params, values));
+                break;
+        }
 
         // the caller may want the results filtered (remove sensitive fields)
         if (resultPage.hasScrubber() && !results.isEmpty()) {
             results = resultPage.getScrubber().scrub(results);
         }
 
-        return new SearchResults<>(results, totalCount);
+        return searchResults.setResults(results);
+    }
+
+    protected int count(String countQuery, String[] params, Object[] values) {
+        return Integer.valueOf(""+query(countQuery, ResultPage.INFINITE_PAGE, params, values).get(0));
+    }
+
+    /**
+     * @return how long a count from a CountMode.cached search is reused, in milliseconds
+     */
+    protected long getCountCacheTtl() { return TimeUnit.MINUTES.toMillis(1); }
+
+    public static final int MAX_CACHED_COUNTS = 1000;
+
+    // expired counts are dropped on read, and least recently used ones when the cache is full
+    @Getter(lazy=true, value=AccessLevel.PRIVATE) private final ObjectCache<String, Integer> countCache = initCountCache();
+    private ObjectCache<String, Integer> initCountCache() {
+        return new LruObjectCache<String, Integer>().init(new DAOCacheConfiguration()
+                .setMaxEntries(MAX_CACHED_COUNTS)
+                .setTtl(getCountCacheTtl()));
+    }
+
+    protected int cachedCount(String countQuery, String[] params, Object[] values) {
+        final String key = countQuery + Arrays.toString(values);
+        final Integer cached = getCountCache().get(key);
+        if (cached != null) return cached;
+
+        final int count = count(countQuery, params, values);
+        getCountCache().put(key, count);
+        return count;
+    }
+
+    /**
+     * Estimate the number of rows in this entity's table from database statistics, without scanning it.
+     * Used by CountMode.estimate searches; when this returns null, they use a cached count instead.
+     * Override to provide an estimate, e.g. with postgresRowEstimate on PostgreSQL.
+     * @return the estimated row count, or null if no estimate is available (the default)
+     */
+    protected Integer estimateRowCount() { return null; }
+
+    /**
+     * @param table the entity's table name
+     * @return PostgreSQL's estimate of the table's row count (pg_class.reltuples), or null if there is none
+     */
+    protected Integer postgresRowEstimate(String table) {
+        try {
+            final List found = query(SQL_QUERY+"select cast(reltuples as bigint) from pg_class where relname = :table",
+                                     ResultPage.FIRST_RESULT, new String[]{"table"}, new Object[]{table});
+            if (empty(found) || found.get(0) == null) return null;
+            final long estimate = ((Number) found.get(0)).longValue();
+            return estimate < 0 ? null : (int) Math.min(estimate, Integer.MAX_VALUE);
+        } catch (Exception e) {
+            log.warn("postgresRowEstimate("+table+"): "+e);
+            return null;
+        }
     }
 
     public String getSelectClause(ResultPage resultPage) {
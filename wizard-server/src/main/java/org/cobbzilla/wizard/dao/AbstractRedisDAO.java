@@ -3,17 +3,17 @@ package org.cobbzilla.wizard.dao;
 import lombok.Getter;
 import org.cobbzilla.wizard.cache.redis.RedisService;
 import org.cobbzilla.wizard.model.ExpirableBase;
+import org.cobbzilla.wizard.model.Versioned;
 import org.cobbzilla.wizard.model.search.ResultPage;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import javax.validation.Valid;
 import java.io.Serializable;
-import java.util.Collection;
-import java.util.List;
+import java.util.*;
+import java.util.function.UnaryOperator;
 
+import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
 import static org.cobbzilla.util.daemon.ZillaRuntime.notSupported;
-import static org.cobbzilla.util.json.JsonUtil.fromJsonOrDie;
-import static org.cobbzilla.util.json.JsonUtil.toJsonOrDie;
 import static org.cobbzilla.util.reflect.ReflectionUtil.getTypeParameter;
 
 public abstract class AbstractRedisDAO<E extends ExpirableBase> implements DAO<E> {
@@ -49,9 +49,22 @@ public abstract class AbstractRedisDAO<E extends ExpirableBase> implements DAO<E
     @Override public E postUpdate(@Valid E entity, Object context) { return entity; }
 
     // get something
-    @Override public E get(Serializable id) {
-        final String json = getRedis().get(id.toString());
-        return json == null ? null : fromJsonOrDie(json, getEntityClass());
+    @Override public E get(Serializable id) { return getRedis().getObject(id.toString(), getEntityClass()); }
+
+    /**
+     * Get many entities with a single MGET
+     * @param uuids the uuids to find
+     * @return a Map of uuid to entity, in the iteration order of uuids. uuids that were not found are not in the Map
+     */
+    public Map<String, E> getMany(Collection<String> uuids) {
+        final Map<String, E> found = new LinkedHashMap<>();
+        if (empty(uuids)) return found;
+        final List<String> keys = new ArrayList<>(new LinkedHashSet<>(uuids));
+        final List<E> entities = getRedis().getObjects(keys, getEntityClass());
+        for (int i=0; i<keys.size(); i++) {
+            if (entities.get(i) != null) found.put(keys.get(i), entities.get(i));
+        }
+        return found;
     }
 
     @Override public E findByUuid(String uuid) { return get(uuid); }
@@ -61,23 +74,126 @@ public abstract class AbstractRedisDAO<E extends ExpirableBase> implements DAO<E
     // set something
     @Override public E create(@Valid E entity) { return update(entity); }
 
+    /**
+     * Write the entity with a single SET (with EX if it expires). Versioned entities are written only if their
+     * version still matches the stored one, see compareAndSet
+     * @throws VersionConflictException if the entity is Versioned and was changed since it was read
+     */
     @Override public E update(@Valid E entity) {
+        if (entity instanceof Versioned) {
+            if (!compareAndSet(entity)) {
+                throw new VersionConflictException("update: "+getEntityClass().getSimpleName()+"/"+entity.getUuid()
+                        +" was changed since version "+((Versioned) entity).getVersion());
+            }
+            return entity;
+        }
         if (entity.shouldExpire()) {
-            getRedis().set(entity.getUuid(), toJsonOrDie(entity), "XX", "EX", entity.getExpirationSeconds());
-            getRedis().set(entity.getUuid(), toJsonOrDie(entity), "NX", "EX", entity.getExpirationSeconds());
+            getRedis().setObject(entity.getUuid(), entity, "EX", entity.getExpirationSeconds());
         } else {
-            getRedis().set(entity.getUuid(), toJsonOrDie(entity));
+            getRedis().setObject(entity.getUuid(), entity);
         }
         return entity;
     }
 
+    protected String versionKey(String uuid) { return "__version_"+uuid; }
+
+    /**
+     * Write a Versioned entity only if the stored version equals entity.getVersion() (null for a new entity),
+     * atomically incrementing the version. On success the entity carries the new version.
+     * @return true if the entity was written, false if it was changed by someone else in the meantime
+     */
+    public boolean compareAndSet(E entity) {
+        final Versioned versioned = (Versioned) entity;
+        final Long previous = versioned.getVersion();
+        final long expected = previous == null ? 0 : previous;
+        // the stored entity carries its new version
+        versioned.setVersion(expected + 1);
+        final Long next = entity.shouldExpire()
+                ? getRedis().setObjectIfVersion(entity.getUuid(), entity, versionKey(entity.getUuid()), expected, "EX", entity.getExpirationSeconds())
+                : getRedis().setObjectIfVersion(entity.getUuid(), entity, versionKey(entity.getUuid()), expected, null, 0);
+        if (next == null) {
+            versioned.setVersion(previous);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Re-read and modify an entity until the write wins: change is applied to the current entity and the result
+     * written with compareAndSet, starting over if someone else wrote in between
+     * @param change modifies the entity (or returns a new one); returns null to give up
+     * @return the entity written, or null if it did not exist or change gave up
+     * @throws VersionConflictException if every try lost a race
+     */
+    public E update(String uuid, UnaryOperator<E> change, int maxTries) {
+        for (int i=0; i<maxTries; i++) {
+            final E current = get(uuid);
+            if (current == null) return null;
+            final E changed = change.apply(current);
+            if (changed == null) return null;
+            if (compareAndSet(changed)) return changed;
+        }
+        throw new VersionConflictException("update: "+getEntityClass().getSimpleName()+"/"+uuid+": gave up after "+maxTries+" tries");
+    }
+
+    /**
+     * Write many entities. Unversioned entities are written in one pipelined round trip, each with its own
+     * expiration; Versioned entities each need their own compare-and-set, and all are tried before any conflict
+     * is reported
+     * @param entities the entities to update
+     * @return the updated entities
+     * @throws VersionConflictException listing the Versioned entities that were changed since they were read
+     */
+    public List<E> updateAll(Collection<E> entities) {
+        final List<E> plain = new ArrayList<>();
+        final List<E> versioned = new ArrayList<>();
+        for (E entity : entities) (entity instanceof Versioned ? versioned : plain).add(entity);
+
+        if (!plain.isEmpty()) {
+            getRedis().pipeline(batch -> {
+                for (E entity : plain) {
+                    if (entity.shouldExpire()) {
+                        batch.setObject(entity.getUuid(), entity, "EX", entity.getExpirationSeconds());
+                    } else {
+                        batch.setObject(entity.getUuid(), entity);
+                    }
+                }
+            });
+        }
+
+        final List<E> updated = new ArrayList<>(plain);
+        final List<String> conflicts = new ArrayList<>();
+        for (E entity : versioned) {
+            if (compareAndSet(entity)) updated.add(entity); else conflicts.add(entity.getUuid());
+        }
+        if (!conflicts.isEmpty()) {
+            throw new VersionConflictException("updateAll: "+getEntityClass().getSimpleName()+" changed since read: "+conflicts);
+        }
+        return updated;
+    }
+
     @Override public E createOrUpdate(@Valid E entity) { return update(entity); }
 
+    /**
+     * Create or update many entities, assigning uuids to new ones, see updateAll
+     * @return the entities written
+     * @throws VersionConflictException listing the Versioned entities that were changed since they were read
+     */
+    public List<E> createOrUpdateAll(Collection<E> entities) {
+        for (E entity : entities) if (!entity.hasUuid()) entity.initUuid();
+        return updateAll(entities);
+    }
+
     // delete something
-    @Override public void delete(String uuid) { getRedis().del(uuid); }
+    @Override public void delete(String uuid) { getRedis().delAll(Arrays.asList(uuid, versionKey(uuid))); }
 
     @Override public void delete(Collection<E> entities) {
-        for (E entity : entities) getRedis().del(entity.getUuid());
+        final List<String> keys = new ArrayList<>(2 * entities.size());
+        for (E entity : entities) {
+            keys.add(entity.getUuid());
+            keys.add(versionKey(entity.getUuid()));
+        }
+        getRedis().delAll(keys);
     }
 
     public String getMetadata (String key) { return getRedis().get("__metadata_"+key); }
@@ -5,16 +5,38 @@ import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.cobbzilla.util.json.JsonUtil;
 import org.cobbzilla.wizard.cache.redis.RedisService;
+import org.cobbzilla.wizard.dao.cache.DAOCacheConfiguration;
+import org.cobbzilla.wizard.dao.cache.ObjectCache;
+import org.cobbzilla.wizard.filters.auth.AuthProvider;
 import org.cobbzilla.wizard.model.Identifiable;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
 import static java.util.UUID.randomUUID;
 import static java.util.concurrent.TimeUnit.DAYS;
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
 import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
+import static org.cobbzilla.util.json.JsonUtil.fromJsonOrDie;
+import static org.cobbzilla.util.json.JsonUtil.toJsonOrDie;
 import static org.cobbzilla.util.reflect.ReflectionUtil.getFirstTypeParam;
+import static org.cobbzilla.util.reflect.ReflectionUtil.instantiate;
 
+/**
+ * Sessions stored in redis. Each session id maps to the session's JSON, and each owner (thing.getUuid())
+ * has a set of its session ids, which expires with the owner's most recent session. Invalidated sessions are
+ * removed from the set, and expired ones are pruned from it whenever the owner starts a new session.
+ */
 @Slf4j
-public abstract class AbstractSessionDAO<T extends Identifiable> {
+public abstract class AbstractSessionDAO<T extends Identifiable> implements AuthProvider<T> {
+
+    public static final String USER_SESSIONS_PREFIX = "__sessions:";
+    public static final long DEFAULT_LOCAL_CACHE_TTL = TimeUnit.SECONDS.toMillis(2);
+    public static final String LOCAL_CACHE_CHANNEL = "__session-invalidate";
 
     @Autowired private RedisService redis;
     @Getter(lazy=true) private final RedisService sessionRedis = initSessionRedis();
@@ -23,6 +45,8 @@ public abstract class AbstractSessionDAO<T extends Identifiable> {
     // what are we storing?
     @Getter(lazy=true, value=AccessLevel.PROTECTED) private final Class<T> entityClass = getFirstTypeParam(getClass(), Identifiable.class);
 
+    protected String userSessionsKey(String uuid) { return USER_SESSIONS_PREFIX + uuid; }
+
     public String create (T thing) {
         final String sessionId = randomUUID().toString();
         set(sessionId, thing, false);
@@ -32,8 +56,18 @@ public abstract class AbstractSessionDAO<T extends Identifiable> {
     public T find(String uuid) {
         if (empty(uuid)) return null;
         try {
-            final String found = getSessionRedis().get(uuid);
-            if (found == null) return null;
+            final ObjectCache<String, String> cache = getLocalCache();
+            String found = cache == null ? null : cache.get(uuid);
+            if (found == null) {
+                found = isSlidingExpiration()
+                        ? getSessionRedis().getAndExpire(uuid, (int) getSessionTimeout())
+                        : getSessionRedis().get(uuid);
+                if (found == null) return null;
+                if (cache != null) cache.put(uuid, found);
+                final T thing = fromJson(found);
+                if (isSlidingExpiration()) getSessionRedis().expire(userSessionsKey(thing.getUuid()), (int) getSessionTimeout());
+                return thing;
+            }
             return fromJson(found);
 
         } catch (Exception e) {
@@ -42,28 +76,124 @@ public abstract class AbstractSessionDAO<T extends Identifiable> {
         }
     }
 
+    /**
+     * Reset a session's expiration without rewriting it
+     * @return true if the session exists
+     */
+    public boolean touch(String uuid) {
+        final Long touched = getSessionRedis().expire(uuid, (int) getSessionTimeout());
+        return touched != null && touched > 0;
+    }
+
+    /**
+     * Delete all sessions owned by uuid. Sessions created while this runs may survive it.
+     */
     public void invalidateAllSessions(String uuid) {
-        String sessionId;
-        while ((sessionId = getSessionRedis().lpop(uuid)) != null) {
-            invalidate(sessionId);
+        // every command names its key, so this also works where keys live on different nodes
+        final String userSessions = userSessionsKey(uuid);
+        final List<String> sessionIds = new ArrayList<>(getSessionRedis().smembers(userSessions));
+        if (!sessionIds.isEmpty()) {
+            // removing only the ids we read leaves any session added meanwhile in the set
+            getSessionRedis().pipeline(batch -> { for (String id : sessionIds) batch.del(id).srem(userSessions, id); });
         }
-        invalidate(uuid);
+
+        // sessions created before owner sets were introduced are on a list named by the owner's uuid
+        final List<String> legacy = getSessionRedis().list(uuid);
+        if (!empty(legacy)) {
+            getSessionRedis().delAll(legacy);
+            sessionIds.addAll(legacy);
+        }
+        getSessionRedis().del(uuid);
+
+        localInvalidate(sessionIds);
     }
 
+    // writes the session, then, only if it was written, adds it to its owner's set and extends the set's expiration
     private void set(String uuid, T thing, boolean shouldExist) {
-        getSessionRedis().set(uuid, toJson(thing), shouldExist ? "XX" : "NX", "EX", getSessionTimeout());
-        getSessionRedis().lpush(thing.getUuid(), uuid);
+        final String json = toJson(thing);
+        final String userSessions = userSessionsKey(thing.getUuid());
+        final long timeout = getSessionTimeout();
+        if (!getSessionRedis().trySet(uuid, json, shouldExist ? "XX" : "NX", "EX", timeout)) {
+            if (!shouldExist) die("set: session already exists: "+uuid);
+            // the session expired or was invalidated: do not bring it back into its owner's set
+            log.warn("set: session not found, not updating: "+uuid);
+            return;
+        }
+        if (!shouldExist) pruneUserSessions(userSessions);
+        getSessionRedis().pipeline(batch -> batch
+                .sadd(userSessions, uuid)
+                .expire(userSessions, (int) timeout));
+        if (shouldExist) localInvalidate(Collections.singletonList(uuid));
+    }
+
+    // drops the ids of sessions that expired from an owner's set. a session is written before its id is added,
+    // so an id whose session is gone is dead, not one still being created
+    private void pruneUserSessions(String userSessions) {
+        final List<String> sessionIds = new ArrayList<>(getSessionRedis().smembers(userSessions));
+        if (sessionIds.isEmpty()) return;
+        final List<Supplier<Boolean>> exists = new ArrayList<>(sessionIds.size());
+        getSessionRedis().pipeline(batch -> { for (String id : sessionIds) exists.add(batch.exists(id)); });
+        final List<String> dead = new ArrayList<>();
+        for (int i=0; i<sessionIds.size(); i++) if (!exists.get(i).get()) dead.add(sessionIds.get(i));
+        if (!dead.isEmpty()) getSessionRedis().srem(userSessions, dead.toArray(new String[dead.size()]));
     }
 
     protected long getSessionTimeout() { return DAYS.toSeconds(30); }
 
+    // when true, every read from redis resets the session's expiration
+    protected boolean isSlidingExpiration() { return false; }
+
+    /**
+     * Override to cache sessions in-process, in front of redis, for hot lookups like AuthFilter's.
+     * Changes are propagated to other servers with redis pub/sub; keep the ttl short, since it bounds how long
+     * a session invalidated elsewhere may remain usable if a message is lost.
+     * @return the cache configuration, or null (the default) for no local cache
+     */
+    protected DAOCacheConfiguration getLocalCacheConfiguration() { return null; }
+
+    @Getter(lazy=true) private final ObjectCache<String, String> localCache = initLocalCache();
+    private ObjectCache<String, String> initLocalCache() {
+        final DAOCacheConfiguration config = getLocalCacheConfiguration();
+        if (config == null || !config.isEnabled()) return null;
+        final ObjectCache<String, String> cache = instantiate(config.getEngine());
+        cache.init(new DAOCacheConfiguration()
+                .setMaxEntries(config.getMaxEntries())
+                .setTtl(config.hasTtl() ? config.getTtl() : DEFAULT_LOCAL_CACHE_TTL));
+        // anything published while we were not subscribed was missed, so start over on every (re)subscribe
+        getSessionRedis().subscribe(LOCAL_CACHE_CHANNEL, this::localCacheRemove, cache::clear);
+        return cache;
+    }
+
+    private void localCacheRemove(String message) {
+        final ObjectCache<String, String> cache = getLocalCache();
+        if (cache != null) for (String id : fromJsonOrDie(message, String[].class)) cache.remove(id);
+    }
+
+    private void localInvalidate(List<String> sessionIds) {
+        final ObjectCache<String, String> cache = getLocalCache();
+        if (cache == null || sessionIds.isEmpty()) return;
+        for (String id : sessionIds) cache.remove(id);
+        getSessionRedis().publish(LOCAL_CACHE_CHANNEL, toJsonOrDie(sessionIds.toArray(new String[sessionIds.size()])));
+    }
+
     // override these to keep the padding but do your own json I/O
     protected String toJson(T thing) { return JsonUtil.toJsonOrDie(thing); }
     protected T fromJson(String json) { return JsonUtil.fromJsonOrDie(json, getEntityClass()); }
 
     public void update(String uuid, T thing) { set(uuid, thing, true); }
 
-    public void invalidate(String uuid) { getSessionRedis().del(uuid); }
+    public void invalidate(String uuid) {
+        final String found = getSessionRedis().get(uuid);
+        getSessionRedis().del(uuid);
+        if (found != null) {
+            try {
+                getSessionRedis().srem(userSessionsKey(fromJson(found).getUuid()), uuid);
+            } catch (Exception e) {
+                log.warn("invalidate: error removing session from its owner's set: "+e);
+            }
+        }
+        localInvalidate(Collections.singletonList(uuid));
+    }
 
     public boolean isValid (String uuid) { return find(uuid) != null; }
 
@@ -0,0 +1,20 @@
+package org.cobbzilla.wizard.dao;
+
+/**
+ * How AbstractCRUDDAO writes audit logs.
+ */
+public enum AuditDurability {
+
+    // write the audit log in the caller's transaction, before and after the operation (the original behavior)
+    sync,
+
+    // after the caller's transaction commits, hand the audit log to a background writer. If its queue is full,
+    // wait briefly for space and then write the audit log on the caller's thread; nothing is dropped
+    after_commit,
+
+    // like after_commit, but if the background writer's queue is full the audit log is dropped (and counted)
+    best_effort;
+
+    public boolean isAsync () { return this != sync; }
+
+}
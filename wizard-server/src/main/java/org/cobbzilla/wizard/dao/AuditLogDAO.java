@@ -1,5 +1,6 @@
 package org.cobbzilla.wizard.dao;
 
+import lombok.Getter;
 import org.cobbzilla.wizard.model.AuditLog;
 
 import javax.validation.Valid;
@@ -10,6 +11,15 @@ public abstract class AuditLogDAO<E extends AuditLog> extends AbstractCRUDDAO<E>
 
     public abstract String getEncryptionKey ();
 
+    protected int getWriterQueueCapacity () { return AuditLogWriter.DEFAULT_QUEUE_CAPACITY; }
+    protected int getWriterBatchSize () { return AuditLogWriter.DEFAULT_BATCH_SIZE; }
+    protected long getWriterMaxWait () { return AuditLogWriter.DEFAULT_MAX_WAIT; }
+
+    @Getter(lazy=true) private final AuditLogWriter<E> writer = initWriter();
+    private AuditLogWriter<E> initWriter() {
+        return new AuditLogWriter<>(this, getWriterQueueCapacity(), getWriterBatchSize(), getWriterMaxWait());
+    }
+
     @Override public Object preCreate(@Valid E entity) {
         entity = prepare(entity);
         return super.preCreate(entity);
@@ -20,6 +30,8 @@ public abstract class AuditLogDAO<E extends AuditLog> extends AbstractCRUDDAO<E>
         return super.preUpdate(entity);
     }
 
+    @Override protected E prepareForBulkWrite(E entity) { return prepare(entity); }
+
     protected E prepare(@Valid E entity) {
         final String key = getEncryptionKey();
         if (empty(key)) {
@@ -0,0 +1,263 @@
+package org.cobbzilla.wizard.dao;
+
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.wizard.model.AuditLog;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.daemon;
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
+import static org.cobbzilla.util.json.JsonUtil.toJsonOrDie;
+
+/**
+ * Writes audit logs for an AuditLogDAO in batches from a background thread, fed by a bounded queue.
+ * Used by AbstractCRUDDAO when its AuditDurability is after_commit or best_effort.
+ * On close (and at JVM shutdown) the queue is drained; audit logs enqueued after that are written on the caller thread.
+ */
+@Slf4j
+public class AuditLogWriter<A extends AuditLog> {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final long DEFAULT_MAX_WAIT = TimeUnit.SECONDS.toMillis(1);
+    public static final long ENQUEUE_TIMEOUT = 100;
+    public static final long DEFAULT_CLOSE_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * An audit log and the entity states it records, serialized when it is created: the maps may share objects
+     * with the entity, which the caller is free to change once the audit is queued
+     */
+    public static class PendingAudit {
+        private final AuditLog auditLog;
+        private final String prevState;
+        private final String newState;
+        private final long ctime = now();
+
+        public PendingAudit(AuditLog auditLog, Map<String, Object> prevState, Map<String, Object> newState) {
+            this.auditLog = auditLog;
+            this.prevState = prevState == null ? null : toJsonOrDie(prevState);
+            this.newState = newState == null ? null : toJsonOrDie(newState);
+        }
+
+        // the entity write this audits was successful (async audits are only queued after a successful write)
+        public PendingAudit success() { auditLog.setSuccess(true); return this; }
+
+        public <A extends AuditLog> A toAuditLog() {
+            return (A) auditLog.setPrevState(prevState).setNewState(newState);
+        }
+    }
+
+    private final AuditLogDAO<A> dao;
+    private final BlockingQueue<PendingAudit> queue;
+    private final int batchSize;
+    private final long maxWait;
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private volatile boolean closed = false;
+    private volatile Thread worker = null;
+
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder writtenInline = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final AtomicLong lastLag = new AtomicLong(0);
+
+    public AuditLogWriter(AuditLogDAO<A> dao, int queueCapacity, int batchSize, long maxWait) {
+        this.dao = dao;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.batchSize = batchSize;
+        this.maxWait = maxWait;
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "AuditLogWriter-shutdown"));
+    }
+
+    public AuditLogWriter(AuditLogDAO<A> dao) { this(dao, DEFAULT_QUEUE_CAPACITY, DEFAULT_BATCH_SIZE, DEFAULT_MAX_WAIT); }
+
+    /**
+     * Queue the audit logs once the current transaction commits; if it rolls back they are discarded.
+     * With no transaction active, they are queued immediately.
+     */
+    public void enqueueAfterCommit(Collection<PendingAudit> audits, AuditDurability durability) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override public void afterCommit() { enqueue(audits, durability); }
+            });
+        } else {
+            enqueue(audits, durability);
+        }
+    }
+
+    public void enqueue(Collection<PendingAudit> audits, AuditDurability durability) {
+        if (closed) {
+            // shutting down: nothing will drain the queue again
+            if (write(new ArrayList<>(audits))) writtenInline.add(audits.size());
+            return;
+        }
+        start();
+        List<PendingAudit> overflow = null;
+        for (PendingAudit audit : audits) {
+            boolean queued = queue.offer(audit);
+            if (!queued && durability == AuditDurability.after_commit) {
+                try {
+                    queued = queue.offer(audit, ENQUEUE_TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (queued) {
+                enqueued.increment();
+            } else if (durability == AuditDurability.after_commit) {
+                if (overflow == null) overflow = new ArrayList<>();
+                overflow.add(audit);
+            } else {
+                dropped.increment();
+            }
+        }
+        if (overflow != null) {
+            log.warn("enqueue: queue full, writing "+overflow.size()+" audit logs on caller thread");
+            if (write(overflow)) writtenInline.add(overflow.size());
+        }
+        // closed while we were queueing, after close drained the queue
+        if (closed) drain();
+    }
+
+    private void start() {
+        if (started.get() || !started.compareAndSet(false, true)) return;
+        daemon(this::run);
+    }
+
+    private void run() {
+        worker = Thread.currentThread();
+        final List<PendingAudit> batch = new ArrayList<>(batchSize);
+        try {
+            while (!closed) {
+                try {
+                    final PendingAudit first = queue.poll(maxWait, TimeUnit.MILLISECONDS);
+                    if (first == null) continue;
+                    batch.add(first);
+                    queue.drainTo(batch, batchSize - 1);
+                    writeBatch(batch);
+                } catch (InterruptedException e) {
+                    log.warn("run: interrupted with "+queue.size()+" audit logs queued");
+                    return;
+                } catch (Exception e) {
+                    log.error("run: unexpected error: "+e, e);
+                } finally {
+                    batch.clear();
+                }
+            }
+        } finally {
+            worker = null;
+            started.set(false);
+            // if we were interrupted with work left, carry on in a new thread (close drains the queue itself)
+            if (!closed && !queue.isEmpty()) start();
+        }
+    }
+
+    private void writeBatch(List<PendingAudit> batch) {
+        if (write(batch)) {
+            written.add(batch.size());
+            lastLag.set(now() - batch.get(0).ctime);
+        }
+        batches.increment();
+    }
+
+    public void close() { close(DEFAULT_CLOSE_TIMEOUT); }
+
+    /**
+     * Stop the background thread once it finishes its current batch, then write everything still queued
+     * @param timeout how long to wait for the background thread, in milliseconds
+     */
+    public void close(long timeout) {
+        if (closed) return;
+        closed = true;
+        final Thread t = worker;
+        if (t != null && t != Thread.currentThread()) {
+            try {
+                t.join(timeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        drain();
+        log.info("close: "+this);
+    }
+
+    // write everything queued, on the caller thread
+    private void drain() {
+        final List<PendingAudit> batch = new ArrayList<>(batchSize);
+        while (queue.drainTo(batch, batchSize) > 0) {
+            writeBatch(batch);
+            batch.clear();
+        }
+    }
+
+    private boolean write(List<PendingAudit> audits) {
+        Session session = null;
+        Transaction tx = null;
+        try {
+            session = dao.getHibernateTemplate().getSessionFactory().openSession();
+            tx = session.beginTransaction();
+            for (PendingAudit pending : audits) {
+                A auditLog = pending.toAuditLog();
+                auditLog.beforeCreate();
+                auditLog = dao.prepareForBulkWrite(auditLog);
+                session.save(auditLog);
+            }
+            tx.commit();
+            return true;
+
+        } catch (Exception e) {
+            log.error("write: error writing "+audits.size()+" audit logs: "+e, e);
+            if (tx != null) {
+                try { tx.rollback(); } catch (Exception re) { log.warn("write: error rolling back: "+re); }
+            }
+            failed.add(audits.size());
+            return false;
+
+        } finally {
+            if (session != null) session.close();
+        }
+    }
+
+    public int getQueueDepth() { return queue.size(); }
+    public int getQueueCapacity() { return queue.size() + queue.remainingCapacity(); }
+    public long getEnqueued() { return enqueued.sum(); }
+    public long getWritten() { return written.sum(); }
+    public long getWrittenInline() { return writtenInline.sum(); }
+    public long getDropped() { return dropped.sum(); }
+    public long getFailed() { return failed.sum(); }
+    public long getBatches() { return batches.sum(); }
+
+    // how long the most recently written batch waited in the queue, in milliseconds
+    public long getLastLag() { return lastLag.get(); }
+
+    /**
+     * @return how long the oldest audit log currently queued has been waiting, in milliseconds
+     */
+    public long getCurrentLag() {
+        final PendingAudit oldest = queue.peek();
+        return oldest == null ? 0 : now() - oldest.ctime;
+    }
+
+    @Override public String toString() {
+        return "queueDepth=" + getQueueDepth() + "/" + getQueueCapacity() + ", enqueued=" + getEnqueued()
+                + ", written=" + getWritten() + ", writtenInline=" + getWrittenInline() + ", dropped=" + getDropped()
+                + ", failed=" + getFailed() + ", batches=" + getBatches()
+                + ", currentLag=" + getCurrentLag() + "ms, lastLag=" + getLastLag() + "ms";
+    }
+
+}
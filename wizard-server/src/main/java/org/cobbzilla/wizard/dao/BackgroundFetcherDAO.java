@@ -8,16 +8,35 @@ import org.cobbzilla.wizard.model.ExpirableBase;
 import java.io.Serializable;
 import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
-import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.daemon.ZillaRuntime.daemon;
 import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
 import static org.cobbzilla.util.daemon.ZillaRuntime.now;
-
+import static org.cobbzilla.util.system.Sleep.sleep;
+
+/**
+ * Serves entities from redis and recomputes them in the background (refresh-ahead).
+ *
+ * A missing or old entity queues a job for its uuid; callers never wait for it. There is at most one job per uuid,
+ * the queue is bounded, and queued jobs for uuids that are read more often run first. When a job finishes, its
+ * worker writes the entity and its ctime to redis. Jobs running longer than the job timeout are interrupted.
+ */
 @Slf4j
 public abstract class BackgroundFetcherDAO<E extends ExpirableBase> extends AbstractRedisDAO<E> {
 
     @Getter @Setter private long recalculateInterval = TimeUnit.MINUTES.toMillis(2);
 
+    // jobs running longer than this are cancelled
+    @Getter @Setter private long jobTimeout = TimeUnit.MINUTES.toMillis(5);
+
+    // jobs queued or running; new jobs are rejected when full
+    @Getter @Setter private int maxQueuedJobs = 1000;
+
+    @Getter private final BackgroundFetcherStats stats = new BackgroundFetcherStats();
+
     @Override public E get(Serializable id) { return get(id, null); }
 
     public E get(Serializable id, Map<String, Object> context) {
@@ -32,8 +51,9 @@ public abstract class BackgroundFetcherDAO<E extends ExpirableBase> extends Abst
             final String ctimeString = super.getMetadata(metadataCtimeKey(entity));
             if (!empty(ctimeString)) {
                 try {
-                    final long ctime = Long.parseLong(ctimeString);
-                    if (now() - ctime > getRecalculateInterval()) queueJob(id.toString(), context);
+                    final long age = now() - Long.parseLong(ctimeString);
+                    stats.served(age);
+                    if (age > getRecalculateInterval()) queueJob(id.toString(), context);
                 } catch (Exception e) {
                     log.warn("get("+id+"): error checking job status: "+e);
                 }
@@ -46,72 +66,173 @@ public abstract class BackgroundFetcherDAO<E extends ExpirableBase> extends Abst
 
     public String metadataCtimeKey(E entity) { return entity.getUuid()+".ctime"; }
 
-    private Map<String, EntityJobResult> jobs = new ConcurrentHashMap<>();
-
-    @Getter(lazy=true) private final ExecutorService executor = initExecutor();
-    private ExecutorService initExecutor() { return Executors.newFixedThreadPool(getThreadPoolSize()); }
+    private final Map<String, RefreshJob> jobs = new ConcurrentHashMap<>();
+    private final AtomicLong jobSequence = new AtomicLong(0);
 
     public int getThreadPoolSize () { return 1; }
     protected abstract Callable<E> newEntityJob(String uuid, Map<String, Object> context);
 
+    // queued jobs are ordered by RefreshJob.compareTo, so a ThreadPoolExecutor over a PriorityBlockingQueue runs
+    // the most-read first. jobs are passed to execute (not submit) so they are not wrapped in non-comparable futures
+    @Getter(lazy=true) private final ThreadPoolExecutor executor = initExecutor();
+    private ThreadPoolExecutor initExecutor() {
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        final String name = getClass().getSimpleName();
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(getThreadPoolSize(), getThreadPoolSize(),
+                0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(),
+                r -> {
+                    final Thread t = new Thread(r, name + "-fetcher-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        daemon(this::watchdog);
+        return pool;
+    }
+
+    /**
+     * Queue a job to compute the entity, unless one is already queued or running. Never waits for the job.
+     * @return null, the entity will be available from get once the job completes
+     */
     public E queueJob(String uuid, Map<String, Object> context) {
-        EntityJobResult result = jobs.get(uuid);
+        final RefreshJob existing = jobs.get(uuid);
+        if (existing != null) {
+            stats.deduplicated();
+            existing.read();
+            return null;
+        }
+        if (jobs.size() >= getMaxQueuedJobs()) {
+            stats.rejected();
+            log.warn("queueJob("+uuid+"): queue full ("+getMaxQueuedJobs()+"), not queueing");
+            return null;
+        }
+        final RefreshJob job = new RefreshJob(uuid, context);
+        if (jobs.putIfAbsent(uuid, job) != null) {
+            stats.deduplicated();
+            return null;
+        }
         try {
-            if (result != null) {
-                if (result.isRunning()) {
-                    // todo -- if it has been running too long, kill it and maybe restart it
-                    return null;
-                }
-                if (result.getSummaryAge() > getRecalculateInterval()) {
-                    jobs.put(uuid, new EntityJobResult(getExecutor().submit(newEntityJob(uuid, context))));
-                }
-                return result.getEntity();
-
-            } else {
-                jobs.put(uuid, new EntityJobResult(getExecutor().submit(newEntityJob(uuid, context))));
-                return null;
-            }
+            getExecutor().execute(job);
+            stats.queued();
         } catch (Exception e) {
+            jobs.remove(uuid, job);
             log.error("queueJob: "+e, e);
-            return null;
         }
+        return null;
     }
 
     public boolean isRunning(String uuid) {
-        final EntityJobResult result = jobs.get(uuid);
-        return result == null ? null : result.isRunning();
+        final RefreshJob job = jobs.get(uuid);
+        return job != null && job.isRunning();
+    }
+
+    public int getQueueDepth() { return getExecutor().getQueue().size(); }
+    public int getRunningJobs() { return getExecutor().getActiveCount(); }
+
+    /**
+     * Called by the worker after a job's entity has been written. Override to react to new results.
+     */
+    protected void onJobComplete(String uuid, E entity) {}
+
+    private void complete(RefreshJob job, E entity) {
+        if (entity == null) return;
+        update(entity);
+        // record in redis when this was set, so if it gets too old we will kick off a job
+        setMetadata(metadataCtimeKey(entity), String.valueOf(now()));
+        onJobComplete(job.uuid, entity);
+    }
+
+    // interrupts stuck jobs
+    private void watchdog() {
+        while (true) {
+            sleep(Math.max(100, Math.min(getJobTimeout() / 4, TimeUnit.SECONDS.toMillis(10))), "BackgroundFetcherDAO.watchdog");
+            final long now = now();
+            for (RefreshJob job : jobs.values()) {
+                if (job.isRunning() && now - job.started > getJobTimeout()) job.cancel();
+            }
+        }
     }
 
-    private class EntityJobResult {
+    private class RefreshJob implements Runnable, Comparable<RefreshJob> {
 
-        private Future<E> future;
+        private final String uuid;
+        private final Map<String, Object> context;
+        private final long sequence = jobSequence.incrementAndGet();
+        private final LongAdder reads = new LongAdder();
 
-        public EntityJobResult(Future<E> future) { this.future = future; }
+        // only changed while the job is out of the queue
+        private volatile long priority = 1;
 
-        private E entity = null;
-        private Long lastRun = null;
+        private volatile Thread runner;
+        private volatile long started = 0;
 
-        public boolean isRunning() { return getEntity() == null; }
+        // guarded by this: a job is either cancelled or completed, never both
+        private volatile boolean cancelled = false;
+        private boolean completed = false;
 
-        public long getSummaryAge () { return lastRun == null ? Long.MAX_VALUE : now() - lastRun; }
+        public RefreshJob(String uuid, Map<String, Object> context) {
+            this.uuid = uuid;
+            this.context = context;
+            reads.increment();
+        }
 
-        public E getEntity() {
-            if (entity != null) return entity;
+        public boolean isRunning() { return runner != null; }
+
+        // another read while queued: each time the reads double, move the job up the queue
+        public void read() {
+            reads.increment();
+            final long r = reads.sum();
+            if ((r & (r - 1)) == 0 && runner == null) {
+                final BlockingQueue<Runnable> queue = getExecutor().getQueue();
+                if (queue.remove(this)) {
+                    priority = r;
+                    queue.offer(this);
+                }
+            }
+        }
+
+        @Override public int compareTo(RefreshJob other) {
+            final int byPriority = Long.compare(other.priority, priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+
+        @Override public void run() {
+            if (cancelled) return;
+            runner = Thread.currentThread();
+            started = now();
             try {
-                entity = future.get(50, TimeUnit.MILLISECONDS);
-                lastRun = now();
-                update(entity);
-                // record in redis when this was set, so if it gets too old we will kick off a job
-                setMetadata(metadataCtimeKey(entity), String.valueOf(now()));
-                jobs.remove(entity.getUuid());
-                return entity;
-
-            } catch (InterruptedException|ExecutionException e) {
-                return die(e);
-
-            } catch (TimeoutException e) {
-                return null;
+                final E entity = newEntityJob(uuid, context).call();
+                // holding the lock keeps cancel from interrupting the write, or counting a completed job as timed out
+                synchronized (this) {
+                    if (!cancelled) {
+                        complete(this, entity);
+                        completed = true;
+                    }
+                }
+                if (completed) stats.completed(now() - started);
+            } catch (Exception e) {
+                if (cancelled) {
+                    log.warn("run("+uuid+"): cancelled after "+(now() - started)+"ms");
+                } else {
+                    stats.failed();
+                    log.error("run("+uuid+"): "+e, e);
+                }
+            } finally {
+                jobs.remove(uuid, this);
+                synchronized (this) { runner = null; }
+                Thread.interrupted(); // clear any interrupt from cancel before the worker takes its next job
+            }
+        }
+
+        public void cancel() {
+            // synchronized with run, so we never interrupt a job while it completes,
+            // or the worker once it has moved on to another job
+            synchronized (this) {
+                if (cancelled || completed) return;
+                cancelled = true;
+                if (runner != null) runner.interrupt();
             }
+            stats.timedOut();
+            jobs.remove(uuid, this);
         }
     }
 
@@ -0,0 +1,72 @@
+package org.cobbzilla.wizard.dao;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for a BackgroundFetcherDAO's refresh jobs, and for the age of the results it serves.
+ */
+public class BackgroundFetcherStats {
+
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder runTime = new LongAdder();
+
+    private final LongAdder served = new LongAdder();
+    private final LongAdder staleness = new LongAdder();
+    private final LongAccumulator maxStaleness = new LongAccumulator(Math::max, 0);
+
+    public void queued () { queued.increment(); }
+
+    // a request for a key that already had a job queued or running
+    public void deduplicated () { deduplicated.increment(); }
+
+    // the queue was full
+    public void rejected () { rejected.increment(); }
+
+    public void completed (long time) {
+        completed.increment();
+        runTime.add(time);
+    }
+
+    public void failed () { failed.increment(); }
+    public void timedOut () { timedOut.increment(); }
+
+    // a cached result was returned, computed age milliseconds ago
+    public void served (long age) {
+        served.increment();
+        staleness.add(age);
+        maxStaleness.accumulate(age);
+    }
+
+    public long getQueued () { return queued.sum(); }
+    public long getDeduplicated () { return deduplicated.sum(); }
+    public long getRejected () { return rejected.sum(); }
+    public long getCompleted () { return completed.sum(); }
+    public long getFailed () { return failed.sum(); }
+    public long getTimedOut () { return timedOut.sum(); }
+    public long getServed () { return served.sum(); }
+    public long getMaxStaleness () { return maxStaleness.get(); }
+
+    public long getAverageRunTime () {
+        final long c = getCompleted();
+        return c == 0 ? 0 : runTime.sum() / c;
+    }
+
+    public long getAverageStaleness () {
+        final long s = getServed();
+        return s == 0 ? 0 : staleness.sum() / s;
+    }
+
+    @Override public String toString () {
+        return "queued=" + getQueued() + ", deduplicated=" + getDeduplicated() + ", rejected=" + getRejected()
+                + ", completed=" + getCompleted() + ", failed=" + getFailed() + ", timedOut=" + getTimedOut()
+                + ", avgRunTime=" + getAverageRunTime() + "ms, served=" + getServed()
+                + ", avgStaleness=" + getAverageStaleness() + "ms, maxStaleness=" + getMaxStaleness() + "ms";
+    }
+
+}
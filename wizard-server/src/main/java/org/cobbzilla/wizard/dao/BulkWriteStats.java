@@ -0,0 +1,50 @@
+package org.cobbzilla.wizard.dao;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-DAO throughput counters for the createAll/updateAll/deleteAll bulk write paths.
+ */
+public class BulkWriteStats {
+
+    private final LongAdder created = new LongAdder();
+    private final LongAdder updated = new LongAdder();
+    private final LongAdder deleted = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder flushTime = new LongAdder();
+    private final LongAdder totalTime = new LongAdder();
+
+    public void created (int rows, long time) { created.add(rows); totalTime.add(time); }
+    public void updated (int rows, long time) { updated.add(rows); totalTime.add(time); }
+    public void deleted (int rows, long time) { deleted.add(rows); totalTime.add(time); }
+
+    public void flushed (long time) {
+        flushes.increment();
+        flushTime.add(time);
+    }
+
+    public long getCreated () { return created.sum(); }
+    public long getUpdated () { return updated.sum(); }
+    public long getDeleted () { return deleted.sum(); }
+    public long getRows () { return getCreated() + getUpdated() + getDeleted(); }
+    public long getFlushes () { return flushes.sum(); }
+    public long getFlushTime () { return flushTime.sum(); }
+    public long getTotalTime () { return totalTime.sum(); }
+
+    public double getRowsPerSecond () {
+        final long t = getTotalTime();
+        return t == 0 ? 0.0d : ((double) getRows()) * 1000.0d / ((double) t);
+    }
+
+    public long getAverageFlushTime () {
+        final long f = getFlushes();
+        return f == 0 ? 0 : getFlushTime() / f;
+    }
+
+    @Override public String toString () {
+        return "created=" + getCreated() + ", updated=" + getUpdated() + ", deleted=" + getDeleted()
+                + ", rowsPerSecond=" + getRowsPerSecond() + ", flushes=" + getFlushes()
+                + ", avgFlushTime=" + getAverageFlushTime() + "ms";
+    }
+
+}
@@ -0,0 +1,113 @@
+package org.cobbzilla.wizard.dao;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.criterion.DetachedCriteria;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A forward-only iterator over the results of a Criteria query, backed by a database cursor on its own
+ * read-only session and transaction. Rows are pulled from the cursor only as the caller asks for them.
+ * The session is cleared every clearInterval rows so memory use stays constant; entities returned before a
+ * clear are detached and must not rely on lazy loading afterwards.
+ * Always close the cursor when done (or use try-with-resources), this ends the transaction and closes the session.
+ *
+ * A cursor made with inSession runs in the caller's session and transaction instead: it sees the caller's
+ * uncommitted changes and returns managed entities, and it neither clears, commits nor closes anything but itself.
+ */
+@Slf4j
+public class EntityCursor<E> implements Iterator<E>, Closeable {
+
+    private final Session session;
+    private final Transaction tx; // null when running in the caller's session
+    private final ScrollableResults results;
+    private final int clearInterval;
+
+    @Getter private long count = 0;
+    private Boolean hasNext = null;
+    private boolean closed = false;
+
+    public EntityCursor(Session session, DetachedCriteria criteria, int fetchSize, int clearInterval) {
+        this.session = session;
+        this.clearInterval = clearInterval;
+        Transaction t = null;
+        try {
+            // in autocommit mode the PostgreSQL driver ignores the fetch size and reads the whole result set up front
+            t = session.beginTransaction();
+            this.results = criteria.getExecutableCriteria(session)
+                    .setReadOnly(true)
+                    .setFetchSize(fetchSize)
+                    .scroll(ScrollMode.FORWARD_ONLY);
+        } catch (RuntimeException e) {
+            if (t != null) try { t.rollback(); } catch (Exception re) {
+                log.warn("EntityCursor: error rolling back: "+re);
+            }
+            session.close();
+            throw e;
+        }
+        this.tx = t;
+    }
+
+    private EntityCursor(Session session, DetachedCriteria criteria, int fetchSize) {
+        this.session = session;
+        this.tx = null;
+        this.clearInterval = 0;
+        this.results = criteria.getExecutableCriteria(session)
+                .setFetchSize(fetchSize)
+                .scroll(ScrollMode.FORWARD_ONLY);
+    }
+
+    /**
+     * @param session a session with an active transaction, so the fetch size is honored
+     * @return a cursor in the given session, which is left open when the cursor is closed
+     */
+    public static <E> EntityCursor<E> inSession(Session session, DetachedCriteria criteria, int fetchSize) {
+        return new EntityCursor<>(session, criteria, fetchSize);
+    }
+
+    @Override public boolean hasNext() {
+        if (closed) return false;
+        if (hasNext == null) {
+            if (clearInterval > 0 && count > 0 && count % clearInterval == 0) session.clear();
+            hasNext = results.next();
+            if (!hasNext) close();
+        }
+        return hasNext;
+    }
+
+    @Override public E next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        hasNext = null;
+        count++;
+        return (E) results.get(0);
+    }
+
+    @Override public void close() {
+        if (closed) return;
+        closed = true;
+        try { results.close(); } catch (Exception e) {
+            log.warn("close: error closing cursor: "+e);
+        }
+        if (tx == null) return;
+        // nothing was written, so commit only ends the transaction
+        try {
+            if (tx.isActive()) tx.commit();
+        } catch (Exception e) {
+            log.warn("close: error committing, rolling back: "+e);
+            try { tx.rollback(); } catch (Exception re) {
+                log.warn("close: error rolling back: "+re);
+            }
+        }
+        try { session.close(); } catch (Exception e) {
+            log.warn("close: error closing session: "+e);
+        }
+    }
+
+}
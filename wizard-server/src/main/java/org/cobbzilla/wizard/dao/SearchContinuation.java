@@ -0,0 +1,107 @@
+package org.cobbzilla.wizard.dao;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import org.cobbzilla.wizard.model.Identifiable;
+import org.cobbzilla.wizard.model.search.ResultPage;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.cobbzilla.util.json.JsonUtil.fromJsonOrDie;
+import static org.cobbzilla.util.json.JsonUtil.toJsonOrDie;
+import static org.cobbzilla.util.reflect.ReflectionUtil.get;
+import static org.cobbzilla.wizard.resources.ResourceUtil.invalidEx;
+
+/**
+ * The keyset (seek) position after the last row of a search page: the last-seen sort value and uuid.
+ * Handed to clients as an opaque token in SearchResults.continuation, and passed back in ResultPage.continuation.
+ *
+ * A null value means the last row's sort value was null. Searches order nulls last when ascending and first
+ * when descending, so the seek clause can place a null value, see AbstractDAO.search.
+ */
+@NoArgsConstructor @Accessors(chain=true)
+public class SearchContinuation {
+
+    @Getter @Setter private String sortField;
+    @Getter @Setter private String sortOrder;
+    @Getter @Setter private String valueType;
+    @Getter @Setter private String value;
+    @Getter @Setter private String uuid;
+
+    // sort value types that round-trip through toString; for any other type, searches page by offset
+    public static final Set<String> SUPPORTED_TYPES = new HashSet<>(Arrays.asList(
+            String.class.getName(), Long.class.getName(), Integer.class.getName(), Short.class.getName(),
+            Double.class.getName(), Float.class.getName(), Boolean.class.getName(), BigDecimal.class.getName()));
+
+    /**
+     * @return a continuation positioned after the given entity, or null if its sort value has an unsupported type
+     */
+    public static SearchContinuation after(Identifiable last, ResultPage page) {
+        final Object v = get(last, page.getSortField());
+        if (last.getUuid() == null) return null;
+        if (v != null && !SUPPORTED_TYPES.contains(v.getClass().getName())) return null;
+        return new SearchContinuation()
+                .setSortField(page.getSortField())
+                .setSortOrder(page.getSortOrder())
+                .setValueType(v == null ? null : v.getClass().getName())
+                .setValue(v == null ? null : v.toString())
+                .setUuid(last.getUuid());
+    }
+
+    public boolean hasValue() { return value != null; }
+
+    /**
+     * @return the last-seen sort value, or null if it was null
+     */
+    public Object sortValue() {
+        if (value == null) return null;
+        try {
+            switch (valueType) {
+                case "java.lang.String":     return value;
+                case "java.lang.Long":       return Long.valueOf(value);
+                case "java.lang.Integer":    return Integer.valueOf(value);
+                case "java.lang.Short":      return Short.valueOf(value);
+                case "java.lang.Double":     return Double.valueOf(value);
+                case "java.lang.Float":      return Float.valueOf(value);
+                case "java.lang.Boolean":    return Boolean.valueOf(value);
+                case "java.math.BigDecimal": return new BigDecimal(value);
+                default: throw invalidEx("err.continuation.invalid", "unsupported sort value type: "+valueType);
+            }
+        } catch (NumberFormatException e) {
+            throw invalidEx("err.continuation.invalid", "invalid sort value: "+value);
+        }
+    }
+
+    public boolean matches(ResultPage page) {
+        return String.valueOf(page.getSortField()).equals(sortField) && String.valueOf(page.getSortOrder()).equals(sortOrder);
+    }
+
+    public String encode() {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(toJsonOrDie(this).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @throws org.cobbzilla.wizard.validation.SimpleViolationException (400) if the token is malformed
+     */
+    public static SearchContinuation decode(String token) {
+        final SearchContinuation c;
+        try {
+            c = fromJsonOrDie(new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8), SearchContinuation.class);
+        } catch (Exception e) {
+            throw invalidEx("err.continuation.invalid", "invalid continuation token", token);
+        }
+        if (c == null || c.getUuid() == null || c.getSortField() == null
+                || (c.hasValue() && !SUPPORTED_TYPES.contains(c.getValueType()))) {
+            throw invalidEx("err.continuation.invalid", "invalid continuation token", token);
+        }
+        return c;
+    }
+
+}
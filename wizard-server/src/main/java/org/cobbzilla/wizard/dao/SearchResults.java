@@ -2,7 +2,6 @@ package org.cobbzilla.wizard.dao;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.databind.JavaType;
-import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
@@ -19,7 +18,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import static org.cobbzilla.util.daemon.ZillaRuntime.die;
 import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
 
-@NoArgsConstructor @AllArgsConstructor @Accessors(chain=true)
+@NoArgsConstructor @Accessors(chain=true)
 public class SearchResults<E> implements Scrubbable {
 
     public static final ScrubbableField[] SCRUBBABLE_FIELDS = new ScrubbableField[]{
@@ -40,6 +39,17 @@ public class SearchResults<E> implements Scrubbable {
     @Getter @Setter private List<E> results = new ArrayList<>();
     @Getter @Setter private Integer totalCount;
 
+    // true when totalCount came from table statistics or a cached count, rather than an exact count
+    @Getter @Setter private boolean totalCountEstimated = false;
+
+    // opaque token to pass as ResultPage.continuation to get the next page by seeking; null when there are no more
+    @Getter @Setter private String continuation;
+    @JsonIgnore public boolean hasContinuation() { return !empty(continuation); }
+
+    // for filtered queries: how many rows were read, and how many of those the filter accepted
+    @Getter @Setter private Integer scannedCount;
+    @Getter @Setter private Integer acceptedCount;
+
     public String getResultType() { return empty(results) ? null : results.get(0).getClass().getName(); }
     public void setResultType (String val) {} // noop
 
@@ -55,6 +65,11 @@ public class SearchResults<E> implements Scrubbable {
 
     public SearchResults(List<E> results) { this.results = results; }
 
+    public SearchResults(List<E> results, Integer totalCount) {
+        this.results = results;
+        this.totalCount = totalCount;
+    }
+
     public E getResult(int i) {
         return (i < 0 || i > results.size()-1) ? null : results.get(i);
     }
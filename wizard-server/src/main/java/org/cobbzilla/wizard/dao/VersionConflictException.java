@@ -0,0 +1,7 @@
+package org.cobbzilla.wizard.dao;
+
+public class VersionConflictException extends DAOException {
+
+    public VersionConflictException(String s) { super(s); }
+
+}
@@ -0,0 +1,91 @@
+package org.cobbzilla.wizard.dao.cache;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records which object-cache keys were derived from which entities (by uuid) and field values,
+ * so a write can evict only the keys it affects.
+ * Keys whose results could not be attributed to any entity depend on UNKNOWN, and are evicted by every write.
+ */
+public class CacheDependencyIndex {
+
+    public static final String UNKNOWN = "__unknown";
+
+    public static String uuidDependency(String uuid) { return "uuid:" + uuid; }
+    public static String fieldDependency(String field, Object value) { return "field:" + field + "=" + value; }
+
+    private final Map<String, Set<String>> keysByDependency = new HashMap<>();
+    private final Map<String, Set<String>> dependenciesByKey = new HashMap<>();
+
+    private final AtomicLong writes = new AtomicLong(0);
+    private final AtomicLong keysInvalidated = new AtomicLong(0);
+    private final AtomicLong maxKeysPerWrite = new AtomicLong(0);
+    private final AtomicLong lastKeysPerWrite = new AtomicLong(0);
+
+    public synchronized void register(String key, Collection<String> dependencies) {
+        remove(key);
+        final Set<String> deps = new HashSet<>(dependencies);
+        if (deps.isEmpty()) deps.add(UNKNOWN);
+        dependenciesByKey.put(key, deps);
+        for (String dep : deps) keysByDependency.computeIfAbsent(dep, d -> new HashSet<>()).add(key);
+    }
+
+    public synchronized void remove(String key) {
+        final Set<String> deps = dependenciesByKey.remove(key);
+        if (deps == null) return;
+        for (String dep : deps) {
+            final Set<String> keys = keysByDependency.get(dep);
+            if (keys == null) continue;
+            keys.remove(key);
+            if (keys.isEmpty()) keysByDependency.remove(dep);
+        }
+    }
+
+    /**
+     * Unregister and return every key that depends on any of the given dependencies, or on UNKNOWN.
+     * @param dependencies the dependencies touched by a write
+     * @return the keys that should be evicted from the cache
+     */
+    public synchronized Set<String> invalidate(Collection<String> dependencies) {
+        final Set<String> found = new HashSet<>();
+        final Set<String> unknown = keysByDependency.get(UNKNOWN);
+        if (unknown != null) found.addAll(unknown);
+        for (String dep : dependencies) {
+            final Set<String> keys = keysByDependency.get(dep);
+            if (keys != null) found.addAll(keys);
+        }
+        for (String key : found) remove(key);
+
+        writes.incrementAndGet();
+        keysInvalidated.addAndGet(found.size());
+        lastKeysPerWrite.set(found.size());
+        maxKeysPerWrite.accumulateAndGet(found.size(), Math::max);
+        return found;
+    }
+
+    public synchronized void clear() {
+        keysByDependency.clear();
+        dependenciesByKey.clear();
+    }
+
+    public synchronized int getKeyCount() { return dependenciesByKey.size(); }
+    public synchronized int getDependencyCount() { return keysByDependency.size(); }
+
+    public long getWrites() { return writes.get(); }
+    public long getKeysInvalidated() { return keysInvalidated.get(); }
+    public long getMaxKeysPerWrite() { return maxKeysPerWrite.get(); }
+    public long getLastKeysPerWrite() { return lastKeysPerWrite.get(); }
+
+    public double getAverageKeysPerWrite() {
+        final long w = getWrites();
+        return w == 0 ? 0.0d : ((double) getKeysInvalidated()) / ((double) w);
+    }
+
+    @Override public String toString() {
+        return "keys=" + getKeyCount() + ", dependencies=" + getDependencyCount()
+                + ", writes=" + getWrites() + ", keysInvalidated=" + getKeysInvalidated()
+                + ", avgKeysPerWrite=" + getAverageKeysPerWrite() + ", maxKeysPerWrite=" + getMaxKeysPerWrite();
+    }
+
+}
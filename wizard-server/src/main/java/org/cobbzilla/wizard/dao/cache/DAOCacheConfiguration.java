@@ -0,0 +1,42 @@
+package org.cobbzilla.wizard.dao.cache;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
+
+/**
+ * Configures the object cache used by AbstractCRUDDAO.cacheLookup.
+ * Set per-DAO in RestServerConfiguration.daoCaches, keyed by the DAO's simple class name.
+ */
+@NoArgsConstructor @Accessors(chain=true) @ToString
+public class DAOCacheConfiguration {
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    @Getter @Setter private boolean enabled = true;
+
+    // class name of the ObjectCache implementation to use
+    @Setter private String engine;
+    public String getEngine () { return empty(engine) ? LruObjectCache.class.getName() : engine; }
+
+    @Getter @Setter private int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    // time-to-live for each entry, in milliseconds. zero or negative means entries never expire
+    @Getter @Setter private long ttl = 0;
+    public boolean hasTtl () { return ttl > 0; }
+
+    // when true, values are copied once when stored and then shared by every cache hit without copying.
+    // collections come back unmodifiable, but entities are the shared instances themselves: callers MUST NOT
+    // modify objects returned from a read-only cache, since every later hit would see the change.
+    // enable verifyReadOnly in development and tests to catch callers that do
+    @Getter @Setter private boolean readOnly = false;
+
+    // debug aid for readOnly caches: a fingerprint of each value is kept when it is stored, and a hit on a value
+    // that no longer matches its fingerprint fails. costs a JSON serialization and hash per hit
+    @Getter @Setter private boolean verifyReadOnly = false;
+
+}
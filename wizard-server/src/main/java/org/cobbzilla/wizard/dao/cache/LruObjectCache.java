@@ -0,0 +1,136 @@
+package org.cobbzilla.wizard.dao.cache;
+
+import lombok.Getter;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
+
+/**
+ * Default ObjectCache: a size-bounded, approximately-LRU map with optional per-entry TTL.
+ * Reads never lock, they only mark the entry as referenced. When the cache grows past maxEntries, one writer
+ * evicts with the CLOCK algorithm: a hand sweeps the map, giving referenced entries a second chance (clearing the
+ * mark) and evicting unreferenced or expired ones, until the size is back to the limit. Each eviction is
+ * amortized O(1).
+ */
+public class LruObjectCache<K, V> implements ObjectCache<K, V> {
+
+    private static class CacheEntry<V> {
+        private final V value;
+        private final long expires;
+        // new entries start referenced, so the hand does not evict them before they are read
+        private volatile boolean referenced = true;
+
+        public CacheEntry(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+
+        public boolean expired (long now) { return expires > 0 && now > expires; }
+    }
+
+    @Getter private final ObjectCacheStats stats = new ObjectCacheStats();
+
+    private volatile int maxEntries = DAOCacheConfiguration.DEFAULT_MAX_ENTRIES;
+    private volatile long ttl = 0;
+    private volatile Consumer<K> removalListener = null;
+
+    private final Map<K, CacheEntry<V>> map = new ConcurrentHashMap<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private Iterator<Map.Entry<K, CacheEntry<V>>> hand = null; // guarded by evictionLock
+
+    @Override public ObjectCache<K, V> init(DAOCacheConfiguration config) {
+        maxEntries = config.getMaxEntries();
+        ttl = config.hasTtl() ? config.getTtl() : 0;
+        return this;
+    }
+
+    @Override public void setRemovalListener(Consumer<K> listener) { removalListener = listener; }
+
+    private void removed(K key) {
+        final Consumer<K> listener = removalListener;
+        if (listener != null) listener.accept(key);
+    }
+
+    @Override public V get(K key) {
+        final CacheEntry<V> entry = map.get(key);
+        if (entry == null) return null;
+        final long now = now();
+        if (entry.expired(now)) {
+            if (map.remove(key, entry)) {
+                stats.expired();
+                removed(key);
+            }
+            return null;
+        }
+        if (!entry.referenced) entry.referenced = true;
+        return entry.value;
+    }
+
+    @Override public void put(K key, V value) {
+        final long expires = ttl > 0 ? now() + ttl : 0;
+        map.put(key, new CacheEntry<>(value, expires));
+        if (map.size() > maxEntries) evict();
+    }
+
+    private void evict() {
+        // only one thread evicts at a time; others carry on, the cache may briefly exceed maxEntries
+        if (!evictionLock.tryLock()) return;
+        try {
+            int excess = map.size() - maxEntries;
+            // two full turns of the hand clear every mark, so this always finds something to evict
+            long steps = 2L * map.size();
+            final long now = now();
+            while (excess > 0 && steps-- > 0) {
+                if (hand == null || !hand.hasNext()) {
+                    hand = map.entrySet().iterator();
+                    if (!hand.hasNext()) break;
+                }
+                final Map.Entry<K, CacheEntry<V>> e = hand.next();
+                final CacheEntry<V> entry = e.getValue();
+                final boolean expired = entry.expired(now);
+                if (entry.referenced && !expired) {
+                    entry.referenced = false;
+                    continue;
+                }
+                if (map.remove(e.getKey(), entry)) {
+                    if (expired) stats.expired(); else stats.evicted();
+                    removed(e.getKey());
+                    excess--;
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override public V remove(K key) {
+        final CacheEntry<V> entry = map.remove(key);
+        return entry == null ? null : entry.value;
+    }
+
+    @Override public int removeIf(Predicate<K> keyMatch) {
+        int count = 0;
+        for (Iterator<K> iter = map.keySet().iterator(); iter.hasNext(); ) {
+            if (keyMatch.test(iter.next())) {
+                iter.remove();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override public boolean clear() {
+        if (map.isEmpty()) return false;
+        map.clear();
+        return true;
+    }
+
+    @Override public int size() { return map.size(); }
+
+}
@@ -0,0 +1,44 @@
+package org.cobbzilla.wizard.dao.cache;
+
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * A bounded in-process cache of DAO lookup results. Implementations must be thread-safe.
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public interface ObjectCache<K, V> {
+
+    ObjectCache<K, V> init(DAOCacheConfiguration config);
+
+    /**
+     * @param listener called with the key of each entry the cache drops on its own, by eviction or expiration
+     */
+    void setRemovalListener(Consumer<K> listener);
+
+    /**
+     * @return the cached value, or null if not present or expired
+     */
+    V get(K key);
+
+    void put(K key, V value);
+
+    V remove(K key);
+
+    /**
+     * Remove every entry whose key matches
+     * @return the number of entries removed
+     */
+    int removeIf(Predicate<K> keyMatch);
+
+    /**
+     * @return true if there were any entries to remove
+     */
+    boolean clear();
+
+    int size();
+
+    ObjectCacheStats getStats();
+
+}
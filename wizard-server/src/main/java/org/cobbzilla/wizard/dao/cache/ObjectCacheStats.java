@@ -0,0 +1,60 @@
+package org.cobbzilla.wizard.dao.cache;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-DAO cache counters. Uses striped LongAdders so concurrent hits do not contend on a single counter.
+ */
+public class ObjectCacheStats {
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder missTime = new LongAdder();
+    private final LongAdder sharedLoads = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    public void hit () { hits.increment(); }
+
+    public void miss (long lookupTime) {
+        missTime.add(lookupTime);
+        misses.increment();
+    }
+
+    // several keys loaded together by a single lookup
+    public void miss (int count, long lookupTime) {
+        missTime.add(lookupTime);
+        misses.add(count);
+    }
+
+    // a caller that waited on another caller's in-flight load for the same key
+    public void sharedLoad () { sharedLoads.increment(); }
+
+    public void evicted () { evictions.increment(); }
+    public void expired () { expirations.increment(); }
+
+    public long getHits () { return hits.sum(); }
+    public long getMisses () { return misses.sum(); }
+    public long getMissTime () { return missTime.sum(); }
+    public long getSharedLoads () { return sharedLoads.sum(); }
+    public long getEvictions () { return evictions.sum(); }
+    public long getExpirations () { return expirations.sum(); }
+
+    public double getHitRatio () {
+        final long h = getHits();
+        final long total = h + getMisses();
+        return total == 0 ? 0.0d : ((double) h) / ((double) total);
+    }
+
+    public long getAverageMissTime () {
+        final long m = getMisses();
+        return m == 0 ? 0 : getMissTime() / m;
+    }
+
+    @Override public String toString () {
+        return "hits=" + getHits() + ", misses=" + getMisses() + ", hitRatio=" + getHitRatio()
+                + ", avgMissTime=" + getAverageMissTime() + "ms, sharedLoads=" + getSharedLoads()
+                + ", evictions=" + getEvictions() + ", expirations=" + getExpirations();
+    }
+
+}
@@ -7,14 +7,18 @@ import org.cobbzilla.util.collection.mappy.MappyList;
 import org.cobbzilla.util.reflect.ReflectionUtil;
 import org.cobbzilla.wizard.cache.redis.HasRedisConfiguration;
 import org.cobbzilla.wizard.cache.redis.RedisService;
+import org.cobbzilla.wizard.cache.redis.RedisSubscription;
 import org.cobbzilla.wizard.dao.DAO;
 import org.cobbzilla.wizard.dao.SearchResults;
+import org.cobbzilla.wizard.dao.cache.DAOCacheConfiguration;
+import org.cobbzilla.wizard.dao.cache.ObjectCache;
 import org.cobbzilla.wizard.dao.shard.cache.ShardCacheableFindByUnique2FieldFinder;
 import org.cobbzilla.wizard.dao.shard.cache.ShardCacheableFindByUnique3FieldFinder;
 import org.cobbzilla.wizard.dao.shard.cache.ShardCacheableIdentityFinder;
 import org.cobbzilla.wizard.dao.shard.cache.ShardCacheableUniqueFieldFinder;
 import org.cobbzilla.wizard.dao.shard.task.*;
 import org.cobbzilla.wizard.model.search.ResultPage;
+import org.cobbzilla.wizard.model.shard.ShardHashFunction;
 import org.cobbzilla.wizard.model.shard.ShardIO;
 import org.cobbzilla.wizard.model.shard.ShardMap;
 import org.cobbzilla.wizard.model.shard.ShardRange;
@@ -30,18 +34,22 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PreDestroy;
 import javax.validation.Valid;
 import java.io.Serializable;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 import static org.cobbzilla.util.daemon.ZillaRuntime.*;
+import static org.cobbzilla.util.json.JsonUtil.fromJsonOrDie;
+import static org.cobbzilla.util.json.JsonUtil.toJsonOrDie;
 import static org.cobbzilla.util.reflect.ReflectionUtil.*;
-import static org.cobbzilla.util.security.ShaUtil.sha256_hex;
 import static org.cobbzilla.wizard.resources.ResourceUtil.timeoutEx;
-import static org.cobbzilla.util.daemon.Await.awaitAndCollect;
-import static org.cobbzilla.util.daemon.Await.awaitFirst;
+import static org.cobbzilla.wizard.resources.ResourceUtil.unavailableEx;
 import static org.cobbzilla.wizard.util.SpringUtil.autowire;
 
 @Transactional @Slf4j
@@ -61,6 +69,46 @@ public abstract class AbstractShardedDAO<E extends Shardable, D extends SingleSh
     @Getter(lazy=true) private final RedisService shardCache = initShardCache();
     private RedisService initShardCache() { return redisService.prefixNamespace("shard-cache-"+getEntityClass().getName()); }
 
+    public static final long DEFAULT_NEAR_CACHE_TTL = TimeUnit.SECONDS.toMillis(5);
+    public static final String NEAR_CACHE_CHANNEL = "__near-cache-invalidate";
+
+    /**
+     * The in-process cache in front of the redis shard cache, or null if the shard set has no nearCache configured.
+     * It holds the same JSON as the shard cache (so every hit returns a fresh object), and is kept coherent across
+     * servers by invalidation messages published from flushCacheRefs.
+     */
+    @Getter(lazy=true) private final ObjectCache<String, String> nearCache = initNearCache();
+    private ObjectCache<String, String> initNearCache() {
+        final ShardSetConfiguration shardConfig = getShardConfiguration();
+        if (!shardConfig.hasNearCache()) return null;
+        final DAOCacheConfiguration config = shardConfig.getNearCache();
+        final ObjectCache<String, String> cache = instantiate(config.getEngine());
+        cache.init(new DAOCacheConfiguration()
+                .setMaxEntries(config.getMaxEntries())
+                .setTtl(config.hasTtl() ? config.getTtl() : DEFAULT_NEAR_CACHE_TTL));
+        // anything published while we were not subscribed was missed, so start over on every (re)subscribe
+        nearCacheSubscription = getShardCache().subscribe(NEAR_CACHE_CHANNEL, this::nearCacheInvalidate, cache::clear);
+        return cache;
+    }
+
+    private volatile RedisSubscription nearCacheSubscription;
+
+    /**
+     * Stop listening for near-cache invalidations. Called by Spring when the application context is closed.
+     */
+    @PreDestroy public void shutdown() {
+        final RedisSubscription subscription = nearCacheSubscription;
+        if (subscription != null) {
+            nearCacheSubscription = null;
+            subscription.close();
+        }
+    }
+
+    private void nearCacheInvalidate(String message) {
+        final ObjectCache<String, String> cache = getNearCache();
+        if (cache != null) for (String key : fromJsonOrDie(message, String[].class)) cache.remove(key);
+    }
+
     @Getter private final Class<E> entityClass;
     @Getter private final Class<D> singleShardDaoClass;
     @Getter private final String hashOn;
@@ -77,11 +125,37 @@ public abstract class AbstractShardedDAO<E extends Shardable, D extends SingleSh
     public long getShardQueryTimeout (String method) { return DEFAULT_SHARD_QUERY_TIMEOUT; }
     public long getShardSearchTimeout () { return getShardQueryTimeout("search"); }
 
-    public static final int DEFAULT_MAX_QUERY_THREADS = 100;
+    // per-shard deadline: a shard that takes longer is abandoned, and a replica of it is tried if there is one
+    public static final long DEFAULT_SHARD_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+    public long getShardTimeout (String method) { return DEFAULT_SHARD_TIMEOUT; }
+
+    // a shard that has not answered after this long gets the same query sent to a replica. zero disables hedging.
+    // off by default: a hedged attempt adds load to the replicas, enable it per method where tail latency matters
+    public static final long DEFAULT_SHARD_HEDGE_DELAY = 0;
+    public long getShardHedgeDelay (String method) { return DEFAULT_SHARD_HEDGE_DELAY; }
+
+    // when true, shards that time out or fail are left out of the results instead of failing the whole query
+    public boolean allowPartialResults (String method) { return false; }
+
+    protected ShardQueryOptions getShardQueryOptions (String method) {
+        return new ShardQueryOptions()
+                .setTimeout(getShardQueryTimeout(method))
+                .setShardTimeout(getShardTimeout(method))
+                .setHedgeDelay(getShardHedgeDelay(method))
+                .setAllowPartialResults(allowPartialResults(method));
+    }
+
+    public static final int DEFAULT_MAX_QUERY_THREADS = ShardQueryExecutor.DEFAULT_MAX_THREADS;
     protected int getMaxQueryThreads () { return DEFAULT_MAX_QUERY_THREADS; }
+    protected int getMaxQueuedQueries () { return ShardQueryExecutor.DEFAULT_QUEUE_CAPACITY; }
 
-    private final BlockingQueue<Runnable> queryWorkerQueue = new LinkedBlockingQueue<>();
-    private final ThreadPoolExecutor queryWorkerPool = new ThreadPoolExecutor(getMaxQueryThreads()/2, getMaxQueryThreads(), 10, TimeUnit.MINUTES, queryWorkerQueue);
+    // DAOs using the default pool sizes share one executor; override the sizes for a dedicated one
+    @Getter(lazy=true) private final ShardQueryExecutor queryExecutor = initQueryExecutor();
+    protected ShardQueryExecutor initQueryExecutor () {
+        return getMaxQueryThreads() == DEFAULT_MAX_QUERY_THREADS && getMaxQueuedQueries() == ShardQueryExecutor.DEFAULT_QUEUE_CAPACITY
+                ? ShardQueryExecutor.shared()
+                : new ShardQueryExecutor(getMaxQueryThreads(), getMaxQueuedQueries());
+    }
 
     protected ApplicationContext getApplicationContext(DatabaseConfiguration database) {
 
@@ -137,11 +211,8 @@ public abstract class AbstractShardedDAO<E extends Shardable, D extends SingleSh
         }
     }
 
-    protected List<D> getAllDAOs(Serializable id) {
-        final List shards = getShardDAO().getShardList(getShardConfiguration().getName(), getLogicalShard(id));
-        if (shards.isEmpty()) shards.add(getDefaultShardMap());
-        return toDAOs(shards);
-    }
+    // route returns the routing table's own arrays: callers get a copy they may modify
+    protected List<D> getAllDAOs(Serializable id) { return new ArrayList<>(Arrays.asList((D[]) route(id, null))); }
 
     protected List<D> getAllDAOs() {
         final List shards = getShardDAO().findAllShards(getShardConfiguration().getName());
@@ -151,13 +222,77 @@ public abstract class AbstractShardedDAO<E extends Shardable, D extends SingleSh
 
     protected List<D> getAllDAOs(E entity) { return getAllDAOs((Serializable) getIdToHash(entity)); }
 
-    protected List<D> getDAOs(Serializable id, ShardIO shardIO) {
-        List<ShardMap> shardMaps = getShardDAO().getShardList(getShardConfiguration().getName(), getLogicalShard(id), shardIO);
-        if (shardMaps.isEmpty()) shardMaps = new SingletonList<>(getDefaultShardMap());
-        final List<D> found = toDAOs(shardMaps);
+    protected List<D> getDAOs(Serializable id, ShardIO shardIO) { return new ArrayList<>(Arrays.asList((D[]) route(id, shardIO))); }
+
+    /**
+     * The DAOs for each segment of the ShardMapDAO's routing table, rebuilt whenever a new table is built there
+     */
+    private static class DAORoutingTable {
+        final ShardRoutingTable source;
+        final SingleShardDAO[][] read;
+        final SingleShardDAO[][] write;
+        final SingleShardDAO[][] all;
+
+        DAORoutingTable(ShardRoutingTable source, Function<ShardMap[], SingleShardDAO[]> toDAOs, ShardMap defaultShard) {
+            this.source = source;
+            final int segments = source == null ? 1 : source.getSegmentCount();
+            read = new SingleShardDAO[segments][];
+            write = new SingleShardDAO[segments][];
+            all = new SingleShardDAO[segments][];
+            for (int s=0; s<segments; s++) {
+                read[s]  = toDAOs.apply(source == null ? new ShardMap[] {defaultShard} : source.getSegmentShards(s, ShardIO.read));
+                write[s] = toDAOs.apply(source == null ? new ShardMap[] {defaultShard} : source.getSegmentShards(s, ShardIO.write));
+                all[s]   = toDAOs.apply(source == null ? new ShardMap[] {defaultShard} : source.getSegmentShards(s, null));
+            }
+        }
+
+        SingleShardDAO[] get(int segment, ShardIO shardIO) {
+            if (shardIO == null) return all[segment];
+            switch (shardIO) {
+                case read:  return read[segment];
+                case write: return write[segment];
+                default: return die("get: invalid shardIO: "+shardIO);
+            }
+        }
+    }
+
+    private final AtomicReference<DAORoutingTable> daoRoutingTable = new AtomicReference<>();
+
+    private DAORoutingTable getDAORoutingTable() {
+        final ShardRoutingTable source = getShardDAO().getRoutingTable(getShardConfiguration().getName());
+        final DAORoutingTable current = daoRoutingTable.get();
+        if (current != null && current.source == source) return current;
+        final DAORoutingTable table = new DAORoutingTable(source, this::toDAOArray, source == null ? getDefaultShardMap() : null);
+        daoRoutingTable.set(table);
+        return table;
+    }
+
+    private SingleShardDAO[] toDAOArray(ShardMap[] shardMaps) {
+        if (shardMaps.length == 0) return new SingleShardDAO[] {toDAO(getDefaultShardMap())};
+        final SingleShardDAO[] found = new SingleShardDAO[shardMaps.length];
+        for (int i=0; i<shardMaps.length; i++) found[i] = toDAO(shardMaps[i]);
         return found;
     }
 
+    /**
+     * @param shardIO read, write, or null for both
+     * @return the DAOs for the shards holding the id. do not modify the returned array
+     */
+    protected SingleShardDAO[] route(Serializable id, ShardIO shardIO) {
+        final DAORoutingTable table = getDAORoutingTable();
+        if (table.source == null) return table.get(0, shardIO);
+        final int logicalShard = getLogicalShard(id);
+        final int segment = table.source.getSegment(logicalShard);
+        if (segment == -1) {
+            // logical shard outside the table (logicalShards differs from the shard set's count): route the slow way
+            final List<ShardMap> maps = shardIO == null
+                    ? getShardDAO().getShardList(getShardConfiguration().getName(), logicalShard)
+                    : getShardDAO().getShardList(getShardConfiguration().getName(), logicalShard, shardIO);
+            return toDAOArray(maps.toArray(new ShardMap[maps.size()]));
+        }
+        return table.get(segment, shardIO);
+    }
+
     protected List<D> getDAOs(ShardIO shardIO) {
         List<ShardMap> shards;
         switch (shardIO) {
@@ -176,15 +311,9 @@ public abstract class AbstractShardedDAO<E extends Shardable, D extends SingleSh
     }
 
     protected int getLogicalShard(Serializable id) {
-        final String hash = sha256_hex(id.toString()).substring(0, 7);
-        Long val;
-        try {
-            val = Long.valueOf(hash, 16);
-        } catch (NumberFormatException e) {
-            log.warn("getLogicalShard: invalid hex value: "+hash+" (returning 0): "+e);
-            return 0;
-        }
-        return (int) (Math.abs(val) % getShardConfiguration().getLogicalShards());
+        final ShardSetConfiguration config = getShardConfiguration();
+        final ShardHashFunction hashFunction = config.getHashFunction() == null ? ShardHashFunction.sha256 : config.getHashFunction();
+        return hashFunction.logicalShard(id.toString(), config.getLogicalShards());
     }
 
     protected List<D> toDAOs(Collection<ShardMap> shardMaps) {
@@ -245,7 +374,10 @@ public abstract class AbstractShardedDAO<E extends Shardable, D extends SingleSh
     }
 
     public D getDAO(Serializable id) { return getDAO(id, ShardIO.read); }
-    protected D getDAO(Serializable id, ShardIO shardIO) { return pickRandom(getDAOs(id, shardIO)); }
+    protected D getDAO(Serializable id, ShardIO shardIO) {
+        final SingleShardDAO[] daos = route(id, shardIO);
+        return (D) daos[daos.length == 1 ? 0 : ThreadLocalRandom.current().nextInt(daos.length)];
+    }
 
     protected D getDAO(E entity) { return getDAO(entity, ShardIO.read); }
     protected D getDAO(E entity, ShardIO shardIO) {
@@ -274,6 +406,108 @@ public abstract class AbstractShardedDAO<E extends Shardable, D extends SingleSh
         return toDAOs(shards);
     }
 
+    /**
+     * @return one group of DAOs per distinct logical range of the read shards. Each group holds every replica
+     * for its range in random order, so the first one gets the query and the rest are used for hedging and failover.
+     */
+    @Transactional(readOnly=true)
+    public List<List<D>> getNonOverlappingShardGroups() {
+        final List<ShardMap> shards = getReadShards();
+        if (shards.isEmpty()) return Collections.singletonList(toDAOs(new SingletonList<>(getDefaultShardMap())));
+
+        final MappyList<ShardRange, ShardMap> byRange = new MappyList<>();
+        for (ShardMap shard : shards) byRange.put(shard.getRange(), shard);
+
+        final List<List<D>> groups = new ArrayList<>();
+        for (ShardRange range : byRange.keySet()) {
+            final List<ShardMap> replicas = new ArrayList<>(byRange.getAll(range));
+            Collections.shuffle(replicas);
+            groups.add(toDAOs(replicas));
+        }
+        return groups;
+    }
+
+    /**
+     * Non-hashOn fields to keep routing indexes for. Finders whose (first) field is indexed only query the shards
+     * the index says may hold matching rows. Only index fields selective enough that each value maps to few shards.
+     * After declaring a new index, run rebuildRoutingIndexes: until it completes, finders query all shards.
+     * @return the fields to index, or null for none
+     */
+    protected String[] getRoutingIndexFields() { return null; }
+
+    @Getter(lazy=true) private final Map<String, ShardRoutingIndex> routingIndexes = initRoutingIndexes();
+    private Map<String, ShardRoutingIndex> initRoutingIndexes() {
+        final String[] fields = getRoutingIndexFields();
+        if (empty(fields)) return Collections.emptyMap();
+        final RedisService redis = redisService.prefixNamespace("shard-routing-"+getEntityClass().getName());
+        final Map<String, ShardRoutingIndex> indexes = new LinkedHashMap<>();
+        for (String field : fields) indexes.put(field, new ShardRoutingIndex(redis, field));
+        return indexes;
+    }
+    private boolean hasRoutingIndexes() { return !getRoutingIndexes().isEmpty(); }
+
+    /**
+     * @return how long a rebuild waits for writes that started before it, and keeps the previous index generation
+     * after switching; should exceed the longest time between routing-index update and shard write in create/update
+     */
+    protected long getRoutingIndexWriteGrace() { return ShardRoutingIndex.DEFAULT_WRITE_GRACE; }
+
+    public ShardRoutingIndexBuilder<E, D> rebuildRoutingIndexes() { return ShardRoutingIndexBuilder.rebuild(this).start(); }
+    public ShardRoutingIndexBuilder<E, D> checkRoutingIndexes(boolean repair) { return ShardRoutingIndexBuilder.check(this, repair).start(); }
+
+    /**
+     * @return groups of replica DAOs for only the shards that may hold rows whose field has one of the values,
+     * or null if the field has no ready routing index (the caller should query all shards)
+     */
+    public List<List<D>> routeShardGroups(String field, Collection<?> values) {
+        final ShardRoutingIndex index = getRoutingIndexes().get(field);
+        if (index == null) return null;
+        final Set<Integer> logicalShards = index.lookup(values);
+        return logicalShards == null ? null : getShardGroups(logicalShards);
+    }
+    public List<List<D>> routeShardGroups(String field, Object value) { return routeShardGroups(field, Collections.singletonList(value)); }
+
+    // route on the first indexed field, falling back to all shards
+    protected List<List<D>> routeShardGroups(String f1, Object v1, String f2, Object v2) {
+        List<List<D>> groups = routeShardGroups(f1, v1);
+        if (groups == null) groups = routeShardGroups(f2, v2);
+        return groups != null ? groups : getNonOverlappingShardGroups();
+    }
+
+    protected List<List<D>> getShardGroups(Collection<Integer> logicalShards) {
+        final Map<ShardRange, Set<ShardMap>> byRange = new LinkedHashMap<>();
+        for (Integer logicalShard : logicalShards) {
+            List<ShardMap> maps = getShardDAO().getShardList(getShardConfiguration().getName(), logicalShard, ShardIO.read);
+            if (maps.isEmpty()) maps = new SingletonList<>(getDefaultShardMap());
+            for (ShardMap map : maps) byRange.computeIfAbsent(map.getRange(), r -> new HashSet<>()).add(map);
+        }
+        final List<List<D>> groups = new ArrayList<>(byRange.size());
+        for (Set<ShardMap> replicas : byRange.values()) {
+            final List<ShardMap> shuffled = new ArrayList<>(replicas);
+            Collections.shuffle(shuffled);
+            groups.add(toDAOs(shuffled));
+        }
+        return groups;
+    }
+
+    private void addToRoutingIndexes(E entity) {
+        final int logicalShard = getLogicalShard((Serializable) getIdToHash(entity));
+        for (ShardRoutingIndex index : getRoutingIndexes().values()) {
+            index.add(logicalShard, entity.getUuid(), ReflectionUtil.get(entity, index.getField()));
+        }
+    }
+
+    // remove entries for values the entity no longer has (or all of them, if current is null)
+    private void removeFromRoutingIndexes(E previous, E current) {
+        final int logicalShard = getLogicalShard((Serializable) getIdToHash(previous));
+        for (ShardRoutingIndex index : getRoutingIndexes().values()) {
+            final Object prevValue = ReflectionUtil.get(previous, index.getField());
+            if (current == null || !Objects.equals(prevValue, ReflectionUtil.get(current, index.getField()))) {
+                index.remove(logicalShard, previous.getUuid(), prevValue);
+            }
+        }
+    }
+
     public List<ShardMap> getReadShards()  { return getShardDAO().findReadShards(getShardConfiguration().getName()); }
     public List<ShardMap> getWriteShards() { return getShardDAO().findWriteShards(getShardConfiguration().getName()); }
     public List<ShardMap> getAllShards()   { return getShardDAO().findAllShards(getShardConfiguration().getName()); }
@@ -333,8 +567,8 @@ public abstract class AbstractShardedDAO<E extends Shardable, D extends SingleSh
             return getDAO((String) value).findByField(field, value);
         }
 
-        // have to search all shards for it
-        return queryShardsList(new ShardFindByFieldTask.Factory(field, value), "findByField");
+        // search all shards for it, unless a routing index narrows it down
+        return queryShardsList(new ShardFindByFieldTask.Factory(field, value), "findByField", routeShardGroups(field, value));
     }
 
     @Transactional(readOnly=true)
@@ -349,8 +583,8 @@ public abstract class AbstractShardedDAO<E extends Shardable, D extends SingleSh
             return getDAO((String) eqValue).findByFieldEqualAndFieldLike(eqField, eqValue, likeField, likeValue);
         }
 
-        // have to search all shards for it
-        return queryShardsList(new ShardFindByFieldEqualAndFieldLikeTask.Factory(eqField, eqValue, likeField, likeValue), "findByFieldEqualAndFieldLike");
+        // search all shards for it, unless a routing index narrows it down
+        return queryShardsList(new ShardFindByFieldEqualAndFieldLikeTask.Factory(eqField, eqValue, likeField, likeValue), "findByFieldEqualAndFieldLike", routeShardGroups(eqField, eqValue));
     }
 
     @Transactional(readOnly=true)
@@ -364,8 +598,8 @@ public abstract class AbstractShardedDAO<E extends Shardable, D extends SingleSh
             return found;
         }
 
-        // have to search all shards for it
-        return queryShardsList(new ShardFindByFieldInTask.Factory(field, values), "findByFieldIn");
+        // search all shards for it, unless a routing index narrows it down
+        return queryShardsList(new ShardFindByFieldInTask.Factory(field, values), "findByFieldIn", routeShardGroups(field, Arrays.asList(values)));
     }
 
     @Transactional(readOnly=true)
@@ -380,8 +614,8 @@ public abstract class AbstractShardedDAO<E extends Shardable, D extends SingleSh
             return getDAO((String) v1).findByFields(f1, v1, f2, v2);
         }
 
-        // have to search all shards for it
-        return queryShardsList(new ShardFindBy2FieldsTask.Factory(f1, v1, f2, v2), "findByFields");
+        // search all shards for it, unless a routing index narrows it down
+        return queryShardsList(new ShardFindBy2FieldsTask.Factory(f1, v1, f2, v2), "findByFields", routeShardGroups(f1, v1, f2, v2));
     }
 
     @Transactional(readOnly=true)
@@ -390,80 +624,125 @@ public abstract class AbstractShardedDAO<E extends Shardable, D extends SingleSh
             return getDAO((String) v1).findByFields(f1, v1, f2, v2, f3, v3);
         }
 
-        // have to search all shards for it
-        return queryShardsList(new ShardFindBy2FieldsTask.Factory(f1, v1, f2, v2), "findByFields");
+        // search all shards for it, unless a routing index narrows it down
+        return queryShardsList(new ShardFindBy2FieldsTask.Factory(f1, v1, f2, v2), "findByFields", routeShardGroups(f1, v1, f2, v2));
     }
 
-    public E queryShardsUnique(ShardTaskFactory<E, D, E> factory, String ctx) {
+    protected <R> ShardQueryResult<R> queryShards(ShardTaskFactory<E, D, R> factory,
+                                                  ShardQueryOptions options,
+                                                  Predicate<List<R>> complete,
+                                                  String ctx) {
+        return queryShards(factory, options, complete, ctx, getNonOverlappingShardGroups());
+    }
+
+    protected <R> ShardQueryResult<R> queryShards(ShardTaskFactory<E, D, R> factory,
+                                                  ShardQueryOptions options,
+                                                  Predicate<List<R>> complete,
+                                                  String ctx,
+                                                  List<List<D>> groups) {
+        if (groups == null) groups = getNonOverlappingShardGroups();
         try {
-            // Start iterator tasks on all DAOs
-            final List<Future<E>> futures = new ArrayList<>();
-            for (D dao : getNonOverlappingDAOs()) {
-                futures.add(queryWorkerPool.submit(factory.newTask(dao)));
-            }
+            // tasks are registered when created, not when they begin, so cancelTasks also stops those still queued
+            return getQueryExecutor().query(groups, dao -> {
+                final ShardTask<E, D, R> task = factory.newTask(dao);
+                factory.getTasks().add(task);
+                return (Callable<R>) task;
+            }, options, complete);
 
-            // Wait for all iterators to finish (or for enough to finish that the rest get cancelled)
-            try {
-                return awaitFirst(futures, getShardQueryTimeout(ctx));
-            } catch (TimeoutException e) {
-                log.warn("queryShardsUnique: timed out");
-                throw timeoutEx();
-            }
+        } catch (TimeoutException e) {
+            log.warn(ctx+": timed out: "+e.getMessage());
+            throw timeoutEx();
+
+        } catch (RejectedExecutionException e) {
+            log.warn(ctx+": shard query queue full, rejecting");
+            throw unavailableEx();
 
         } finally {
             factory.cancelTasks();
         }
     }
 
+    public E queryShardsUnique(ShardTaskFactory<E, D, E> factory, String ctx) { return queryShardsUnique(factory, ctx, null); }
+
+    /**
+     * @param groups the shard groups to query, or null for all shards
+     */
+    public E queryShardsUnique(ShardTaskFactory<E, D, E> factory, String ctx, List<List<D>> groups) {
+        // a unique lookup cannot return partial results: a shard that did not answer may hold the match
+        final ShardQueryOptions options = getShardQueryOptions(ctx).setAllowPartialResults(false);
+        final ShardQueryResult<E> result = queryShards(factory, options, found -> found.stream().anyMatch(Objects::nonNull), ctx, groups);
+        for (E found : result.getResults()) if (found != null) return found;
+        return null;
+    }
+
     protected List<E> queryShardsList(ShardTaskFactory<E, D, List<E>> factory, String ctx) {
-        try {
-            // Start iterator tasks on all DAOs
-            final List<Future<List>> futures = new ArrayList<>();
-            for (D dao : getNonOverlappingDAOs()) {
-                futures.add(queryWorkerPool.submit(factory.newTask(dao)));
-            }
+        return queryShardsListResult(factory, ctx, null).getResults();
+    }
 
-            // Wait for all iterators to finish (or for enough to finish that the rest get cancelled)
-            try {
-                return awaitAndCollect(futures, MAX_QUERY_RESULTS, getShardQueryTimeout(ctx));
-            } catch (TimeoutException e) {
-                log.warn("queryShardsList: timed out");
-                throw timeoutEx();
-            }
+    protected List<E> queryShardsList(ShardTaskFactory<E, D, List<E>> factory, String ctx, List<List<D>> groups) {
+        return queryShardsListResult(factory, ctx, groups).getResults();
+    }
 
-        } finally {
-            for (ShardTask task : factory.getTasks()) task.cancel();
+    /**
+     * @param groups the shard groups to query, or null for all shards
+     */
+    protected ShardQueryResult<E> queryShardsListResult(ShardTaskFactory<E, D, List<E>> factory, String ctx, List<List<D>> groups) {
+        final ShardQueryResult<List<E>> result = queryShards(factory, getShardQueryOptions(ctx), lists -> count(lists) >= MAX_QUERY_RESULTS, ctx, groups);
+        final List<E> found = new ArrayList<>();
+        for (List<E> list : result.getResults()) {
+            if (list == null) continue;
+            for (E thing : list) {
+                if (found.size() >= MAX_QUERY_RESULTS) break;
+                found.add(thing);
+            }
         }
+        return result.withResults(found);
+    }
+
+    private static int count(List<? extends List> lists) {
+        int count = 0;
+        for (List list : lists) if (list != null) count += list.size();
+        return count;
     }
 
-    public <R> List<R> search(ShardSearch search) {
-        long timeout = search.hasTimeout() ? search.getTimeout() : getShardSearchTimeout();
+    public <R> List<R> search(ShardSearch search) { return this.<R>searchShards(search).getResults(); }
+
+    /**
+     * Run a search across shards. If the search allows partial results, the returned result lists
+     * any shards that timed out or failed.
+     */
+    public <R> ShardQueryResult<R> searchShards(ShardSearch search) {
         if (search.hasHash()) {
             final D dao = getDAO(search.getHash());
-            return dao.search(search);
-        } else {
-            final ShardTaskFactory factory = new ShardSearchTask.Factory(search);
-            try {
-                // Start iterator tasks on all DAOs
-                final List<Future<List>> futures = new ArrayList<>();
-                for (D dao : getNonOverlappingDAOs()) {
-                    futures.add(queryWorkerPool.submit(factory.newTask(dao)));
-                }
+            return new ShardQueryResult<>(dao.search(search));
+        }
+        final long timeout = search.hasTimeout() ? search.getTimeout() : getShardSearchTimeout();
+        final ShardQueryOptions options = getShardQueryOptions("search")
+                .setTimeout(timeout)
+                .setAllowPartialResults(search.hasAllowPartialResults() ? search.getAllowPartialResults() : allowPartialResults("search"));
+
+        if (search.isMergeable()) {
+            // each shard returns its own top rows in comparator order, merge them into the requested page
+            final ShardQueryResult<List<R>> result = queryShards(new ShardSearchTask.Factory(search, options.getEffectiveShardTimeout()), options, null, "search");
+            return result.withResults(search.merge(result.getResults()));
+        }
 
-                // Wait for all iterators to finish (or for enough to finish that the rest get cancelled)
-                final List<R> results;
-                try {
-                    final List unsorted = search.getCollector().await(futures, timeout);
-                    results = search.sort(unsorted);
-                } catch (TimeoutException e) {
-                    log.warn("search: timed out");
-                    throw timeoutEx();
-                }
-                return results;
+        // unsorted search tasks all add rows to the search's shared collector, so a duplicate attempt on a replica
+        // would add duplicate rows: no hedging or per-shard failover, only the overall deadline
+        options.setShardTimeout(timeout).setHedgeDelay(0).setFailover(false);
+        final long start = now();
+        final ShardQueryResult<List<R>> result = queryShards(new ShardSearchTask.Factory(search, timeout), options, null, "search");
 
-            } finally {
-                for (Object task : factory.getTasks()) ((ShardTask) task).cancel();
-            }
+        // queryShards has cancelled every task, and tasks only add to the collector while not cancelled,
+        // so the collector no longer changes. each result is the rows one shard added to it
+        final List<Future<List>> futures = new ArrayList<>(result.getResults().size());
+        for (List<R> rows : result.getResults()) futures.add(CompletableFuture.completedFuture((List) rows));
+        try {
+            final List<R> collected = search.getCollector().await(futures, Math.max(0, timeout - (now() - start)));
+            return result.withResults(search.sort(collected));
+        } catch (TimeoutException e) {
+            log.warn("search: timed out");
+            throw timeoutEx();
         }
     }
 
@@ -474,6 +753,7 @@ public abstract class AbstractShardedDAO<E extends Shardable, D extends SingleSh
 
     @Override public E create(@Valid E entity) {
         entity.beforeCreate();
+        if (hasRoutingIndexes()) addToRoutingIndexes(entity);
         E rval = null;
         Object ctx = null;
         for (D dao : getDAOs(entity, ShardIO.write)) {
@@ -501,6 +781,11 @@ public abstract class AbstractShardedDAO<E extends Shardable, D extends SingleSh
     @Override public Object preUpdate(@Valid E entity) { return null; }
 
     @Override public E update(@Valid E entity) {
+        E previous = null;
+        if (hasRoutingIndexes()) {
+            previous = getDAO(entity).findByUuid(entity.getUuid());
+            addToRoutingIndexes(entity);
+        }
         E rval = null;
         Object ctx = null;
         for (D dao : getDAOs(entity, ShardIO.write)) {
@@ -514,6 +799,7 @@ public abstract class AbstractShardedDAO<E extends Shardable, D extends SingleSh
                 postUpdate(entity, ctx);
             }
         }
+        if (previous != null) removeFromRoutingIndexes(previous, entity);
         return rval;
     }
 
@@ -523,9 +809,11 @@ public abstract class AbstractShardedDAO<E extends Shardable, D extends SingleSh
     }
 
     @Override public void delete(String uuid) {
+        final E found = hasRoutingIndexes() ? findByUuid(uuid, false) : null;
         final List<D> daos = hashOn.equals("uuid") ? getAllDAOs(uuid) : getAllDAOs();
         for (D dao : daos) dao.delete(uuid);
         flushShardCache(uuid);
+        if (found != null) removeFromRoutingIndexes(found, null);
     }
 
     @Override public void delete(Collection<E> entities) {
@@ -552,7 +840,14 @@ public abstract class AbstractShardedDAO<E extends Shardable, D extends SingleSh
         if (cacheRefsKey == null) return;
         final List<String> cacheRefs = getShardCache().list(cacheRefsKey);
         getShardCache().del(cacheRefsKey);
-        if (!empty(cacheRefs)) for (String ref : cacheRefs) getShardCache().del(ref);
+        if (!empty(cacheRefs)) {
+            for (String ref : cacheRefs) getShardCache().del(ref);
+            final ObjectCache<String, String> nearCache = getNearCache();
+            if (nearCache != null) {
+                for (String ref : cacheRefs) nearCache.remove(ref);
+                getShardCache().publish(NEAR_CACHE_CHANNEL, toJsonOrDie(cacheRefs.toArray(new String[cacheRefs.size()])));
+            }
+        }
         getShardCache().del(cacheRefsKey);
     }
 
@@ -21,6 +21,7 @@ import java.io.Closeable;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import static org.cobbzilla.util.daemon.ZillaRuntime.die;
@@ -36,7 +37,9 @@ public abstract class AbstractSingleShardDAO<E extends Shardable>
     @Getter @Setter private ShardMap shard;
 
     @Override public <R> List<R> search(ShardSearch search) {
-        return new ShardSearchTask(this, search).execTask();
+        final List<R> rows = new ShardSearchTask(this, search).execTask();
+        // sorted rows skip the collector in the task, the merge passes them to it
+        return search.isMergeable() ? search.merge(Collections.singletonList(rows)) : rows;
     }
 
     @Override public List query(int maxResults, String hsql, Object... args) {
@@ -44,6 +47,10 @@ public abstract class AbstractSingleShardDAO<E extends Shardable>
     }
 
     @Override public List query(int maxResults, String hsql, List<Object> args) {
+        return query(maxResults, 0, hsql, args);
+    }
+
+    @Override public List query(int maxResults, long timeout, String hsql, List<Object> args) {
         boolean isSql = false;
         if (hsql.startsWith(SQL_QUERY)) {
             isSql = true;
@@ -61,6 +68,8 @@ public abstract class AbstractSingleShardDAO<E extends Shardable>
                 query = session.createQuery(hsql);
             }
             query.setMaxResults(maxResults);
+            // query timeouts are in whole seconds, round up
+            if (timeout > 0) query.setTimeout((int) Math.min(Integer.MAX_VALUE, (timeout + 999) / 1000));
             int i = isSql ? 1 : 0;
             for (Object arg : args) {
                 if (arg == null) {
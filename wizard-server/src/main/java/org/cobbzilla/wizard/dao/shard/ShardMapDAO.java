@@ -26,6 +26,7 @@ public abstract class ShardMapDAO<E extends ShardMap> extends AbstractCRUDDAO<E>
     private final AtomicReference<List<E>> flatCache = new AtomicReference<>();
     private final AtomicReference<MappyList<String, E>> readCache = new AtomicReference<>();
     private final AtomicReference<MappyList<String, E>> writeCache = new AtomicReference<>();
+    private final AtomicReference<Map<String, ShardRoutingTable>> routingTables = new AtomicReference<>(Collections.emptyMap());
     private final AtomicLong lastRefresh = new AtomicLong(0);
     private final AtomicReference<Thread> refresher = new AtomicReference<>();
 
@@ -55,15 +56,19 @@ public abstract class ShardMapDAO<E extends ShardMap> extends AbstractCRUDDAO<E>
                             newFlatCache.add(shardMap);
                         }
 
-                        // validate
+                        // validate, and build routing tables
+                        final Map<String, ShardRoutingTable> newRoutingTables = new HashMap<>();
                         for (String shardSet : toNames(newFlatCache)) {
                             if (!validate(shardSet, newReadCache.getAll(shardSet))) log.warn("Invalid read-shard set for " + shardSet);
                             if (!validate(shardSet, newWriteCache.getAll(shardSet))) log.warn("Invalid write-shard set for " + shardSet);
+                            newRoutingTables.put(shardSet, new ShardRoutingTable(shardSet, getLogicalShardCount(shardSet),
+                                    newReadCache.getAll(shardSet), newWriteCache.getAll(shardSet)));
                         }
 
                         readCache.set(newReadCache);
                         writeCache.set(newWriteCache);
                         flatCache.set(newFlatCache);
+                        routingTables.set(newRoutingTables);
 
                         lastRefresh.set(now());
 
@@ -100,13 +105,23 @@ public abstract class ShardMapDAO<E extends ShardMap> extends AbstractCRUDDAO<E>
         return new HashSet<>(CollectionUtils.collect(flatCache, TO_SHARD_SET));
     }
 
+    /**
+     * @return the routing table for the shard set, or null if it has no shards. A new table is built on each
+     * refresh, so callers can cache anything derived from it for as long as the same table is returned.
+     */
+    public ShardRoutingTable getRoutingTable(String shardSet) {
+        refreshCache();
+        return routingTables.get().get(shardSet);
+    }
+
     public List<E> getShardList(String shardSet, int logicalShard, ShardIO shardIO) {
-        List<E> maps = getShardList(shardSet, shardIO);
-        final List<E> matches = new ArrayList<>();
-        for (E m : maps) {
-            if (m.mapsShard(logicalShard)) matches.add(m);
+        final ShardRoutingTable table = getRoutingTable(shardSet);
+        if (table == null || table.getSegment(logicalShard) == -1) {
+            final List<E> matches = new ArrayList<>();
+            for (E m : getShardList(shardSet, shardIO)) if (m.mapsShard(logicalShard)) matches.add(m);
+            return matches;
         }
-        return matches;
+        return new ArrayList<>(Arrays.asList((E[]) table.getShards(logicalShard, shardIO)));
     }
 
     protected List<E> getShardList(String shardSet, ShardIO shardIO) {
@@ -119,7 +134,10 @@ public abstract class ShardMapDAO<E extends ShardMap> extends AbstractCRUDDAO<E>
     }
 
     protected List<E> getShardList(String shardSet, int logicalShard) {
-        refreshCache();
+        final ShardRoutingTable table = getRoutingTable(shardSet);
+        if (table != null && table.getSegment(logicalShard) != -1) {
+            return new ArrayList<>(Arrays.asList((E[]) table.getShards(logicalShard, null)));
+        }
         final Set<E> maps = new HashSet<>();
         for (E map : readCache.get().getAll(shardSet)) if (map.mapsShard(logicalShard)) maps.add(map);
         for (E map : writeCache.get().getAll(shardSet)) if (map.mapsShard(logicalShard)) maps.add(map);
@@ -0,0 +1,291 @@
+package org.cobbzilla.wizard.dao.shard;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
+
+/**
+ * Runs fan-out queries across groups of replica shards on a bounded thread pool.
+ *
+ * Each group is a list of DAOs for shards covering the same logical range; the first DAO is queried first.
+ * An attempt that runs past the per-shard timeout is abandoned (its thread is interrupted) and the next replica
+ * in its group is tried, unless failover is off. Tasks should also set a database query timeout, since a blocked
+ * JDBC call may not respond to the interrupt.
+ * An attempt still running after the hedge delay gets a duplicate (hedged) attempt on the next replica,
+ * and whichever answers first wins. A group whose attempts all failed or timed out, or that has not answered
+ * by the overall deadline, either fails the query or is reported in the ShardQueryResult (see ShardQueryOptions).
+ *
+ * When the work queue is full, new queries are rejected with a RejectedExecutionException rather than queued.
+ */
+@Slf4j
+public class ShardQueryExecutor {
+
+    public static final int DEFAULT_MAX_THREADS = 100;
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    private static class Shared {
+        static final ShardQueryExecutor INSTANCE = new ShardQueryExecutor(DEFAULT_MAX_THREADS, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @return the executor shared by all sharded DAOs that do not configure their own
+     */
+    public static ShardQueryExecutor shared() { return Shared.INSTANCE; }
+
+    private final ThreadPoolExecutor pool;
+
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder attempts = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder shardTimeouts = new LongAdder();
+    private final LongAdder shardFailures = new LongAdder();
+    private final LongAdder failovers = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder partialResults = new LongAdder();
+
+    public ShardQueryExecutor(int maxThreads, int queueCapacity) {
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        pool = new ThreadPoolExecutor(maxThreads, maxThreads, 1, TimeUnit.MINUTES,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    final Thread t = new Thread(r, "shard-query-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    private static String shardName(SingleShardDAO dao) {
+        return dao.getShard() == null ? String.valueOf(dao) : dao.getShard().getDbName();
+    }
+
+    private static class Attempt {
+        final int group;
+        final String shard;
+        final boolean hedge;
+        final long start = now();
+        volatile Future<?> future;
+        Attempt(int group, String shard, boolean hedge) { this.group = group; this.shard = shard; this.hedge = hedge; }
+        void cancel() { if (future != null) future.cancel(true); }
+    }
+
+    private static class Completion {
+        final Attempt attempt;
+        final Object result;
+        final Throwable error;
+        Completion(Attempt attempt, Object result, Throwable error) { this.attempt = attempt; this.result = result; this.error = error; }
+    }
+
+    private static class Group<D> {
+        final List<D> replicas;
+        final List<Attempt> running = new ArrayList<>(2);
+        int next = 0;
+        boolean done = false;
+        boolean hedged = false;
+        String lastShard;
+        Group(List<D> replicas) { this.replicas = replicas; }
+        boolean hasNext() { return next < replicas.size(); }
+    }
+
+    /**
+     * Query every group of replica shards.
+     * @param groups groups of DAOs for replica shards, one group per logical range
+     * @param tasks creates the task to run against a single shard
+     * @param options deadlines, hedging and partial-result settings
+     * @param complete if not null, the query stops early (cancelling outstanding shards) once this returns true
+     *                 for the results received so far
+     * @return one result per group that answered, in the order they answered
+     * @throws TimeoutException if a group timed out and partial results are not allowed
+     * @throws RejectedExecutionException if the work queue is full
+     */
+    public <D extends SingleShardDAO, R> ShardQueryResult<R> query(List<List<D>> groups,
+                                                                  Function<D, Callable<R>> tasks,
+                                                                  ShardQueryOptions options,
+                                                                  Predicate<List<R>> complete) throws TimeoutException {
+        queries.increment();
+        final long deadline = now() + options.getTimeout();
+        final long shardTimeout = options.getEffectiveShardTimeout();
+        final BlockingQueue<Completion> completions = new LinkedBlockingQueue<>();
+        final List<Group<D>> state = new ArrayList<>(groups.size());
+        final ShardQueryResult<R> result = new ShardQueryResult<>();
+        Throwable lastError = null;
+        int pending = 0;
+
+        try {
+            for (List<D> replicas : groups) {
+                final Group<D> g = new Group<>(replicas);
+                state.add(g);
+                if (submit(state.size()-1, g, tasks, completions, false)) {
+                    pending++;
+                } else {
+                    g.done = true;
+                }
+            }
+
+            while (pending > 0) {
+                long wake = deadline;
+                for (Group<D> g : state) {
+                    if (g.done) continue;
+                    for (Attempt a : g.running) wake = Math.min(wake, a.start + shardTimeout);
+                    if (canHedge(g, options)) wake = Math.min(wake, g.running.get(0).start + options.getHedgeDelay());
+                }
+
+                final Completion c;
+                try {
+                    c = completions.poll(Math.max(0, wake - now()), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return die("query: interrupted");
+                }
+
+                if (c != null) {
+                    final Group<D> g = state.get(c.attempt.group);
+                    g.running.remove(c.attempt);
+                    if (!g.done) {
+                        if (c.error == null) {
+                            g.done = true;
+                            pending--;
+                            if (c.attempt.hedge) hedgeWins.increment();
+                            for (Attempt a : g.running) a.cancel();
+                            g.running.clear();
+                            result.getResults().add((R) c.result);
+                            if (complete != null && complete.test(result.getResults())) break;
+
+                        } else {
+                            shardFailures.increment();
+                            lastError = c.error;
+                            log.warn("query: shard "+c.attempt.shard+" failed: "+c.error);
+                            if (g.running.isEmpty() && !failover(c.attempt.group, g, tasks, completions, options)) {
+                                g.done = true;
+                                pending--;
+                                result.getFailedShards().add(c.attempt.shard);
+                            }
+                        }
+                    }
+                }
+
+                final long t = now();
+                if (t >= deadline) {
+                    for (Group<D> g : state) {
+                        if (g.done) continue;
+                        g.done = true;
+                        shardTimeouts.increment();
+                        result.getTimedOutShards().add(g.lastShard);
+                    }
+                    pending = 0;
+                    break;
+                }
+                for (int i=0; i<state.size(); i++) {
+                    final Group<D> g = state.get(i);
+                    if (g.done) continue;
+                    for (Attempt a : new ArrayList<>(g.running)) {
+                        if (t - a.start >= shardTimeout) {
+                            log.warn("query: shard "+a.shard+" timed out after "+(t - a.start)+"ms");
+                            shardTimeouts.increment();
+                            a.cancel();
+                            g.running.remove(a);
+                        }
+                    }
+                    if (g.running.isEmpty()) {
+                        if (!failover(i, g, tasks, completions, options)) {
+                            g.done = true;
+                            pending--;
+                            result.getTimedOutShards().add(g.lastShard);
+                        }
+                    } else if (canHedge(g, options) && t - g.running.get(0).start >= options.getHedgeDelay()) {
+                        g.hedged = true;
+                        if (submit(i, g, tasks, completions, true)) hedges.increment();
+                    }
+                }
+            }
+
+        } finally {
+            for (Group<D> g : state) for (Attempt a : g.running) a.cancel();
+        }
+
+        if (result.isPartial()) {
+            if (!options.isAllowPartialResults()) {
+                if (result.getTimedOutShards().isEmpty()) {
+                    return die("query: shards failed: "+result.getFailedShards()+": "+lastError, lastError instanceof Exception ? (Exception) lastError : null);
+                }
+                throw new TimeoutException("query: shards timed out: "+result.getTimedOutShards());
+            }
+            partialResults.increment();
+            log.warn("query: returning partial results: "+result);
+        }
+        return result;
+    }
+
+    private <D> boolean canHedge(Group<D> g, ShardQueryOptions options) {
+        return options.hasHedgeDelay() && !g.hedged && g.running.size() == 1 && g.hasNext();
+    }
+
+    private <D extends SingleShardDAO, R> boolean failover(int i, Group<D> g,
+                                                            Function<D, Callable<R>> tasks,
+                                                            BlockingQueue<Completion> completions,
+                                                            ShardQueryOptions options) {
+        if (!options.isFailover() || !g.hasNext()) return false;
+        failovers.increment();
+        return submit(i, g, tasks, completions, false);
+    }
+
+    private <D extends SingleShardDAO, R> boolean submit(int i, Group<D> g,
+                                                          Function<D, Callable<R>> tasks,
+                                                          BlockingQueue<Completion> completions,
+                                                          boolean hedge) {
+        if (!g.hasNext()) return false;
+        final D dao = g.replicas.get(g.next++);
+        final Attempt attempt = new Attempt(i, shardName(dao), hedge);
+        final Callable<R> task = tasks.apply(dao);
+        try {
+            attempt.future = pool.submit(() -> {
+                try {
+                    completions.add(new Completion(attempt, task.call(), null));
+                } catch (Throwable e) {
+                    completions.add(new Completion(attempt, null, e));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw e;
+        }
+        attempts.increment();
+        g.running.add(attempt);
+        g.lastShard = attempt.shard;
+        return true;
+    }
+
+    public int getActiveThreads() { return pool.getActiveCount(); }
+    public int getQueueDepth() { return pool.getQueue().size(); }
+    public int getQueueCapacity() { return pool.getQueue().size() + pool.getQueue().remainingCapacity(); }
+
+    public long getQueries() { return queries.sum(); }
+    public long getAttempts() { return attempts.sum(); }
+    public long getRejected() { return rejected.sum(); }
+    public long getShardTimeouts() { return shardTimeouts.sum(); }
+    public long getShardFailures() { return shardFailures.sum(); }
+    public long getFailovers() { return failovers.sum(); }
+    public long getHedges() { return hedges.sum(); }
+    public long getHedgeWins() { return hedgeWins.sum(); }
+    public long getPartialResults() { return partialResults.sum(); }
+
+    @Override public String toString() {
+        return "activeThreads=" + getActiveThreads() + ", queueDepth=" + getQueueDepth() + "/" + getQueueCapacity()
+                + ", queries=" + getQueries() + ", attempts=" + getAttempts() + ", rejected=" + getRejected()
+                + ", shardTimeouts=" + getShardTimeouts() + ", shardFailures=" + getShardFailures()
+                + ", failovers=" + getFailovers() + ", hedges=" + getHedges() + ", hedgeWins=" + getHedgeWins()
+                + ", partialResults=" + getPartialResults();
+    }
+
+}
@@ -0,0 +1,32 @@
+package org.cobbzilla.wizard.dao.shard;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+/**
+ * Deadlines and fault-tolerance settings for a single fan-out query run by a ShardQueryExecutor.
+ * All times are in milliseconds.
+ */
+@NoArgsConstructor @Accessors(chain=true)
+public class ShardQueryOptions {
+
+    // overall deadline for the query, measured from when it starts
+    @Getter @Setter private long timeout;
+
+    // deadline for a single attempt on a single shard; a timed-out attempt fails over to a replica if one is left
+    @Getter @Setter private long shardTimeout;
+    public long getEffectiveShardTimeout() { return shardTimeout <= 0 ? timeout : Math.min(shardTimeout, timeout); }
+
+    // if a shard has not answered after this long, send the same query to a replica of it. zero disables hedging
+    @Getter @Setter private long hedgeDelay;
+    public boolean hasHedgeDelay() { return hedgeDelay > 0; }
+
+    // when false, a failed or timed-out attempt is not retried on a replica, and its group fails or times out
+    @Getter @Setter private boolean failover = true;
+
+    // when true, shards that time out or fail are reported in the ShardQueryResult instead of failing the query
+    @Getter @Setter private boolean allowPartialResults = false;
+
+}
@@ -0,0 +1,41 @@
+package org.cobbzilla.wizard.dao.shard;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
+
+/**
+ * The results of a fan-out query across shards. When partial results are allowed, any shards that
+ * timed out or failed are listed here, and the results only include rows from the shards that answered.
+ */
+@NoArgsConstructor @AllArgsConstructor @Accessors(chain=true)
+public class ShardQueryResult<R> {
+
+    @Getter @Setter private List<R> results = new ArrayList<>();
+    @Getter @Setter private List<String> timedOutShards = new ArrayList<>();
+    @Getter @Setter private List<String> failedShards = new ArrayList<>();
+
+    public ShardQueryResult(List<R> results) { this.results = results; }
+
+    public boolean isPartial() { return !empty(timedOutShards) || !empty(failedShards); }
+
+    /**
+     * @return a new result with the given rows, flagged with the same timed-out and failed shards as this one
+     */
+    public <T> ShardQueryResult<T> withResults(List<T> results) {
+        return new ShardQueryResult<>(results, timedOutShards, failedShards);
+    }
+
+    @Override public String toString() {
+        return "ShardQueryResult{results=" + (results == null ? 0 : results.size())
+                + (isPartial() ? ", timedOutShards=" + timedOutShards + ", failedShards=" + failedShards : "") + "}";
+    }
+
+}
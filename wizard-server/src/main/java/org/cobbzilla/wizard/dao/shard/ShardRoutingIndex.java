@@ -0,0 +1,200 @@
+package org.cobbzilla.wizard.dao.shard;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.wizard.cache.redis.RedisService;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.cobbzilla.util.system.Sleep.sleep;
+
+/**
+ * A secondary index in Redis from the values of a non-hashOn field to the logical shards holding entities
+ * with that value, so finders on the field can query only those shards instead of every shard.
+ *
+ * Each value maps to a set of "logicalShard:uuid" members. Entries are added before an entity is written
+ * and removed after, so a lookup may return extra shards but never misses one.
+ *
+ * Entries live in numbered generations. Lookups read the active generation, which is checked on every lookup;
+ * there is none until a build has completed, and then the caller must query all shards. A rebuild fills a new
+ * generation while writes go to both the active and the new one, then makes the new one active in a single SET,
+ * see ShardRoutingIndexBuilder.
+ */
+@Slf4j
+public class ShardRoutingIndex {
+
+    // how long writes may take between reading the generations and writing their entity; see ShardRoutingIndexBuilder
+    public static final long DEFAULT_WRITE_GRACE = TimeUnit.SECONDS.toMillis(5);
+
+    private static final String ACTIVE_KEY = "__active";
+    private static final String BUILDING_KEY = "__building";
+    private static final String GENERATION_KEY = "__generation";
+
+    private final RedisService redis;
+    @Getter private final String field;
+
+    public ShardRoutingIndex(RedisService redis, String field) {
+        this.redis = redis;
+        this.field = field;
+    }
+
+    private String key(long generation, Object value) { return generationPrefix(generation) + value; }
+    private String generationPrefix(long generation) { return field + ":" + generation + ":"; }
+    private String activeKey() { return ACTIVE_KEY + ":" + field; }
+    private String buildingKey() { return BUILDING_KEY + ":" + field; }
+    private String generationKey() { return GENERATION_KEY + ":" + field; }
+    private String member(int logicalShard, String uuid) { return logicalShard + ":" + uuid; }
+
+    private Long parseGeneration(String value) {
+        if (value == null) return null;
+        try {
+            return Long.valueOf(value);
+        } catch (NumberFormatException e) {
+            log.warn("parseGeneration("+field+"): invalid generation, ignoring: "+value);
+            return null;
+        }
+    }
+
+    private Integer parseShard(String value) {
+        try {
+            return Integer.valueOf(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the generation lookups read, or null if no build has completed
+     */
+    public Long getActiveGeneration() { return parseGeneration(redis.get(activeKey())); }
+
+    public boolean isReady() { return getActiveGeneration() != null; }
+
+    // the active generation and the one being built, if any
+    private Set<Long> writeGenerations() {
+        final Set<Long> generations = new HashSet<>(2);
+        for (String value : redis.mget(Arrays.asList(activeKey(), buildingKey()))) {
+            final Long generation = parseGeneration(value);
+            if (generation != null) generations.add(generation);
+        }
+        return generations;
+    }
+
+    public void add(int logicalShard, String uuid, Object value) {
+        if (value == null) return;
+        for (Long generation : writeGenerations()) redis.sadd(key(generation, value), member(logicalShard, uuid));
+    }
+
+    public void remove(int logicalShard, String uuid, Object value) {
+        if (value == null) return;
+        for (Long generation : writeGenerations()) redis.srem(key(generation, value), member(logicalShard, uuid));
+    }
+
+    /**
+     * @return true if the active generation has an entry for the entity
+     */
+    public boolean contains(int logicalShard, String uuid, Object value) {
+        if (value == null) return false;
+        final Long generation = getActiveGeneration();
+        return generation != null && redis.sismember(key(generation, value), member(logicalShard, uuid));
+    }
+
+    /**
+     * @return the logical shards that may hold entities whose field has any of the given values,
+     * or null if the index is not ready
+     */
+    public Set<Integer> lookup(Collection<?> values) {
+        final Long generation = getActiveGeneration();
+        if (generation == null) return null;
+        final Set<Integer> shards = new HashSet<>();
+        for (Object value : values) {
+            if (value == null) continue;
+            for (String member : redis.smembers(key(generation, value))) {
+                final int sep = member.indexOf(':');
+                try {
+                    shards.add(Integer.valueOf(sep == -1 ? member : member.substring(0, sep)));
+                } catch (NumberFormatException e) {
+                    log.warn("lookup("+field+"): invalid member, ignoring: "+member);
+                }
+            }
+        }
+        return shards;
+    }
+
+    public interface EntryVisitor { void visit(String value, int logicalShard, String uuid); }
+
+    /**
+     * Visit every entry of the active generation. Entries added or removed meanwhile may or may not be visited.
+     * @param visitor called with each entry's value (as a string), logical shard and uuid
+     * @return false if the index is not ready
+     */
+    public boolean forEachEntry(EntryVisitor visitor) {
+        final Long generation = getActiveGeneration();
+        if (generation == null) return false;
+        final String prefix = generationPrefix(generation);
+        for (Iterator<String> keys = redis.scan(prefix + "*", RedisService.DEFAULT_SCAN_BATCH); keys.hasNext(); ) {
+            final String key = keys.next();
+            final String value = key.substring(prefix.length());
+            for (String member : redis.smembers(key)) {
+                final int sep = member.indexOf(':');
+                final Integer logicalShard = sep == -1 ? null : parseShard(member.substring(0, sep));
+                if (logicalShard == null) {
+                    log.warn("forEachEntry("+field+"): invalid member, ignoring: "+member);
+                    continue;
+                }
+                visitor.visit(value, logicalShard, member.substring(sep+1));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Start a new generation: from now on, writes also go to it
+     * @return the new generation, to pass to addToBuild and completeBuild
+     */
+    public long startBuild() {
+        final long generation = redis.incr(generationKey());
+        redis.set(buildingKey(), String.valueOf(generation));
+        return generation;
+    }
+
+    public void addToBuild(long generation, int logicalShard, String uuid, Object value) {
+        if (value != null) redis.sadd(key(generation, value), member(logicalShard, uuid));
+    }
+
+    /**
+     * Make a built generation the active one, then delete the previous generation
+     * @param grace how long to keep the previous generation for lookups that read it just before the switch
+     */
+    public void completeBuild(long generation, long grace) {
+        final Long previous = getActiveGeneration();
+        redis.set(activeKey(), String.valueOf(generation));
+        redis.del(buildingKey());
+        if (previous != null && previous != generation) {
+            if (grace > 0) sleep(grace, "ShardRoutingIndex.completeBuild: waiting to delete generation "+previous);
+            deleteGeneration(previous);
+        }
+    }
+
+    /**
+     * Abandon a build, leaving the active generation in place
+     */
+    public void abortBuild(long generation) {
+        if (Objects.equals(parseGeneration(redis.get(buildingKey())), generation)) redis.del(buildingKey());
+        deleteGeneration(generation);
+    }
+
+    private void deleteGeneration(long generation) {
+        redis.deleteMatching(generationPrefix(generation) + "*", RedisService.DEFAULT_SCAN_BATCH, 0, null);
+    }
+
+    /**
+     * Remove all entries for this field. The index is not ready again until it is rebuilt.
+     */
+    public void clear() {
+        redis.delAll(Arrays.asList(activeKey(), buildingKey()));
+        redis.deleteMatching(field + ":*", RedisService.DEFAULT_SCAN_BATCH, 0, null);
+    }
+
+}
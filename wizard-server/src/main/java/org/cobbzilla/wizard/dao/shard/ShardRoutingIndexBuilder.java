@@ -0,0 +1,208 @@
+package org.cobbzilla.wizard.dao.shard;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.wizard.dao.AbstractDAO;
+import org.cobbzilla.wizard.model.shard.Shardable;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
+import static org.cobbzilla.util.reflect.ReflectionUtil.get;
+import static org.cobbzilla.util.system.Sleep.sleep;
+import static org.cobbzilla.util.time.TimeUtil.formatDurationFrom;
+
+/**
+ * Scans every entity on every shard to rebuild or check a sharded DAO's routing indexes.
+ *
+ * In rebuild mode each index starts a new generation, which writes also go to from then on. After a grace period,
+ * so writes that started before it have landed in the shards, every entity is added to the new generation, and
+ * then it replaces the active one. Lookups keep using the previous generation (or all shards) until then.
+ * In check mode, indexes are compared with the entities in the shards. Entities missing from an index are
+ * counted, and added if repair is true. Then every entry of each index is checked against the entity it names:
+ * entries whose entity is not on the entry's logical shard (deleted, or misrouted) or no longer has the entry's
+ * value are counted as stale. If repair is true, stale entries still stale after the write grace period (an entry
+ * is added before its entity is written) are removed.
+ */
+@Slf4j
+public class ShardRoutingIndexBuilder<E extends Shardable, D extends SingleShardDAO<E>> implements Runnable {
+
+    private final AbstractShardedDAO<E, D> shardedDAO;
+    private final Collection<ShardRoutingIndex> indexes;
+    private final boolean checkOnly;
+    private final boolean repair;
+
+    // the generation being built for each index, in rebuild mode
+    private final Map<ShardRoutingIndex, Long> generations = new LinkedHashMap<>();
+
+    private final LongAdder scanned = new LongAdder();
+    private final LongAdder missing = new LongAdder();
+    private final LongAdder repaired = new LongAdder();
+    private final LongAdder entries = new LongAdder();
+    private final LongAdder stale = new LongAdder();
+    private final LongAdder removed = new LongAdder();
+
+    // a DAO for each logical shard, for checking index entries
+    private final Map<Integer, D> shardDAOs = new HashMap<>();
+    @Getter private volatile boolean done = false;
+    @Getter private volatile Exception error = null;
+
+    private final AtomicReference<Thread> thread = new AtomicReference<>();
+
+    public ShardRoutingIndexBuilder(AbstractShardedDAO<E, D> shardedDAO, Collection<ShardRoutingIndex> indexes,
+                                    boolean checkOnly, boolean repair) {
+        this.shardedDAO = shardedDAO;
+        this.indexes = indexes;
+        this.checkOnly = checkOnly;
+        this.repair = repair;
+    }
+
+    public static <E extends Shardable, D extends SingleShardDAO<E>> ShardRoutingIndexBuilder<E, D> rebuild(AbstractShardedDAO<E, D> dao) {
+        return new ShardRoutingIndexBuilder<>(dao, dao.getRoutingIndexes().values(), false, false);
+    }
+
+    public static <E extends Shardable, D extends SingleShardDAO<E>> ShardRoutingIndexBuilder<E, D> check(AbstractShardedDAO<E, D> dao, boolean repair) {
+        return new ShardRoutingIndexBuilder<>(dao, dao.getRoutingIndexes().values(), true, repair);
+    }
+
+    public ShardRoutingIndexBuilder<E, D> start() {
+        synchronized (thread) {
+            thread.set(new Thread(this));
+            thread.get().setDaemon(true);
+            thread.get().start();
+        }
+        return this;
+    }
+
+    public long getScanned() { return scanned.sum(); }
+    public long getMissing() { return missing.sum(); }
+    public long getRepaired() { return repaired.sum(); }
+    public long getEntries() { return entries.sum(); }
+    public long getStale() { return stale.sum(); }
+    public long getRemoved() { return removed.sum(); }
+
+    @Override public void run() {
+        final String prefix = (checkOnly ? "check" : "rebuild") + "(" + shardedDAO.getEntityClass().getSimpleName() + "): ";
+        final long start = now();
+        log.info(prefix + "starting");
+        final long grace = shardedDAO.getRoutingIndexWriteGrace();
+        try {
+            if (!checkOnly) {
+                for (ShardRoutingIndex index : indexes) generations.put(index, index.startBuild());
+                // a write that read the generations just before the build started only updated the active one;
+                // wait for it to reach its shard, so the scan sees it
+                sleep(grace, prefix + "waiting for in-flight writes");
+            }
+
+            // one DAO per logical range is enough to see every entity
+            for (D dao : shardedDAO.getNonOverlappingDAOs()) forEach(dao, this::visit);
+            if (checkOnly) for (ShardRoutingIndex index : indexes) checkEntries(index, grace, prefix);
+
+            if (!checkOnly) for (Map.Entry<ShardRoutingIndex, Long> gen : generations.entrySet()) gen.getKey().completeBuild(gen.getValue(), grace);
+            log.info(prefix + "completed in " + formatDurationFrom(start) + ": " + this);
+
+        } catch (Exception e) {
+            error = e;
+            log.error(prefix + "error: " + e, e);
+            for (Map.Entry<ShardRoutingIndex, Long> gen : generations.entrySet()) {
+                try {
+                    gen.getKey().abortBuild(gen.getValue());
+                } catch (Exception abortError) {
+                    log.warn(prefix + "error aborting build of " + gen.getKey().getField() + ": " + abortError);
+                }
+            }
+
+        } finally {
+            done = true;
+        }
+    }
+
+    private void forEach(D dao, Consumer<E> visitor) {
+        if (dao instanceof AbstractDAO) {
+            ((AbstractDAO<E>) dao).forEach(visitor);
+        } else {
+            final List<E> all = dao.findAll();
+            for (E entity : all) visitor.accept(entity);
+        }
+    }
+
+    private void visit(E entity) {
+        scanned.increment();
+        final Object id = shardedDAO.getIdToHash(entity);
+        if (id == null) return;
+        final int logicalShard = shardedDAO.getLogicalShard(id.toString());
+        for (ShardRoutingIndex index : indexes) {
+            final Object value = get(entity, index.getField());
+            if (!checkOnly) {
+                index.addToBuild(generations.get(index), logicalShard, entity.getUuid(), value);
+
+            } else if (value != null && !index.contains(logicalShard, entity.getUuid(), value)) {
+                missing.increment();
+                log.warn("check: " + index.getField() + "=" + value + " missing for " + entity.getUuid());
+                if (repair) {
+                    index.add(logicalShard, entity.getUuid(), value);
+                    repaired.increment();
+                }
+            }
+        }
+    }
+
+    private static class Entry {
+        final String value;
+        final int logicalShard;
+        final String uuid;
+        Entry(String value, int logicalShard, String uuid) { this.value = value; this.logicalShard = logicalShard; this.uuid = uuid; }
+    }
+
+    private void checkEntries(ShardRoutingIndex index, long grace, String prefix) {
+        final List<Entry> found = new ArrayList<>();
+        final boolean ready = index.forEachEntry((value, logicalShard, uuid) -> {
+            entries.increment();
+            final String problem = checkEntry(index, value, logicalShard, uuid);
+            if (problem == null) return;
+            stale.increment();
+            log.warn("check: " + index.getField() + "=" + value + " stale for " + uuid + " on logical shard " + logicalShard + ": " + problem);
+            if (repair) found.add(new Entry(value, logicalShard, uuid));
+        });
+        if (!ready) {
+            log.warn(prefix + "index on " + index.getField() + " has no active generation, not checking its entries");
+            return;
+        }
+        if (found.isEmpty()) return;
+
+        // an entry may have been added for a write that had not reached its shard yet: look again before removing
+        sleep(grace, prefix + "waiting to recheck stale entries");
+        for (Entry e : found) {
+            if (checkEntry(index, e.value, e.logicalShard, e.uuid) == null) continue;
+            index.remove(e.logicalShard, e.uuid, e.value);
+            removed.increment();
+        }
+    }
+
+    /**
+     * @return what is wrong with the entry, or null if it matches its entity
+     */
+    private String checkEntry(ShardRoutingIndex index, String value, int logicalShard, String uuid) {
+        final E entity = getShardDAO(logicalShard).findByUuid(uuid);
+        if (entity == null) return "not found";
+        final Object id = shardedDAO.getIdToHash(entity);
+        if (id == null || shardedDAO.getLogicalShard(id.toString()) != logicalShard) return "entity is on another logical shard";
+        final Object current = get(entity, index.getField());
+        if (current == null || !String.valueOf(current).equals(value)) return "value is now " + current;
+        return null;
+    }
+
+    private D getShardDAO(int logicalShard) {
+        return shardDAOs.computeIfAbsent(logicalShard,
+                s -> shardedDAO.getShardGroups(Collections.singleton(s)).get(0).get(0));
+    }
+
+    @Override public String toString() {
+        return "scanned=" + getScanned() + ", missing=" + getMissing() + ", repaired=" + getRepaired()
+                + ", entries=" + getEntries() + ", stale=" + getStale() + ", removed=" + getRemoved();
+    }
+
+}
@@ -0,0 +1,104 @@
+package org.cobbzilla.wizard.dao.shard;
+
+import lombok.Getter;
+import org.cobbzilla.wizard.model.shard.ShardIO;
+import org.cobbzilla.wizard.model.shard.ShardMap;
+
+import java.util.*;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+
+/**
+ * An immutable lookup table from logical shard to the ShardMaps serving it, for one shard set.
+ *
+ * The logical shards are split into segments at every range boundary, so all logical shards in a segment are
+ * served by the same ShardMaps. Each segment's arrays are built once, and a logical shard is routed with two
+ * array reads. Built by ShardMapDAO on every cache refresh, and replaced as a whole, never modified.
+ */
+public class ShardRoutingTable {
+
+    private static final ShardMap[] NO_SHARDS = new ShardMap[0];
+
+    @Getter private final String shardSet;
+    @Getter private final int logicalShards;
+
+    private final int[] segmentOf;          // logical shard -> segment
+    private final ShardMap[][] readSegments;
+    private final ShardMap[][] writeSegments;
+    private final ShardMap[][] allSegments;
+
+    public ShardRoutingTable(String shardSet, int logicalShards,
+                             Collection<? extends ShardMap> readShards,
+                             Collection<? extends ShardMap> writeShards) {
+        this.shardSet = shardSet;
+        this.logicalShards = logicalShards;
+
+        final TreeSet<Integer> bounds = new TreeSet<>();
+        bounds.add(0);
+        bounds.add(logicalShards);
+        for (ShardMap map : readShards) addBounds(bounds, map);
+        for (ShardMap map : writeShards) addBounds(bounds, map);
+
+        final int segments = bounds.size() - 1;
+        segmentOf = new int[logicalShards];
+        readSegments = new ShardMap[segments][];
+        writeSegments = new ShardMap[segments][];
+        allSegments = new ShardMap[segments][];
+
+        final Iterator<Integer> iter = bounds.iterator();
+        int start = iter.next();
+        for (int s=0; s<segments; s++) {
+            final int end = iter.next();
+            readSegments[s] = mapping(readShards, start);
+            writeSegments[s] = mapping(writeShards, start);
+            final Set<ShardMap> all = new LinkedHashSet<>(Arrays.asList(readSegments[s]));
+            all.addAll(Arrays.asList(writeSegments[s]));
+            allSegments[s] = all.toArray(new ShardMap[all.size()]);
+            Arrays.fill(segmentOf, start, end, s);
+            start = end;
+        }
+    }
+
+    private void addBounds(Set<Integer> bounds, ShardMap map) {
+        bounds.add(Math.max(0, Math.min(logicalShards, map.getRange().getLogicalStart())));
+        bounds.add(Math.max(0, Math.min(logicalShards, map.getRange().getLogicalEnd())));
+    }
+
+    private static ShardMap[] mapping(Collection<? extends ShardMap> maps, int logicalShard) {
+        final List<ShardMap> found = new ArrayList<>();
+        for (ShardMap map : maps) if (map.mapsShard(logicalShard)) found.add(map);
+        return found.isEmpty() ? NO_SHARDS : found.toArray(new ShardMap[found.size()]);
+    }
+
+    public int getSegmentCount() { return allSegments.length; }
+
+    /**
+     * @return the segment holding the logical shard, or -1 if it is outside this table
+     */
+    public int getSegment(int logicalShard) {
+        return logicalShard >= 0 && logicalShard < logicalShards ? segmentOf[logicalShard] : -1;
+    }
+
+    /**
+     * @return the shards for a segment. do not modify the returned array
+     * @param shardIO read, write, or null for both
+     */
+    public ShardMap[] getSegmentShards(int segment, ShardIO shardIO) {
+        if (shardIO == null) return allSegments[segment];
+        switch (shardIO) {
+            case read:  return readSegments[segment];
+            case write: return writeSegments[segment];
+            default: return die("getSegmentShards: invalid shardIO: "+shardIO);
+        }
+    }
+
+    /**
+     * @return the shards for a logical shard, empty if none. do not modify the returned array
+     * @param shardIO read, write, or null for both
+     */
+    public ShardMap[] getShards(int logicalShard, ShardIO shardIO) {
+        final int segment = getSegment(logicalShard);
+        return segment == -1 ? NO_SHARDS : getSegmentShards(segment, shardIO);
+    }
+
+}
@@ -8,9 +8,7 @@ import lombok.experimental.Accessors;
 import org.cobbzilla.wizard.util.ResultCollector;
 import org.cobbzilla.wizard.util.ResultCollectorBase;
 
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
+import java.util.*;
 
 @NoArgsConstructor @AllArgsConstructor @Accessors(chain=true)
 public class ShardSearch {
@@ -39,8 +37,63 @@ public class ShardSearch {
     @Getter @Setter private Long timeout;
     public boolean hasTimeout() { return timeout != null && timeout > 0; }
 
+    // if null, the sharded DAO's allowPartialResults("search") setting is used
+    @Getter @Setter private Boolean allowPartialResults;
+    public boolean hasAllowPartialResults() { return allowPartialResults != null; }
+
+    // true if the hsql's ORDER BY returns rows in the same order as the comparator
+    @Getter @Setter private boolean sortedByQuery = false;
+
+    // with a comparator, each shard returns its own sorted rows and the coordinator merges them
+    public boolean isMergeable() { return comparator != null; }
+
+    /**
+     * @return how many rows to fetch from each shard. When rows come back from the database already in comparator
+     * order and are not filtered, no shard can contribute more than maxResults rows to the merged results.
+     */
+    public int getShardFetchLimit() {
+        if (isMergeable() && sortedByQuery && collector.getEntityFilter() == null) return Math.min(maxResultsPerShard, maxResults);
+        return maxResultsPerShard;
+    }
+
     public <R> List<R> sort(List<R> results) {
         if (comparator != null) Collections.sort(results, getComparator());
         return results;
     }
+
+    /**
+     * Merge rows from each shard, each list already sorted by the comparator. Rows are passed to the collector's
+     * addResult in merged order, and the merge stops once maxResults rows are merged or the collector is full.
+     * The per-shard lists are complete when this is called: shard queries return lists, not open cursors, so
+     * what bounds memory is the per-shard limit (see getShardFetchLimit), not this merge.
+     * @param sortedLists the sorted rows from each shard
+     * @return up to maxResults rows, in comparator order
+     */
+    public <R> List<R> merge(List<List<R>> sortedLists) {
+        final PriorityQueue<MergeCursor<R>> heads = new PriorityQueue<>(Math.max(1, sortedLists.size()),
+                (c1, c2) -> comparator.compare(c1.head(), c2.head()));
+        int total = 0;
+        for (List<R> list : sortedLists) {
+            if (list == null || list.isEmpty()) continue;
+            heads.add(new MergeCursor<>(list));
+            total += list.size();
+        }
+        final List<R> merged = new ArrayList<>(Math.min(total, maxResults));
+        while (!heads.isEmpty() && merged.size() < maxResults) {
+            final MergeCursor<R> cursor = heads.poll();
+            final R row = cursor.head();
+            merged.add(row);
+            if (collector != null && !collector.addResult(row)) break;
+            if (cursor.advance()) heads.add(cursor);
+        }
+        return merged;
+    }
+
+    private static class MergeCursor<R> {
+        private final List<R> list;
+        private int pos = 0;
+        MergeCursor(List<R> list) { this.list = list; }
+        R head() { return list.get(pos); }
+        boolean advance() { return ++pos < list.size(); }
+    }
 }
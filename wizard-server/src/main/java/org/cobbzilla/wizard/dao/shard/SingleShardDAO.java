@@ -25,6 +25,11 @@ public interface SingleShardDAO<E extends Shardable> extends DAO<E> {
     List query(int maxResults, String hsql, Object... args);
     List query(int maxResults, String hsql, List<Object> args);
 
+    /**
+     * @param timeout if positive, the query is cancelled by the database after this many milliseconds
+     */
+    List query(int maxResults, long timeout, String hsql, List<Object> args);
+
     HibernateTemplate getHibernateTemplate();
     Session readOnlySession();
 
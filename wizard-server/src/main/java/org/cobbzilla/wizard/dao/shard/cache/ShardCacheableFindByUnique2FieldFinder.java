@@ -6,6 +6,8 @@ import org.cobbzilla.wizard.dao.shard.task.ShardFindFirstBy2FieldsTask;
 import org.cobbzilla.wizard.dao.shard.task.ShardTaskFactory;
 import org.cobbzilla.wizard.model.shard.Shardable;
 
+import java.util.List;
+
 public class ShardCacheableFindByUnique2FieldFinder<E extends Shardable, D extends SingleShardDAO<E>> extends ShardCacheableFinder<E, D> {
 
     public ShardCacheableFindByUnique2FieldFinder(AbstractShardedDAO<E, D> shardedDAO, long timeout) { super(shardedDAO, timeout); }
@@ -28,7 +30,9 @@ public class ShardCacheableFindByUnique2FieldFinder<E extends Shardable, D exten
         }
         if (dao != null) return dao.findByUniqueFields(f1, v1, f2, v2);
 
-        // have to search all shards for it
-        return shardedDAO.queryShardsUnique((ShardTaskFactory<E, D, E>) new ShardFindFirstBy2FieldsTask.Factory(f1, v1, f2, v2), "findByUniqueFields");
+        // search all shards for it, unless a routing index narrows it down
+        List<List<D>> groups = shardedDAO.routeShardGroups(f1, v1);
+        if (groups == null) groups = shardedDAO.routeShardGroups(f2, v2);
+        return shardedDAO.queryShardsUnique((ShardTaskFactory<E, D, E>) new ShardFindFirstBy2FieldsTask.Factory(f1, v1, f2, v2), "findByUniqueFields", groups);
     }
 }
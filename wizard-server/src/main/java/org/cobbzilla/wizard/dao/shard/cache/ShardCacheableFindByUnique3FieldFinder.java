@@ -6,6 +6,8 @@ import org.cobbzilla.wizard.dao.shard.task.ShardFindFirstBy3FieldsTask;
 import org.cobbzilla.wizard.dao.shard.task.ShardTaskFactory;
 import org.cobbzilla.wizard.model.shard.Shardable;
 
+import java.util.List;
+
 public class ShardCacheableFindByUnique3FieldFinder<E extends Shardable, D extends SingleShardDAO<E>> extends ShardCacheableFinder<E, D> {
 
     public ShardCacheableFindByUnique3FieldFinder(AbstractShardedDAO<E, D> shardedDAO, long timeout) { super(shardedDAO, timeout); }
@@ -28,7 +30,10 @@ public class ShardCacheableFindByUnique3FieldFinder<E extends Shardable, D exten
         }
         if (dao != null) return dao.findByUniqueFields(f1, v1, f2, v2, f3, v3);
 
-        // have to search all shards for it
-        return shardedDAO.queryShardsUnique((ShardTaskFactory<E, D, E>) new ShardFindFirstBy3FieldsTask.Factory(f1, v1, f2, v2, f3, v3), "findByUniqueFields");
+        // search all shards for it, unless a routing index narrows it down
+        List<List<D>> groups = shardedDAO.routeShardGroups(f1, v1);
+        if (groups == null) groups = shardedDAO.routeShardGroups(f2, v2);
+        if (groups == null) groups = shardedDAO.routeShardGroups(f3, v3);
+        return shardedDAO.queryShardsUnique((ShardTaskFactory<E, D, E>) new ShardFindFirstBy3FieldsTask.Factory(f1, v1, f2, v2, f3, v3), "findByUniqueFields", groups);
     }
 }
@@ -5,6 +5,7 @@ import lombok.Getter;
 import lombok.Setter;
 import lombok.experimental.Accessors;
 import org.cobbzilla.util.json.JsonUtil;
+import org.cobbzilla.wizard.dao.cache.ObjectCache;
 import org.cobbzilla.wizard.dao.shard.AbstractShardedDAO;
 import org.cobbzilla.wizard.dao.shard.SingleShardDAO;
 import org.cobbzilla.wizard.model.shard.Shardable;
@@ -28,20 +29,31 @@ public abstract class ShardCacheableFinder<E extends Shardable, D extends Single
         final String shardSetName = shardedDAO.getShardConfiguration().getName();
         cacheKey = shardSetName +":" + cacheKey;
         E entity = null;
-        final String json = shardedDAO.getShardCache().get(cacheKey);
+
+        // check the in-process near cache first, then redis
+        final ObjectCache<String, String> nearCache = shardedDAO.getNearCache();
+        String json = nearCache == null ? null : nearCache.get(cacheKey);
+        if (json == null) {
+            // refresh the ttl on a hit without rewriting the value
+            json = shardedDAO.getShardCache().getAndExpire(cacheKey, (int) getCacheTimeoutSeconds());
+            if (json != null && nearCache != null) nearCache.put(cacheKey, json);
+        }
+
         if (json == null) {
             entity = (E) find(args);
             if (entity == null) {
                 shardedDAO.getShardCache().set(cacheKey, NULL_CACHE, "EX", getCacheTimeoutSeconds());
                 final String cacheRefsKey = shardedDAO.getCacheRefsKey(NULL_CACHE);
                 shardedDAO.getShardCache().lpush(cacheRefsKey, cacheKey);
+                if (nearCache != null) nearCache.put(cacheKey, NULL_CACHE);
             } else {
-                shardedDAO.getShardCache().set(cacheKey, toJsonOrDie(entity), "EX", getCacheTimeoutSeconds());
+                json = toJsonOrDie(entity);
+                shardedDAO.getShardCache().set(cacheKey, json, "EX", getCacheTimeoutSeconds());
                 shardedDAO.getShardCache().lpush(shardedDAO.getCacheRefsKey(entity.getUuid()), cacheKey);
+                if (nearCache != null) nearCache.put(cacheKey, json);
             }
         } else if (!json.equals(NULL_CACHE)) {
             entity = JsonUtil.fromJsonOrDie(json, shardedDAO.getEntityClass());
-            shardedDAO.getShardCache().set(cacheKey, json, "EX", getCacheTimeoutSeconds());
         }
         return entity;
     }
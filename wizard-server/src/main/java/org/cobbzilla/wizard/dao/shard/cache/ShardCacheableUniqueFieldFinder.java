@@ -6,6 +6,8 @@ import org.cobbzilla.wizard.dao.shard.task.ShardFindFirstByFieldTask;
 import org.cobbzilla.wizard.dao.shard.task.ShardTaskFactory;
 import org.cobbzilla.wizard.model.shard.Shardable;
 
+import java.util.List;
+
 public class ShardCacheableUniqueFieldFinder<E extends Shardable, D extends SingleShardDAO<E>> extends ShardCacheableFinder<E, D> {
 
     public ShardCacheableUniqueFieldFinder(AbstractShardedDAO<E, D> shardedDAO, long timeout, boolean useCache) {
@@ -18,7 +20,8 @@ public class ShardCacheableUniqueFieldFinder<E extends Shardable, D extends Sing
 
         if (shardedDAO.getHashOn().equals(field)) return shardedDAO.getDAO(value).get(value);
 
-        // have to search all shards for it
-        return shardedDAO.queryShardsUnique((ShardTaskFactory<E, D, E>) new ShardFindFirstByFieldTask.Factory(field, value), "findByUniqueField");
+        // search all shards for it, unless a routing index narrows it down
+        return shardedDAO.queryShardsUnique((ShardTaskFactory<E, D, E>) new ShardFindFirstByFieldTask.Factory(field, value), "findByUniqueField",
+                shardedDAO.routeShardGroups(field, value));
     }
 }
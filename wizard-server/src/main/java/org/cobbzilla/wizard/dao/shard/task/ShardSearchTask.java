@@ -1,13 +1,18 @@
 package org.cobbzilla.wizard.dao.shard.task;
 
 import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
 import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.wizard.dao.EntityFilter;
 import org.cobbzilla.wizard.dao.shard.ShardSearch;
 import org.cobbzilla.wizard.dao.shard.SimpleShardTask;
 import org.cobbzilla.wizard.dao.shard.SingleShardDAO;
 import org.cobbzilla.wizard.model.shard.Shardable;
 import org.cobbzilla.wizard.util.ResultCollector;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 
@@ -22,31 +27,63 @@ public class ShardSearchTask <E extends Shardable, D extends SingleShardDAO<E>,
         long start = now();
         log.info(prefix+"starting");
         final ResultCollector collector = search.getCollector();
-        final List results = dao.query(search.getMaxResultsPerShard(), search.getHsql(), search.getArgs());
+        final List results = dao.query(search.getShardFetchLimit(), queryTimeout, search.getHsql(), search.getArgs());
+        if (search.isMergeable()) return sortedShardResults(prefix, start, collector.getEntityFilter(), results);
+
+        // the collector is shared by every shard's task. adding under its lock, and only while not cancelled,
+        // means that once the coordinator has cancelled all tasks it can read the collector safely
+        final EntityFilter filter = collector.getEntityFilter();
+        final List<R> added = new ArrayList<>();
+        for (Object entity : results) {
+            synchronized (collector) {
+                if (cancelled.get() || Thread.currentThread().isInterrupted()) {
+                    log.info(prefix+"cancelled from another thread, stopping search");
+                    break;
+                }
+                if (!collector.addResult(entity)) {
+                    log.info(prefix+"reached max results ("+collector.getMaxResults()+"), cancelling tasks and returning");
+                    cancelTasks();
+                    break;
+                }
+            }
+            if (filter == null || filter.isAcceptable(entity)) added.add((R) entity);
+        }
+        log.info(prefix + "completed with "+added.size()+" results in " + formatDurationFrom(start));
+        return added;
+    }
+
+    // a task cancelled while queued added nothing to the collector
+    @Override protected List<R> cancelledResult() { return new ArrayList<>(); }
+
+    // rows from this shard only, filtered and in comparator order, for the coordinator to merge
+    private List<R> sortedShardResults(String prefix, long start, EntityFilter filter, List results) {
+        final List<R> rows = new ArrayList<>(Math.min(results.size(), search.getMaxResults()));
         for (Object entity : results) {
             if (cancelled.get()) {
                 log.info(prefix+"cancelled from another thread, stopping search");
                 break;
             }
-            if (!collector.addResult(entity)) {
-                log.info(prefix+"reached max results ("+collector.getMaxResults()+"), cancelling tasks and returning");
-                cancelTasks();
-                break;
-            }
+            if (filter == null || filter.isAcceptable(entity)) rows.add((R) entity);
         }
-        final List<R> sorted = search.sort(collector.getResults());
-        log.info(prefix + "completed with "+sorted.size()+" results in " + formatDurationFrom(start));
-        return sorted;
+        if (!search.isSortedByQuery()) search.sort(rows);
+        final List<R> top = rows.size() > search.getMaxResults() ? new ArrayList<>(rows.subList(0, search.getMaxResults())) : rows;
+        log.info(prefix + "completed with "+top.size()+" sorted results in " + formatDurationFrom(start));
+        return top;
     }
 
     @AllArgsConstructor
     public static class Factory extends ShardTaskFactoryBase {
         private ShardSearch search;
-        @Override public ShardTask newTask(SingleShardDAO dao) { return new ShardSearchTask(dao, tasks, search); }
+        private long queryTimeout;
+        public Factory(ShardSearch search) { this(search, 0); }
+        @Override public ShardTask newTask(SingleShardDAO dao) { return new ShardSearchTask(dao, tasks, search).setQueryTimeout(queryTimeout); }
     }
 
     private ShardSearch search;
 
+    // if positive, the database cancels this shard's query after this many milliseconds
+    @Getter @Setter @Accessors(chain=true) private long queryTimeout = 0;
+
     public ShardSearchTask(D dao, Set tasks, ShardSearch search) {
         super(dao, tasks, search.getCollector());
         this.search = search;
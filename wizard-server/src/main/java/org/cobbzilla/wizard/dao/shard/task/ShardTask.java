@@ -12,8 +12,6 @@ import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import static org.cobbzilla.util.daemon.ZillaRuntime.die;
-
 @AllArgsConstructor @Slf4j
 public abstract class ShardTask<E extends Shardable, D extends SingleShardDAO<E>, R> implements Callable, Comparable {
 
@@ -40,7 +38,9 @@ public abstract class ShardTask<E extends Shardable, D extends SingleShardDAO<E>
         Object rval = null;
         try {
             if (!canBegin()) {
-                return die("call: canBegin returned false");
+                // cancelled while still queued, e.g. another shard's task already filled the collector
+                log.info("call: cancelled before starting");
+                return cancelledResult();
             } else {
                 rval = execTask();
                 if (!customCollector && resultCollector != null) resultCollector.addResult(rval);
@@ -56,6 +56,11 @@ public abstract class ShardTask<E extends Shardable, D extends SingleShardDAO<E>
 
     protected abstract Object execTask();
 
+    /**
+     * @return the result of a task cancelled before it started
+     */
+    protected Object cancelledResult() { return null; }
+
     // for some reason Future.get wants this to be Comparable
     @Override public int compareTo(Object o) { return this.hashCode() - o.hashCode(); }
 
@@ -148,6 +148,7 @@ public class ObjectSQLQuery<E extends Identifiable> implements Query, Closeable
             if (firstResult != null) sql += " OFFSET " + firstResult;
             if (maxResults != null) sql += " LIMIT " + maxResults;
             statement = connection.prepareStatement(sql);
+            if (timeout != null) statement.setQueryTimeout(timeout);
         }
     }
 
@@ -4,14 +4,33 @@ import lombok.*;
 
 import static org.cobbzilla.util.time.TimeUtil.parseDuration;
 
-@NoArgsConstructor @AllArgsConstructor @ToString(of={"limit", "interval", "block"})
+@NoArgsConstructor @ToString(of={"limit", "interval", "block"})
 public class ApiRateLimit {
 
     @Getter @Setter int limit;
     @Getter @Setter String interval;
     @Getter @Setter String block;
 
+    public ApiRateLimit (int limit, String interval, String block) {
+        this.limit = limit;
+        this.interval = interval;
+        this.block = block;
+    }
+
     public long getIntervalDuration () { return parseDuration(interval); }
     public long getBlockDuration () { return parseDuration(block); }
 
+    // requests are decided in-process, without a redis round trip, while the key's estimated count is below
+    // localThreshold * limit (e.g. 0.8). zero, the default, checks redis on every request
+    @Getter @Setter double localThreshold = 0;
+    public boolean hasLocalThreshold () { return localThreshold > 0; }
+
+    // the most requests per key a server admits locally between syncs. with N servers, a limit can be
+    // exceeded by at most about N * maxLocalBatch requests
+    @Getter @Setter int maxLocalBatch = 10;
+
+    // how often locally admitted requests are added to the shared counts in redis
+    @Getter @Setter String syncInterval = "1s";
+    public long getSyncIntervalDuration () { return parseDuration(syncInterval); }
+
 }
@@ -0,0 +1,298 @@
+package org.cobbzilla.wizard.filters;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.util.collection.SingletonList;
+import org.cobbzilla.wizard.cache.redis.RedisService;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.daemon;
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
+import static org.cobbzilla.util.io.StreamUtil.stream2string;
+import static org.cobbzilla.util.string.StringUtil.getPackagePath;
+import static org.cobbzilla.util.system.Sleep.sleep;
+
+/**
+ * The hybrid mode of RateLimitFilter, used when any ApiRateLimit has a localThreshold.
+ *
+ * Each server counts the requests it admits per key in-process, and a background thread adds them to the shared
+ * counts in redis every syncInterval, for all keys in one pipelined round trip, learning the shared counts in return.
+ * While a key is well below its limits (estimated count under localThreshold * limit, and fewer than maxLocalBatch
+ * unsynced requests) requests are admitted without touching redis. Otherwise the request, along with any unsynced
+ * ones, is checked against redis synchronously. Keys found to be blocked are rejected locally until the block expires.
+ *
+ * At most maxKeys keys are tracked locally. Requests for new keys beyond that are checked against redis directly,
+ * and the sync thread drops the least recently used synced keys to get back below the limit.
+ */
+@Slf4j
+public class LocalRateLimiter {
+
+    public static final String SCRIPT = "api_limiter_batch_redis.lua";
+    public static final int DEFAULT_MAX_KEYS = 10000;
+
+    // when over maxKeys, the sync thread trims down to this fraction of it
+    public static final double TRIM_TARGET = 0.9d;
+
+    private final RedisService cache;
+    private final ApiRateLimit[] limits;
+    private final List<String> limitArgs;
+    private final long syncInterval;
+    private final long idleTimeout;
+    private final int maxKeys;
+
+    private volatile String scriptSha;
+
+    @Getter private final RateLimitStats stats = new RateLimitStats();
+
+    private final Map<String, LocalKey> keys = new ConcurrentHashMap<>();
+
+    /**
+     * @param limitArgs the limits as (limit, interval, block) triples, as passed to api_limiter_redis.lua
+     */
+    public LocalRateLimiter(RedisService cache, List<ApiRateLimit> limits, List<String> limitArgs) {
+        this(cache, limits, limitArgs, DEFAULT_MAX_KEYS);
+    }
+
+    /**
+     * @param maxKeys the most keys to track in-process
+     */
+    public LocalRateLimiter(RedisService cache, List<ApiRateLimit> limits, List<String> limitArgs, int maxKeys) {
+        this.cache = cache;
+        this.maxKeys = maxKeys;
+        this.limits = limits.toArray(new ApiRateLimit[limits.size()]);
+        this.limitArgs = limitArgs;
+
+        long sync = Long.MAX_VALUE;
+        long idle = 0;
+        for (ApiRateLimit limit : this.limits) {
+            if (limit.hasLocalThreshold()) sync = Math.min(sync, limit.getSyncIntervalDuration());
+            idle = Math.max(idle, Math.max(limit.getIntervalDuration(), limit.getBlockDuration()));
+        }
+        this.syncInterval = sync == Long.MAX_VALUE ? 1000 : sync;
+        this.idleTimeout = idle;
+
+        daemon(this::syncLoop);
+    }
+
+    private class LocalKey {
+        // requests admitted locally and not yet added to redis
+        final LongAdder pending = new LongAdder();
+        // per limit: the shared count as of the last sync, when that count's window expires, and any block
+        final AtomicLongArray known = new AtomicLongArray(limits.length);
+        final AtomicLongArray windowExpires = new AtomicLongArray(limits.length);
+        final AtomicLongArray blockedUntil = new AtomicLongArray(limits.length);
+        volatile long accessed = now();
+
+        int blocked(long now) {
+            int breached = -1;
+            for (int i=0; i<limits.length; i++) if (now < blockedUntil.get(i)) breached = i;
+            return breached;
+        }
+
+        boolean canDecideLocally(long now) {
+            final long unsynced = pending.sum();
+            for (int i=0; i<limits.length; i++) {
+                final ApiRateLimit limit = limits[i];
+                if (!limit.hasLocalThreshold() || unsynced >= limit.getMaxLocalBatch()) return false;
+                final long shared = now < windowExpires.get(i) ? known.get(i) : 0;
+                if (shared + unsynced + 1 >= limit.getLimit() * limit.getLocalThreshold()) return false;
+            }
+            return true;
+        }
+
+        /**
+         * @param result (count, pttl) pairs from the batch script
+         * @return the index of the last breached limit, or null if none
+         */
+        Integer update(List<Long> result, long now) {
+            for (int i=0; i<limits.length; i++) {
+                final long count = result.get(2*i);
+                final long pttl = result.get(2*i + 1);
+                known.set(i, count);
+                windowExpires.set(i, now + (pttl > 0 ? pttl : limits[i].getIntervalDuration()));
+                if (count >= limits[i].getLimit()) {
+                    blockedUntil.set(i, now + (pttl > 0 ? pttl : limits[i].getBlockDuration()));
+                }
+            }
+            return breached(result);
+        }
+
+        boolean idle(long now) { return pending.sum() == 0 && now - accessed > idleTimeout && blocked(now) == -1; }
+    }
+
+    /**
+     * @param result (count, pttl) pairs from the batch script
+     * @return the index of the last breached limit, or null if none
+     */
+    private Integer breached(List<Long> result) {
+        Integer breached = null;
+        for (int i=0; i<limits.length; i++) if (result.get(2*i) >= limits[i].getLimit()) breached = i;
+        return breached;
+    }
+
+    /**
+     * @param key the rate-limit key
+     * @return the index of the exceeded limit, or null if the request is allowed
+     */
+    public Integer check(String key) {
+        final long now = now();
+        LocalKey local = keys.get(key);
+        if (local == null) {
+            if (keys.size() >= maxKeys) {
+                // too many keys tracked locally (a client may be rotating them): decide this one in redis alone
+                final Integer breached = breached(eval(key, 1));
+                stats.overflow();
+                if (breached == null) stats.remoteAllowed(); else stats.remoteRejected();
+                return breached;
+            }
+            local = keys.computeIfAbsent(key, k -> new LocalKey());
+        }
+        local.accessed = now;
+
+        final int blocked = local.blocked(now);
+        if (blocked != -1) {
+            stats.localRejected();
+            return blocked;
+        }
+        if (local.canDecideLocally(now)) {
+            local.pending.increment();
+            stats.localAllowed();
+            return null;
+        }
+
+        // close to a limit: check with redis now, sending this request and any unsynced ones
+        final long unsynced = local.pending.sumThenReset();
+        final List<Long> result;
+        try {
+            result = eval(key, unsynced + 1);
+        } catch (RuntimeException e) {
+            local.pending.add(unsynced);
+            throw e;
+        }
+        final Integer breached = local.update(result, now);
+        if (breached == null) stats.remoteAllowed(); else stats.remoteRejected();
+        return breached;
+    }
+
+    private List<String> args(long count) {
+        final List<String> args = new ArrayList<>(limitArgs.size() + 1);
+        args.add(String.valueOf(count));
+        args.addAll(limitArgs);
+        return args;
+    }
+
+    private String getScriptSha() {
+        String sha = scriptSha;
+        if (sha == null) {
+            sha = cache.loadScript(stream2string(getPackagePath(LocalRateLimiter.class)+"/"+SCRIPT));
+            scriptSha = sha;
+        }
+        return sha;
+    }
+
+    private boolean isNoScript(Exception e) {
+        return e instanceof JedisDataException && e.getMessage() != null && e.getMessage().startsWith("NOSCRIPT");
+    }
+
+    private List<Long> eval(String key, long count) {
+        try {
+            return (List<Long>) cache.eval(getScriptSha(), new SingletonList<>(key), args(count));
+        } catch (JedisDataException e) {
+            if (!isNoScript(e)) throw e;
+            scriptSha = null; // redis was restarted or its script cache flushed
+            return (List<Long>) cache.eval(getScriptSha(), new SingletonList<>(key), args(count));
+        }
+    }
+
+    private void syncLoop() {
+        while (true) {
+            sleep(syncInterval, "LocalRateLimiter: waiting to sync");
+            try {
+                sync();
+            } catch (Exception e) {
+                stats.syncError();
+                log.warn("syncLoop: "+e);
+            }
+        }
+    }
+
+    /**
+     * Add every key's unsynced requests to redis in one pipelined round trip, and drop idle keys
+     */
+    public void sync() {
+        final long now = now();
+        final List<String> dirtyKeys = new ArrayList<>();
+        final List<LocalKey> dirty = new ArrayList<>();
+        final List<Long> counts = new ArrayList<>();
+        for (Map.Entry<String, LocalKey> entry : keys.entrySet()) {
+            final LocalKey local = entry.getValue();
+            final long unsynced = local.pending.sumThenReset();
+            if (unsynced > 0) {
+                dirtyKeys.add(entry.getKey());
+                dirty.add(local);
+                counts.add(unsynced);
+            } else if (local.idle(now)) {
+                keys.remove(entry.getKey(), local);
+            }
+        }
+        if (dirty.isEmpty()) {
+            trim();
+            return;
+        }
+
+        final String sha = getScriptSha();
+        final List<Supplier<Object>> responses = new ArrayList<>(dirty.size());
+        try {
+            cache.pipeline(batch -> {
+                for (int i=0; i<dirty.size(); i++) {
+                    responses.add(batch.evalsha(sha, new SingletonList<>(dirtyKeys.get(i)), args(counts.get(i))));
+                }
+            });
+        } catch (RuntimeException e) {
+            // nothing was confirmed: put the counts back for the next sync
+            for (int i=0; i<dirty.size(); i++) dirty.get(i).pending.add(counts.get(i));
+            throw e;
+        }
+
+        for (int i=0; i<dirty.size(); i++) {
+            try {
+                dirty.get(i).update((List<Long>) responses.get(i).get(), now);
+            } catch (RuntimeException e) {
+                if (isNoScript(e)) scriptSha = null;
+                dirty.get(i).pending.add(counts.get(i));
+                stats.syncError();
+            }
+        }
+        stats.synced(dirty.size());
+        trim();
+    }
+
+    /**
+     * If more than maxKeys keys are tracked, drop the least recently used ones with nothing left to sync.
+     * A dropped key's counts and blocks are still in redis, so nothing is lost but the local shortcut.
+     */
+    private void trim() {
+        final int excess = keys.size() - (int) (maxKeys * TRIM_TARGET);
+        if (keys.size() <= maxKeys || excess <= 0) return;
+        final List<Map.Entry<String, LocalKey>> candidates = new ArrayList<>(keys.size());
+        for (Map.Entry<String, LocalKey> entry : keys.entrySet()) {
+            if (entry.getValue().pending.sum() == 0) candidates.add(entry);
+        }
+        candidates.sort((e1, e2) -> Long.compare(e1.getValue().accessed, e2.getValue().accessed));
+        int removed = 0;
+        for (Map.Entry<String, LocalKey> entry : candidates) {
+            if (removed >= excess) break;
+            if (keys.remove(entry.getKey(), entry.getValue())) removed++;
+        }
+        stats.trimmed(removed);
+    }
+
+}
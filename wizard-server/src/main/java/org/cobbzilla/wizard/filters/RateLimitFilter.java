@@ -94,16 +94,38 @@ public abstract class RateLimitFilter implements ContainerRequestFilter {
         }).flatMap(Arrays::stream).collect(Collectors.toList());
     }
 
+    // when any limit has a localThreshold, most requests are decided in-process, see LocalRateLimiter
+    @Getter(lazy=true) private final LocalRateLimiter localLimiter = initLocalLimiter();
+    private LocalRateLimiter initLocalLimiter() {
+        final List<ApiRateLimit> limits = getLimits();
+        if (empty(limits) || !limits.stream().anyMatch(ApiRateLimit::hasLocalThreshold)) return null;
+        return new LocalRateLimiter(getCache(), limits, getLimitsAsStrings(), getMaxLocalKeys());
+    }
+
+    // the most rate-limit keys to track in-process, see LocalRateLimiter
+    protected int getMaxLocalKeys() { return LocalRateLimiter.DEFAULT_MAX_KEYS; }
+
+    public RateLimitStats getLocalStats() {
+        final LocalRateLimiter limiter = getLocalLimiter();
+        return limiter == null ? null : limiter.getStats();
+    }
+
     @Override public ContainerRequest filter(@Context ContainerRequest request) {
 
         if (getLimitsAsStrings() == null) return request; // noop
 
         final List<String> keys = getKeys(request);
         if (keys == null || keys.isEmpty()) return request; // noop
-        final Long i = (Long) getCache().eval(getScriptSha(), keys, getLimitsAsStrings());
+        final LocalRateLimiter localLimiter = getLocalLimiter();
+        final Number i;
+        if (localLimiter != null) {
+            i = localLimiter.check(keys.get(0));
+        } else {
+            i = (Long) getCache().eval(getScriptSha(), keys, getLimitsAsStrings());
+        }
         if (i != null) {
             final List<ApiRateLimit> limits = getLimits();
-            if (i < 0 || i >= limits.size()) {
+            if (i.intValue() < 0 || i.intValue() >= limits.size()) {
                 log.warn("filter: unknown limit ("+i+") exceeded for keys: "+StringUtil.toString(keys));
             } else {
                 log.warn("filter: limit ("+limits.get(i.intValue())+") exceeded for keys: "+StringUtil.toString(keys));
@@ -0,0 +1,62 @@
+package org.cobbzilla.wizard.filters;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for LocalRateLimiter: how many requests were decided in-process versus by a synchronous redis check.
+ */
+public class RateLimitStats {
+
+    private final LongAdder localAllowed = new LongAdder();
+    private final LongAdder localRejected = new LongAdder();
+    private final LongAdder remoteAllowed = new LongAdder();
+    private final LongAdder remoteRejected = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+    private final LongAdder syncedKeys = new LongAdder();
+    private final LongAdder syncErrors = new LongAdder();
+    private final LongAdder overflows = new LongAdder();
+    private final LongAdder trimmed = new LongAdder();
+
+    public void localAllowed () { localAllowed.increment(); }
+    public void localRejected () { localRejected.increment(); }
+    public void remoteAllowed () { remoteAllowed.increment(); }
+    public void remoteRejected () { remoteRejected.increment(); }
+
+    public void synced (int keys) {
+        syncs.increment();
+        syncedKeys.add(keys);
+    }
+
+    public void syncError () { syncErrors.increment(); }
+
+    // a request for a new key while the limiter was tracking maxKeys keys, checked against redis directly
+    public void overflow () { overflows.increment(); }
+    public void trimmed (int keys) { trimmed.add(keys); }
+
+    public long getLocalAllowed () { return localAllowed.sum(); }
+    public long getLocalRejected () { return localRejected.sum(); }
+    public long getRemoteAllowed () { return remoteAllowed.sum(); }
+    public long getRemoteRejected () { return remoteRejected.sum(); }
+    public long getSyncs () { return syncs.sum(); }
+    public long getSyncedKeys () { return syncedKeys.sum(); }
+    public long getSyncErrors () { return syncErrors.sum(); }
+    public long getOverflows () { return overflows.sum(); }
+    public long getTrimmed () { return trimmed.sum(); }
+
+    public long getLocalDecisions () { return getLocalAllowed() + getLocalRejected(); }
+    public long getRemoteDecisions () { return getRemoteAllowed() + getRemoteRejected(); }
+
+    public double getLocalRatio () {
+        final long local = getLocalDecisions();
+        final long total = local + getRemoteDecisions();
+        return total == 0 ? 0.0d : ((double) local) / ((double) total);
+    }
+
+    @Override public String toString () {
+        return "localAllowed=" + getLocalAllowed() + ", localRejected=" + getLocalRejected()
+                + ", remoteAllowed=" + getRemoteAllowed() + ", remoteRejected=" + getRemoteRejected()
+                + ", localRatio=" + getLocalRatio() + ", syncs=" + getSyncs() + ", syncedKeys=" + getSyncedKeys()
+                + ", syncErrors=" + getSyncErrors() + ", overflows=" + getOverflows() + ", trimmed=" + getTrimmed();
+    }
+
+}
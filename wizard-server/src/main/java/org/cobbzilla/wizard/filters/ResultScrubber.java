@@ -3,15 +3,9 @@ package org.cobbzilla.wizard.filters;
 import com.sun.jersey.spi.container.ContainerRequest;
 import com.sun.jersey.spi.container.ContainerResponse;
 import com.sun.jersey.spi.container.ContainerResponseFilter;
-import lombok.extern.slf4j.Slf4j;
-import org.cobbzilla.util.reflect.ReflectionUtil;
 
 import java.util.Collection;
 
-import static org.cobbzilla.util.daemon.ZillaRuntime.die;
-import static org.cobbzilla.util.reflect.ReflectionUtil.setNull;
-
-@Slf4j
 public abstract class ResultScrubber implements ContainerResponseFilter {
 
     protected abstract ScrubbableField[] getFieldsToScrub(Object entity);
@@ -23,51 +17,31 @@ public abstract class ResultScrubber implements ContainerResponseFilter {
         return response;
     }
 
+    /**
+     * Scrub an entity, or each element of a collection or array of entities. The work for each entity class and
+     * fields array is planned once (see ScrubPlan), and a run of same-class elements reuses one plan
+     */
     public static void scrub(Object entity, ScrubbableField[] fieldsToScrub) {
         if (entity instanceof Collection) {
-            for (Scrubbable s : (Collection<Scrubbable>) entity) scrub(s, fieldsToScrub);
-        } else if (Scrubbable[].class.isAssignableFrom(entity.getClass())) {
-            for (Scrubbable s : (Scrubbable[]) entity) scrub(s, fieldsToScrub);
-        } else {
-            for (ScrubbableField field : fieldsToScrub) {
-                if (entity != null && field.targetType.isAssignableFrom(entity.getClass())) {
-                    try {
-                        if (entity instanceof CustomScrubbage) {
-                            ((CustomScrubbage) entity).scrub(entity, field);
-                        } else {
-                            boolean recurse = field.name.endsWith(".*");
-                            final String fieldName = recurse ? field.name.substring(0, field.name.length() - ".*".length()) : field.name;
-                            final Object thing = ReflectionUtil.get(entity, fieldName);
-                            if (thing == null) continue;
-                            if (!field.type.isAssignableFrom(thing.getClass()))
-                                die("scrub: incompatible types: " + thing.getClass().getName() + ", " + field.type.getName());
-                            if (recurse) {
-                                if (thing instanceof Collection) {
-                                    for (Object subThing : (Collection) thing) {
-                                        if (subThing instanceof Scrubbable) {
-                                            scrub(subThing, ((Scrubbable) subThing).fieldsToScrub());
-                                        }
-                                    }
-                                } else if (thing.getClass().isArray()) {
-                                    for (Object subThing : (Object[]) thing) {
-                                        if (subThing instanceof Scrubbable) {
-                                            scrub(subThing, ((Scrubbable) subThing).fieldsToScrub());
-                                        }
-                                    }
+            ScrubPlan plan = null;
+            for (Object s : (Collection) entity) plan = scrub(s, fieldsToScrub, plan);
+        } else if (entity instanceof Scrubbable[]) {
+            ScrubPlan plan = null;
+            for (Scrubbable s : (Scrubbable[]) entity) plan = scrub(s, fieldsToScrub, plan);
+        } else if (entity != null) {
+            ScrubPlan.get(entity.getClass(), fieldsToScrub).apply(entity);
+        }
+    }
 
-                                } else {
-                                    die("scrub: neither collection nor array: " + fieldName + " (was " + thing.getClass() + ")");
-                                }
-                            } else {
-                                setNull(entity, field.name, field.type);
-                            }
-                        }
-                    } catch (Exception e) {
-                        log.warn("filter: Error calling ReflectionUtil.setNull(" + entity + ", " + field.name + ", " + field.type.getName() + "): " + e);
-                    }
-                }
-            }
+    private static ScrubPlan scrub(Object entity, ScrubbableField[] fieldsToScrub, ScrubPlan plan) {
+        if (entity == null) return plan;
+        if (entity instanceof Collection || entity instanceof Scrubbable[]) {
+            scrub(entity, fieldsToScrub);
+            return plan;
         }
+        if (plan == null || !plan.isFor(entity.getClass(), fieldsToScrub)) plan = ScrubPlan.get(entity.getClass(), fieldsToScrub);
+        plan.apply(entity);
+        return plan;
     }
 
 }
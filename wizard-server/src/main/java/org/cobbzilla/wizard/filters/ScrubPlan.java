@@ -0,0 +1,168 @@
+package org.cobbzilla.wizard.filters;
+
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.util.reflect.ReflectionUtil;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.apache.commons.lang3.StringUtils.capitalize;
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.reflect.ReflectionUtil.setNull;
+
+/**
+ * How to scrub one entity class with one set of ScrubbableFields, worked out once and cached: the fields that apply
+ * to the class, whether each recurses, and method handles for their getters and setters. Fields whose accessors
+ * cannot be resolved this way (nested paths, non-public classes) fall back to ReflectionUtil.
+ */
+@Slf4j
+class ScrubPlan {
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    // fields arrays are normally constants; past this many plans, new ones are used without being cached
+    public static final int MAX_CACHED_PLANS = 10_000;
+
+    private static final Map<PlanKey, ScrubPlan> plans = new ConcurrentHashMap<>();
+
+    public static ScrubPlan get(Class<?> entityClass, ScrubbableField[] fields) {
+        final PlanKey key = new PlanKey(entityClass, fields);
+        final ScrubPlan plan = plans.get(key);
+        if (plan != null) return plan;
+        if (plans.size() >= MAX_CACHED_PLANS) return new ScrubPlan(entityClass, fields);
+        return plans.computeIfAbsent(key, k -> new ScrubPlan(entityClass, fields));
+    }
+
+    private final Class<?> entityClass;
+    private final ScrubbableField[] fields;
+    private final FieldScrub[] scrubs;
+    private final boolean custom;
+
+    private ScrubPlan(Class<?> entityClass, ScrubbableField[] fields) {
+        this.entityClass = entityClass;
+        this.fields = fields;
+        this.custom = CustomScrubbage.class.isAssignableFrom(entityClass);
+        final List<FieldScrub> applicable = new ArrayList<>(fields.length);
+        for (ScrubbableField field : fields) {
+            if (field.targetType.isAssignableFrom(entityClass)) applicable.add(new FieldScrub(entityClass, field));
+        }
+        this.scrubs = applicable.toArray(new FieldScrub[applicable.size()]);
+    }
+
+    public boolean isFor(Class<?> entityClass, ScrubbableField[] fields) {
+        return this.entityClass == entityClass && this.fields == fields;
+    }
+
+    public void apply(Object entity) {
+        for (FieldScrub scrub : scrubs) {
+            try {
+                if (custom) {
+                    ((CustomScrubbage) entity).scrub(entity, scrub.field);
+                } else {
+                    scrub.apply(entity);
+                }
+            } catch (Throwable e) {
+                log.warn("filter: Error scrubbing (" + entity + ", " + scrub.field.name + ", " + scrub.field.type.getName() + "): " + e);
+            }
+        }
+    }
+
+    private static class FieldScrub {
+
+        private final ScrubbableField field;
+        private final String fieldName;
+        private final boolean recurse;
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        FieldScrub(Class<?> entityClass, ScrubbableField field) {
+            this.field = field;
+            this.recurse = field.name.endsWith(".*");
+            this.fieldName = recurse ? field.name.substring(0, field.name.length() - ".*".length()) : field.name;
+            this.getter = fieldName.contains(".") ? null : findGetter(entityClass, fieldName);
+            this.setter = recurse || fieldName.contains(".") ? null : findSetter(entityClass, fieldName, field.type);
+        }
+
+        void apply(Object entity) throws Throwable {
+            final Object thing = getter == null ? ReflectionUtil.get(entity, fieldName) : (Object) getter.invokeExact(entity);
+            if (thing == null) return;
+            if (!field.type.isAssignableFrom(thing.getClass())) {
+                die("scrub: incompatible types: " + thing.getClass().getName() + ", " + field.type.getName());
+            }
+            if (recurse) {
+                if (thing instanceof Collection) {
+                    for (Object subThing : (Collection) thing) scrubSubThing(subThing);
+                } else if (thing instanceof Object[]) {
+                    for (Object subThing : (Object[]) thing) scrubSubThing(subThing);
+                } else {
+                    die("scrub: neither collection nor array: " + fieldName + " (was " + thing.getClass() + ")");
+                }
+            } else if (setter == null) {
+                setNull(entity, field.name, field.type);
+            } else {
+                try {
+                    setter.invokeExact(entity, (Object) null);
+                } catch (Throwable e) {
+                    // never leave the value in place just because the fast path failed
+                    setNull(entity, field.name, field.type);
+                }
+            }
+        }
+
+        private void scrubSubThing(Object subThing) {
+            if (subThing instanceof Scrubbable) ResultScrubber.scrub(subThing, ((Scrubbable) subThing).fieldsToScrub());
+        }
+
+        private static MethodHandle findGetter(Class<?> clazz, String name) {
+            for (String prefix : new String[] {"get", "is"}) {
+                try {
+                    final Method m = clazz.getMethod(prefix + capitalize(name));
+                    if (m.getReturnType() == void.class) continue;
+                    return MethodHandles.publicLookup().unreflect(m).asType(GETTER_TYPE);
+                } catch (NoSuchMethodException | IllegalAccessException ignored) {}
+            }
+            return null;
+        }
+
+        private static MethodHandle findSetter(Class<?> clazz, String name, Class<?> type) {
+            // a primitive setter cannot take the null we pass: leave it to setNull, which knows how to clear it
+            if (type.isPrimitive()) return null;
+            try {
+                final Method m = clazz.getMethod("set" + capitalize(name), type);
+                // asType also discards any return value, for fluent setters
+                return MethodHandles.publicLookup().unreflect(m).asType(SETTER_TYPE);
+            } catch (NoSuchMethodException | IllegalAccessException ignored) {
+                return null;
+            }
+        }
+    }
+
+    // fields are compared element by element, by identity (ScrubbableField has no equals)
+    private static class PlanKey {
+        private final Class<?> entityClass;
+        private final ScrubbableField[] fields;
+
+        PlanKey(Class<?> entityClass, ScrubbableField[] fields) {
+            this.entityClass = entityClass;
+            this.fields = fields;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof PlanKey)) return false;
+            final PlanKey other = (PlanKey) o;
+            return entityClass == other.entityClass && Arrays.equals(fields, other.fields);
+        }
+
+        @Override public int hashCode() { return 31 * entityClass.hashCode() + Arrays.hashCode(fields); }
+    }
+
+}
@@ -16,6 +16,7 @@ import static org.cobbzilla.util.collection.ArrayUtil.singletonArray;
 import static org.cobbzilla.util.daemon.ZillaRuntime.die;
 import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
 import static org.cobbzilla.util.json.JsonUtil.json;
+import static org.cobbzilla.wizard.resources.ResourceUtil.invalidEx;
 
 @Slf4j
 @Consumes(MediaType.APPLICATION_JSON)
@@ -37,10 +38,24 @@ public abstract class AbstractResource<T extends Identifiable> {
                           @QueryParam(ResultPage.PARAM_SORT_FIELD) String sortField,
                           @QueryParam(ResultPage.PARAM_SORT_ORDER) String sortOrder,
                           @QueryParam(ResultPage.PARAM_FILTER) String filter,
-                          @QueryParam(ResultPage.PARAM_BOUNDS) String bounds) {
+                          @QueryParam(ResultPage.PARAM_BOUNDS) String bounds,
+                          @QueryParam(ResultPage.PARAM_CONTINUATION) String continuation,
+                          @QueryParam(ResultPage.PARAM_COUNT_MODE) String countMode) {
 
         if (usePagination == null || !usePagination) return findAll();
-        return Response.ok(dao().search(new ResultPage(pageNumber, pageSize, sortField, sortOrder, filter, parseBounds(bounds)))).build();
+        final ResultPage page = new ResultPage(pageNumber, pageSize, sortField, sortOrder, filter, parseBounds(bounds))
+                .setContinuation(continuation)
+                .setCountMode(parseCountMode(countMode));
+        return Response.ok(dao().search(page)).build();
+    }
+
+    public static ResultPage.CountMode parseCountMode(String countMode) {
+        if (empty(countMode)) return ResultPage.CountMode.exact;
+        try {
+            return ResultPage.CountMode.create(countMode);
+        } catch (IllegalArgumentException e) {
+            throw invalidEx("err.countMode.invalid", "invalid count mode", countMode);
+        }
     }
 
     public static NameAndValue[] parseBounds(String bounds) {
@@ -1,7 +1,11 @@
 package org.cobbzilla.wizard.server.config;
 
+import org.cobbzilla.wizard.dao.AuditDurability;
+
 public interface HasAuditLogConfiguration {
 
     String getAuditLogEncryptionKey();
 
+    default AuditDurability getAuditDurability() { return AuditDurability.sync; }
+
 }
@@ -17,6 +17,12 @@ public class HibernateConfiguration {
     @Getter @Setter private String validationMode;
     @Getter @Setter private boolean applyValidatorToDDL = true;
 
+    // JDBC statement batching (hibernate.jdbc.batch_size, with ordered inserts/updates), which the
+    // createAll/updateAll/deleteAll bulk paths in AbstractCRUDDAO benefit from. zero (the default) leaves it off
+    public static final int DEFAULT_JDBC_BATCH_SIZE = 0;
+    @Getter @Setter private int jdbcBatchSize = DEFAULT_JDBC_BATCH_SIZE;
+    public boolean hasJdbcBatchSize () { return jdbcBatchSize > 0; }
+
     public HibernateConfiguration(HibernateConfiguration other) { copy(this, other); }
 
 }
@@ -20,6 +20,7 @@ import org.cobbzilla.wizard.analytics.AnalyticsHandler;
 import org.cobbzilla.wizard.asset.AssetStorageConfiguration;
 import org.cobbzilla.wizard.asset.AssetStorageService;
 import org.cobbzilla.wizard.dao.DAO;
+import org.cobbzilla.wizard.dao.cache.DAOCacheConfiguration;
 import org.cobbzilla.wizard.filters.ApiRateLimit;
 import org.cobbzilla.wizard.log.LogRelayAppenderConfig;
 import org.cobbzilla.wizard.model.Identifiable;
@@ -121,6 +122,16 @@ public class RestServerConfiguration {
 
     @Getter @Setter private AnalyticsConfiguration analytics;
 
+    // object cache settings for AbstractCRUDDAO.cacheLookup, keyed by DAO simple class name
+    @Getter @Setter private Map<String, DAOCacheConfiguration> daoCaches = new HashMap<>();
+    @Getter @Setter private DAOCacheConfiguration defaultDaoCache;
+
+    public DAOCacheConfiguration getDaoCacheConfiguration(String daoName) {
+        final DAOCacheConfiguration config = empty(daoCaches) ? null : daoCaches.get(daoName);
+        if (config != null) return config;
+        return defaultDaoCache != null ? defaultDaoCache : new DAOCacheConfiguration();
+    }
+
     @Getter(lazy=true) private final AnalyticsHandler analyticsHandler = initAnalyticsHandler();
     private AnalyticsHandler initAnalyticsHandler() {
         if (analytics == null || !analytics.valid()) return null;
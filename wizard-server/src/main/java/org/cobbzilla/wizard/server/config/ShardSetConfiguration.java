@@ -2,6 +2,8 @@ package org.cobbzilla.wizard.server.config;
 
 import lombok.Getter;
 import lombok.Setter;
+import org.cobbzilla.wizard.dao.cache.DAOCacheConfiguration;
+import org.cobbzilla.wizard.model.shard.ShardHashFunction;
 
 import static org.cobbzilla.util.system.Bytes.KB;
 
@@ -15,4 +17,12 @@ public class ShardSetConfiguration {
 
     @Getter @Setter private int logicalShards = DEFAULT_LOGICAL_SHARDS;
 
+    // changing this for a shard set with existing data requires migrating that data, see ShardHashFunction
+    @Getter @Setter private ShardHashFunction hashFunction = ShardHashFunction.sha256;
+
+    // optional in-process cache in front of the redis shard cache. keep the ttl short: entries are invalidated
+    // across servers via redis pub/sub, and the ttl bounds staleness if an invalidation message is lost
+    @Getter @Setter private DAOCacheConfiguration nearCache;
+    public boolean hasNearCache () { return nearCache != null && nearCache.isEnabled(); }
+
 }
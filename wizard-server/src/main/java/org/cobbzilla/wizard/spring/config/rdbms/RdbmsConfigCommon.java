@@ -90,6 +90,12 @@ public class RdbmsConfigCommon {
         properties.put("hibernate.hbm2ddl.auto", hibernateConfiguration.getHbm2ddlAuto());
         properties.put("hibernate.validator.apply_to_ddl", hibernateConfiguration.isApplyValidatorToDDL());
         properties.put("javax.persistence.verification.mode", hibernateConfiguration.getValidationMode());
+        if (hibernateConfiguration.hasJdbcBatchSize()) {
+            properties.put("hibernate.jdbc.batch_size", hibernateConfiguration.getJdbcBatchSize());
+            properties.put("hibernate.order_inserts", true);
+            properties.put("hibernate.order_updates", true);
+            properties.put("hibernate.jdbc.batch_versioned_data", true);
+        }
         return properties;
     }
 
@@ -0,0 +1,27 @@
+-- like api_limiter_redis.lua, but adds ARGV[1] requests at once and returns what it found, so that a server
+-- deciding requests locally can sync its counts and learn the shared ones.
+-- ARGV is the number of requests followed by triples (limit, interval, block)
+-- returns a flat array of (count, pttl) for each limit, in order
+local n = tonumber(ARGV[1])
+local result = {}
+for i=2,#ARGV,3 do
+    local limit = tonumber(ARGV[i])
+    local fullkey = KEYS[1] .. ':' .. ARGV[i] .. ':' .. ARGV[i+1] .. ':' .. ARGV[i+2]
+    local bucket = redis.call('GET', fullkey)   -- return false if not found
+    local count
+    if (bucket ~= false) and (tonumber(bucket) >= limit) then
+        count = tonumber(bucket)  -- already blocked, don't count
+    elseif n == 0 then
+        if bucket == false then count = 0 else count = tonumber(bucket) end
+    else
+        count = redis.call('INCRBY', fullkey, n)
+        if count >= limit then
+            redis.call('PEXPIRE', fullkey, tonumber(ARGV[i+2]))  -- limit breached, block
+        elseif count == n then
+            redis.call('PEXPIRE', fullkey, tonumber(ARGV[i+1]))  -- new key, expire at end of interval
+        end
+    end
+    table.insert(result, count)
+    table.insert(result, redis.call('PTTL', fullkey))
+end
+return result
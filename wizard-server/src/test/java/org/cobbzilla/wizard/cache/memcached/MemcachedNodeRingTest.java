@@ -0,0 +1,59 @@
+package org.cobbzilla.wizard.cache.memcached;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MemcachedNodeRingTest {
+
+    private static final MemcachedConfiguration CONFIG = new MemcachedConfiguration("127.0.0.1", 11211, null);
+
+    // nodes connect lazily, so none of these needs a running memcached
+    private static MemcachedNode[] nodes(String... addresses) {
+        return Arrays.stream(addresses).map(a -> new MemcachedNode(a, CONFIG)).toArray(MemcachedNode[]::new);
+    }
+
+    @Test public void testSingleNode () {
+        final MemcachedNodeRing ring = new MemcachedNodeRing(nodes("a:11211"));
+        assertSame(ring.getNodes()[0], ring.getNode("anything"));
+    }
+
+    @Test(expected=Exception.class) public void testNoNodes () {
+        new MemcachedNodeRing(new MemcachedNode[0]);
+    }
+
+    @Test public void testKeysSpreadAcrossNodes () {
+        final MemcachedNodeRing ring = new MemcachedNodeRing(nodes("a:11211", "b:11211", "c:11211"));
+        final Map<String, Integer> counts = new HashMap<>();
+        for (int i=0; i<3000; i++) {
+            final String key = "key-" + i;
+            final MemcachedNode node = ring.getNode(key);
+            assertSame(node, ring.getNode(key));
+            counts.merge(node.getAddress(), 1, Integer::sum);
+        }
+        assertEquals(3, counts.size());
+        for (int count : counts.values()) assertTrue("unbalanced: "+counts, count > 500);
+    }
+
+    @Test public void testAddingANodeMovesFewKeys () {
+        final MemcachedNodeRing three = new MemcachedNodeRing(nodes("a:11211", "b:11211", "c:11211"));
+        final MemcachedNodeRing four = new MemcachedNodeRing(nodes("a:11211", "b:11211", "c:11211", "d:11211"));
+        int moved = 0;
+        for (int i=0; i<3000; i++) {
+            final String key = "key-" + i;
+            final String before = three.getNode(key).getAddress();
+            final String after = four.getNode(key).getAddress();
+            if (!before.equals(after)) {
+                // a key only ever moves to the new node
+                assertEquals("d:11211", after);
+                moved++;
+            }
+        }
+        assertTrue("moved "+moved, moved > 0 && moved < 1500);
+    }
+
+}
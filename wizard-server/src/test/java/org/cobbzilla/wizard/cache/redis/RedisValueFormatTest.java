@@ -0,0 +1,53 @@
+package org.cobbzilla.wizard.cache.redis;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.cobbzilla.wizard.cache.redis.RedisValueFormat.*;
+import static org.junit.Assert.*;
+
+public class RedisValueFormatTest {
+
+    private static byte[] repeated(String s, int times) {
+        final StringBuilder b = new StringBuilder();
+        for (int i=0; i<times; i++) b.append(s);
+        return b.toString().getBytes(UTF_8);
+    }
+
+    @Test public void testBelowThresholdIsRaw () {
+        final byte[] value = "{\"name\":\"x\"}".getBytes(UTF_8);
+        final byte[] framed = frame(value, 1024);
+        assertEquals(RAW, framed[0]);
+        assertEquals(value.length + 1, framed.length);
+        assertArrayEquals(value, unframe(framed));
+    }
+
+    @Test public void testAboveThresholdIsDeflated () {
+        final byte[] value = repeated("{\"name\":\"x\"},", 1000);
+        final byte[] framed = frame(value, 1024);
+        assertEquals(DEFLATE, framed[0]);
+        assertTrue(framed.length < value.length);
+        assertArrayEquals(value, unframe(framed));
+    }
+
+    @Test public void testZeroThresholdNeverCompresses () {
+        final byte[] value = repeated("a", 10000);
+        assertEquals(RAW, frame(value, 0)[0]);
+    }
+
+    @Test public void testEmptyValue () {
+        assertArrayEquals(new byte[0], unframe(frame(new byte[0], 0)));
+    }
+
+    @Test(expected=Exception.class) public void testUnframeEmpty () { unframe(new byte[0]); }
+
+    @Test(expected=Exception.class) public void testUnframeUnknownFormat () { unframe(new byte[] {7, 1, 2}); }
+
+    @Test(expected=Exception.class) public void testUnframeTruncated () {
+        final byte[] framed = frame(repeated("abc", 1000), 1);
+        unframe(Arrays.copyOf(framed, framed.length / 2));
+    }
+
+}
@@ -0,0 +1,156 @@
+package org.cobbzilla.wizard.dao;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import org.cobbzilla.wizard.cache.redis.RedisService;
+import org.cobbzilla.wizard.model.ExpirableBase;
+import org.cobbzilla.wizard.model.Versioned;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class AbstractRedisDAOTest {
+
+    @NoArgsConstructor @Accessors(chain=true)
+    public static class Counter extends ExpirableBase implements Versioned {
+        @Getter @Setter private Long version;
+        @Getter @Setter private int count;
+
+        public Counter(Counter other) {
+            setUuid(other.getUuid());
+            setExpirationSeconds(other.getExpirationSeconds());
+            this.version = other.version;
+            this.count = other.count;
+        }
+    }
+
+    // stores copies in memory, and can run a competing write just before the next compare-and-set
+    public static class FakeRedis extends RedisService {
+        private final Map<String, Counter> values = new HashMap<>();
+        private final Map<String, Long> versions = new HashMap<>();
+        private Runnable beforeNextWrite = null;
+
+        @Override public <T> T getObject(String key, Class<T> clazz) {
+            final Counter c = values.get(key);
+            return c == null ? null : (T) new Counter(c);
+        }
+
+        @Override public Long setObjectIfVersion(String key, Object thing, String versionKey, long expectedVersion, String expx, long time) {
+            if (beforeNextWrite != null) {
+                final Runnable r = beforeNextWrite;
+                beforeNextWrite = null;
+                r.run();
+            }
+            final Long current = versions.get(versionKey);
+            if ((current == null ? 0 : current) != expectedVersion) return null;
+            values.put(key, new Counter((Counter) thing));
+            versions.put(versionKey, expectedVersion + 1);
+            return expectedVersion + 1;
+        }
+    }
+
+    public static class CounterDAO extends AbstractRedisDAO<Counter> {
+        final FakeRedis fake = new FakeRedis();
+        @Override protected RedisService initPrefixRedis() { return fake; }
+    }
+
+    private CounterDAO dao;
+
+    private static Counter counter(String uuid, int count) {
+        final Counter c = new Counter().setCount(count);
+        c.setUuid(uuid);
+        return c;
+    }
+
+    @Before public void setUp() { dao = new CounterDAO(); }
+
+    @Test public void testCreateThenUpdate () {
+        final Counter c = dao.create(counter("a", 1));
+        assertEquals(Long.valueOf(1), c.getVersion());
+
+        final Counter found = dao.get("a");
+        found.setCount(2);
+        dao.update(found);
+        assertEquals(Long.valueOf(2), found.getVersion());
+        assertEquals(2, dao.get("a").getCount());
+    }
+
+    @Test public void testStaleUpdateConflicts () {
+        dao.create(counter("a", 1));
+        final Counter first = dao.get("a");
+        final Counter second = dao.get("a");
+
+        first.setCount(10);
+        dao.update(first);
+
+        second.setCount(20);
+        try {
+            dao.update(second);
+            fail("expected VersionConflictException");
+        } catch (VersionConflictException expected) {}
+        // the loser keeps its version, and the winner's write stands
+        assertEquals(Long.valueOf(1), second.getVersion());
+        assertEquals(10, dao.get("a").getCount());
+    }
+
+    @Test public void testUpdateRetriesAfterConflict () {
+        dao.create(counter("a", 0));
+        // another writer increments between our read and our write, once
+        dao.fake.beforeNextWrite = () -> {
+            final Counter other = dao.get("a");
+            other.setCount(other.getCount() + 1);
+            dao.compareAndSet(other);
+        };
+        final Counter result = dao.update("a", c -> c.setCount(c.getCount() + 1), 3);
+        assertEquals(2, result.getCount());
+        assertEquals(2, dao.get("a").getCount());
+        assertEquals(Long.valueOf(3), result.getVersion());
+    }
+
+    @Test public void testUpdateGivesUp () {
+        dao.create(counter("a", 0));
+        try {
+            dao.update("a", c -> {
+                // every try loses to a competing write
+                dao.fake.beforeNextWrite = () -> dao.compareAndSet(dao.get("a"));
+                return c.setCount(c.getCount() + 1);
+            }, 3);
+            fail("expected VersionConflictException");
+        } catch (VersionConflictException expected) {}
+        assertEquals(0, dao.get("a").getCount());
+    }
+
+    @Test public void testUpdateAllChecksVersions () {
+        dao.create(counter("a", 1));
+        dao.create(counter("b", 1));
+        final Counter a = dao.get("a");
+        final Counter staleB = dao.get("b");
+        dao.update(dao.get("b").setCount(5));
+
+        try {
+            dao.updateAll(Arrays.asList(a.setCount(2), staleB.setCount(3)));
+            fail("expected VersionConflictException");
+        } catch (VersionConflictException expected) {
+            assertTrue(expected.getMessage().contains("[b]"));
+        }
+        // every entity is tried before the conflict is reported
+        assertEquals(2, dao.get("a").getCount());
+        assertEquals(5, dao.get("b").getCount());
+    }
+
+    @Test public void testCreateOrUpdateAllAssignsUuids () {
+        final Counter c = new Counter().setCount(7);
+        dao.createOrUpdateAll(Arrays.asList(c));
+        assertTrue(c.hasUuid());
+        assertEquals(Long.valueOf(1), c.getVersion());
+        assertEquals(7, dao.get(c.getUuid()).getCount());
+    }
+
+}
@@ -0,0 +1,81 @@
+package org.cobbzilla.wizard.dao;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.cobbzilla.wizard.model.IdentifiableBase;
+import org.cobbzilla.wizard.model.search.ResultPage;
+import org.cobbzilla.wizard.validation.SimpleViolationException;
+import org.junit.Test;
+
+import java.util.Base64;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+public class SearchContinuationTest {
+
+    public enum Kind { small, large }
+
+    public static class Row extends IdentifiableBase {
+        @Getter @Setter private Long score;
+        @Getter @Setter private Kind kind;
+    }
+
+    private static Row row(String uuid, Long score) {
+        final Row r = new Row();
+        r.setUuid(uuid);
+        r.setScore(score);
+        return r;
+    }
+
+    private static final ResultPage BY_SCORE = new ResultPage(1, 10, "score", ResultPage.SortOrder.ASC);
+
+    @Test public void testRoundTrip () {
+        final SearchContinuation c = SearchContinuation.after(row("a", 42L), BY_SCORE);
+        final SearchContinuation decoded = SearchContinuation.decode(c.encode());
+        assertEquals("a", decoded.getUuid());
+        assertEquals(42L, decoded.sortValue());
+        assertTrue(decoded.matches(BY_SCORE));
+        assertFalse(decoded.matches(new ResultPage(1, 10, "score", ResultPage.SortOrder.DESC)));
+    }
+
+    @Test public void testNullValue () {
+        final SearchContinuation decoded = SearchContinuation.decode(SearchContinuation.after(row("a", null), BY_SCORE).encode());
+        assertFalse(decoded.hasValue());
+        assertNull(decoded.sortValue());
+        assertEquals("a", decoded.getUuid());
+    }
+
+    @Test public void testUnsupportedType () {
+        final Row r = row("a", 1L);
+        r.setKind(Kind.large);
+        assertNull(SearchContinuation.after(r, new ResultPage(1, 10, "kind", ResultPage.SortOrder.ASC)));
+    }
+
+    @Test public void testMalformedToken () {
+        assertInvalid("not base64!");
+        assertInvalid(Base64.getUrlEncoder().encodeToString("{not json".getBytes(UTF_8)));
+        // well-formed, but without a uuid
+        assertInvalid(Base64.getUrlEncoder().encodeToString("{\"sortField\":\"score\"}".getBytes(UTF_8)));
+        // a value whose type would not round-trip
+        assertInvalid(Base64.getUrlEncoder().encodeToString(
+                "{\"sortField\":\"kind\",\"valueType\":\"java.util.Date\",\"value\":\"x\",\"uuid\":\"a\"}".getBytes(UTF_8)));
+    }
+
+    @Test public void testInvalidSortValue () {
+        final SearchContinuation c = new SearchContinuation()
+                .setSortField("score").setValueType(Long.class.getName()).setValue("x").setUuid("a");
+        try {
+            c.sortValue();
+            fail("expected SimpleViolationException");
+        } catch (SimpleViolationException expected) {}
+    }
+
+    private void assertInvalid(String token) {
+        try {
+            SearchContinuation.decode(token);
+            fail("expected SimpleViolationException: "+token);
+        } catch (SimpleViolationException expected) {}
+    }
+
+}
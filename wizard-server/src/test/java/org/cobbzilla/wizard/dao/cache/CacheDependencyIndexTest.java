@@ -0,0 +1,63 @@
+package org.cobbzilla.wizard.dao.cache;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.cobbzilla.wizard.dao.cache.CacheDependencyIndex.fieldDependency;
+import static org.cobbzilla.wizard.dao.cache.CacheDependencyIndex.uuidDependency;
+import static org.junit.Assert.*;
+
+public class CacheDependencyIndexTest {
+
+    @Test public void testInvalidateOnlyAffectedKeys () {
+        final CacheDependencyIndex index = new CacheDependencyIndex();
+        index.register("findByUuid:a", Collections.singletonList(uuidDependency("a")));
+        index.register("findByUuid:b", Collections.singletonList(uuidDependency("b")));
+        index.register("findByOwner:x", Arrays.asList(fieldDependency("owner", "x"), uuidDependency("a")));
+
+        assertEquals(new HashSet<>(Arrays.asList("findByUuid:a", "findByOwner:x")),
+                index.invalidate(Collections.singletonList(uuidDependency("a"))));
+        assertEquals(1, index.getKeyCount());
+        assertEquals(1, index.getDependencyCount());
+
+        // invalidated keys are unregistered
+        assertTrue(index.invalidate(Collections.singletonList(uuidDependency("a"))).isEmpty());
+        assertEquals(2, index.getWrites());
+        assertEquals(2, index.getKeysInvalidated());
+        assertEquals(2, index.getMaxKeysPerWrite());
+        assertEquals(0, index.getLastKeysPerWrite());
+    }
+
+    @Test public void testUnknownKeysInvalidatedByEveryWrite () {
+        final CacheDependencyIndex index = new CacheDependencyIndex();
+        index.register("findAll", Collections.<String>emptyList());
+        index.register("findByUuid:a", Collections.singletonList(uuidDependency("a")));
+
+        assertEquals(Collections.singleton("findAll"), index.invalidate(Collections.singletonList(uuidDependency("z"))));
+        assertEquals(1, index.getKeyCount());
+    }
+
+    @Test public void testReregisterReplacesDependencies () {
+        final CacheDependencyIndex index = new CacheDependencyIndex();
+        index.register("k", Collections.singletonList(uuidDependency("a")));
+        index.register("k", Collections.singletonList(uuidDependency("b")));
+        assertTrue(index.invalidate(Collections.singletonList(uuidDependency("a"))).isEmpty());
+        assertEquals(Collections.singleton("k"), index.invalidate(Collections.singletonList(uuidDependency("b"))));
+    }
+
+    @Test public void testRemoveAndClear () {
+        final CacheDependencyIndex index = new CacheDependencyIndex();
+        index.register("k1", Collections.singletonList(uuidDependency("a")));
+        index.register("k2", Collections.singletonList(uuidDependency("a")));
+        index.remove("k1");
+        assertEquals(1, index.getKeyCount());
+        assertEquals(1, index.getDependencyCount());
+        index.clear();
+        assertEquals(0, index.getKeyCount());
+        assertEquals(0, index.getDependencyCount());
+    }
+
+}
@@ -0,0 +1,79 @@
+package org.cobbzilla.wizard.dao.cache;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LruObjectCacheTest {
+
+    private static LruObjectCache<String, Integer> cache(int maxEntries, long ttl) {
+        final LruObjectCache<String, Integer> cache = new LruObjectCache<>();
+        cache.init(new DAOCacheConfiguration().setMaxEntries(maxEntries).setTtl(ttl));
+        return cache;
+    }
+
+    @Test public void testGetPutRemove () {
+        final LruObjectCache<String, Integer> cache = cache(10, 0);
+        assertNull(cache.get("a"));
+        cache.put("a", 1);
+        cache.put("b", 2);
+        assertEquals(Integer.valueOf(1), cache.get("a"));
+        assertEquals(Integer.valueOf(1), cache.remove("a"));
+        assertNull(cache.get("a"));
+        assertNull(cache.remove("a"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test public void testEvictsToMaxEntries () {
+        final LruObjectCache<String, Integer> cache = cache(3, 0);
+        final List<String> removed = new ArrayList<>();
+        cache.setRemovalListener(removed::add);
+        for (int i=0; i<10; i++) cache.put("k"+i, i);
+        assertEquals(3, cache.size());
+        assertEquals(7, cache.getStats().getEvictions());
+        assertEquals(7, removed.size());
+        for (String key : removed) assertNull(cache.get(key));
+    }
+
+    @Test public void testReadEntryGetsSecondChance () {
+        final LruObjectCache<String, Integer> cache = cache(3, 0);
+        for (int i=0; i<4; i++) cache.put("k"+i, i);
+        // the first eviction swept every mark clear; reading a survivor marks it again
+        String survivor = null;
+        for (int i=0; i<4 && survivor == null; i++) if (cache.get("k"+i) != null) survivor = "k"+i;
+        assertNotNull(survivor);
+
+        cache.put("k4", 4);
+        assertEquals(3, cache.size());
+        assertNotNull(cache.get(survivor));
+        assertNotNull(cache.get("k4"));
+    }
+
+    @Test public void testExpiration () throws Exception {
+        final LruObjectCache<String, Integer> cache = cache(10, 1);
+        final List<String> removed = new ArrayList<>();
+        cache.setRemovalListener(removed::add);
+        cache.put("a", 1);
+        Thread.sleep(10);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getStats().getExpirations());
+        assertEquals(1, removed.size());
+    }
+
+    @Test public void testRemoveIfAndClear () {
+        final LruObjectCache<String, Integer> cache = cache(10, 0);
+        cache.put("user:1", 1);
+        cache.put("user:2", 2);
+        cache.put("account:1", 3);
+        assertEquals(2, cache.removeIf(k -> k.startsWith("user:")));
+        assertEquals(1, cache.size());
+        assertTrue(cache.clear());
+        assertFalse(cache.clear());
+        assertEquals(0, cache.size());
+    }
+
+}
@@ -0,0 +1,119 @@
+package org.cobbzilla.wizard.dao.shard;
+
+import org.cobbzilla.wizard.dao.shard.task.ShardSearchTask;
+import org.cobbzilla.wizard.dao.shard.task.ShardTask;
+import org.cobbzilla.wizard.model.shard.ShardMap;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
+import static org.cobbzilla.util.system.Sleep.sleep;
+import static org.junit.Assert.*;
+
+public class ShardQueryExecutorTest {
+
+    private final Map<String, AtomicInteger> queries = new HashMap<>();
+
+    // a shard DAO that only answers getShard and query
+    private SingleShardDAO shard(String name, Supplier<List> rows) {
+        final ShardMap map = new ShardMap().setUrl("localhost/" + name);
+        final AtomicInteger count = new AtomicInteger(0);
+        queries.put(name, count);
+        return (SingleShardDAO) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] {SingleShardDAO.class}, (proxy, m, args) -> {
+            switch (m.getName()) {
+                case "getShard": return map;
+                case "query":    count.incrementAndGet(); return rows.get();
+                case "toString": return name;
+                case "hashCode": return System.identityHashCode(proxy);
+                case "equals":   return proxy == args[0];
+                default: throw new UnsupportedOperationException(m.getName());
+            }
+        });
+    }
+
+    private static List rows(String prefix) {
+        final List rows = new ArrayList();
+        for (int i=0; i<5; i++) rows.add(prefix + i);
+        return rows;
+    }
+
+    private static ShardQueryResult<List> search(ShardQueryExecutor executor, List<List<SingleShardDAO>> groups,
+                                                 ShardSearch search, ShardQueryOptions options) throws Exception {
+        final ShardSearchTask.Factory factory = new ShardSearchTask.Factory(search, 0);
+        try {
+            // registered when created, like AbstractShardedDAO.queryShards
+            return executor.query(groups, dao -> {
+                final ShardTask task = factory.newTask(dao);
+                factory.getTasks().add(task);
+                return (Callable<List>) task;
+            }, options, null);
+        } finally {
+            factory.cancelTasks();
+        }
+    }
+
+    private static ShardQueryOptions unsortedSearchOptions() {
+        return new ShardQueryOptions().setTimeout(5000).setShardTimeout(5000).setFailover(false);
+    }
+
+    @Test public void testFullCollectorCancelsQueuedTasks () throws Exception {
+        // one thread: while the first shard runs, the other two wait in the queue
+        final ShardQueryExecutor executor = new ShardQueryExecutor(1, 10);
+        final List<List<SingleShardDAO>> groups = Arrays.asList(
+                Arrays.asList(shard("s1", () -> {
+                    final long start = now();
+                    while (executor.getQueueDepth() < 2 && now() - start < 5000) sleep(10);
+                    return rows("s1-");
+                }), shard("s1r", () -> rows("s1r-"))),
+                Arrays.asList(shard("s2", () -> rows("s2-")), shard("s2r", () -> rows("s2r-"))),
+                Arrays.asList(shard("s3", () -> rows("s3-")), shard("s3r", () -> rows("s3r-"))));
+
+        final ShardSearch search = new ShardSearch("from Thing", new ArrayList<>()).setMaxResults(2);
+        final ShardQueryResult<List> result = search(executor, groups, search, unsortedSearchOptions());
+
+        // the queued tasks were cancelled by the one that filled the collector: they answer with no rows,
+        // which is not a failure, so nothing fails over and the search succeeds
+        assertFalse(result.isPartial());
+        assertEquals(3, result.getResults().size());
+        assertEquals(search.getCollector().getResults(), result.getResults().get(0));
+        assertTrue(result.getResults().get(1).isEmpty());
+        assertTrue(result.getResults().get(2).isEmpty());
+        assertEquals(0, executor.getShardFailures());
+        assertEquals(0, executor.getFailovers());
+        assertEquals(1, queries.get("s1").get());
+        for (String name : new String[] {"s1r", "s2", "s2r", "s3", "s3r"}) assertEquals(name, 0, queries.get(name).get());
+    }
+
+    @Test public void testNoFailoverWhenDisabled () throws Exception {
+        final ShardQueryExecutor executor = new ShardQueryExecutor(2, 10);
+        final List<List<SingleShardDAO>> groups = Arrays.asList(
+                Arrays.asList(shard("s1", () -> { throw new IllegalStateException("down"); }), shard("s1r", () -> rows("s1r-"))),
+                Collections.singletonList(shard("s2", () -> rows("s2-"))));
+
+        final ShardSearch search = new ShardSearch("from Thing", new ArrayList<>());
+        final ShardQueryResult<List> result = search(executor, groups, search, unsortedSearchOptions().setAllowPartialResults(true));
+
+        assertEquals(Collections.singletonList("s1"), result.getFailedShards());
+        assertEquals(0, queries.get("s1r").get());
+        assertEquals(0, executor.getFailovers());
+    }
+
+    @Test public void testFailover () throws Exception {
+        final ShardQueryExecutor executor = new ShardQueryExecutor(2, 10);
+        final List<List<SingleShardDAO>> groups = Collections.singletonList(
+                Arrays.asList(shard("s1", () -> { throw new IllegalStateException("down"); }), shard("s1r", () -> rows("s1r-"))));
+
+        final ShardSearch search = new ShardSearch("from Thing", new ArrayList<>());
+        final ShardQueryResult<List> result = search(executor, groups, search, new ShardQueryOptions().setTimeout(5000));
+
+        assertFalse(result.isPartial());
+        assertEquals(rows("s1r-"), result.getResults().get(0));
+        assertEquals(1, executor.getFailovers());
+    }
+
+}
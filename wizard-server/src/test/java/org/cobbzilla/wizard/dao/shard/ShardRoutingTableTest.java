@@ -0,0 +1,80 @@
+package org.cobbzilla.wizard.dao.shard;
+
+import org.cobbzilla.wizard.model.shard.ShardHashFunction;
+import org.cobbzilla.wizard.model.shard.ShardIO;
+import org.cobbzilla.wizard.model.shard.ShardMap;
+import org.cobbzilla.wizard.model.shard.ShardRange;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.cobbzilla.util.security.ShaUtil.sha256_hex;
+import static org.junit.Assert.*;
+
+public class ShardRoutingTableTest {
+
+    private static ShardMap shard(String url, int start, int end) {
+        return new ShardMap().setShardSet("test").setUrl(url).setRange(new ShardRange(start, end));
+    }
+
+    // shards 0-49 on a, 50-99 on b; b is being split, and 75-99 is also written to c
+    private static final ShardMap A = shard("a", 0, 50);
+    private static final ShardMap B = shard("b", 50, 100);
+    private static final ShardMap C = shard("c", 75, 100);
+
+    private static final List<ShardMap> READ = Arrays.asList(A, B);
+    private static final List<ShardMap> WRITE = Arrays.asList(A, B, C);
+
+    @Test public void testSegments () {
+        final ShardRoutingTable table = new ShardRoutingTable("test", 100, READ, WRITE);
+        assertEquals(3, table.getSegmentCount());
+        assertEquals(0, table.getSegment(0));
+        assertEquals(0, table.getSegment(49));
+        assertEquals(1, table.getSegment(50));
+        assertEquals(1, table.getSegment(74));
+        assertEquals(2, table.getSegment(75));
+        assertEquals(2, table.getSegment(99));
+        assertEquals(-1, table.getSegment(-1));
+        assertEquals(-1, table.getSegment(100));
+    }
+
+    @Test public void testShards () {
+        final ShardRoutingTable table = new ShardRoutingTable("test", 100, READ, WRITE);
+        assertArrayEquals(new ShardMap[] {A}, table.getShards(10, ShardIO.read));
+        assertArrayEquals(new ShardMap[] {A}, table.getShards(10, ShardIO.write));
+        assertArrayEquals(new ShardMap[] {B}, table.getShards(60, ShardIO.write));
+        assertArrayEquals(new ShardMap[] {B}, table.getShards(80, ShardIO.read));
+        assertArrayEquals(new ShardMap[] {B, C}, table.getShards(80, ShardIO.write));
+        assertArrayEquals(new ShardMap[] {B, C}, table.getShards(80, null));
+        assertEquals(0, table.getShards(100, null).length);
+    }
+
+    @Test public void testUnmappedShards () {
+        final ShardRoutingTable table = new ShardRoutingTable("test", 100, Collections.singletonList(A), Collections.<ShardMap>emptyList());
+        assertArrayEquals(new ShardMap[] {A}, table.getShards(0, ShardIO.read));
+        assertEquals(0, table.getShards(0, ShardIO.write).length);
+        assertEquals(0, table.getShards(50, null).length);
+        assertEquals(1, table.getSegment(50));
+    }
+
+    @Test public void testSha256MatchesHexPrefix () {
+        for (String id : new String[] {"", "a", "0b6f5c1e-9a8d-4e4b-8f4a-2d1c3b5a7e90", "été"}) {
+            assertEquals(id, Integer.parseInt(sha256_hex(id).substring(0, 7), 16), ShardHashFunction.sha256.hash(id));
+        }
+    }
+
+    @Test public void testLogicalShardInRange () {
+        for (ShardHashFunction f : ShardHashFunction.values()) {
+            for (int i=0; i<1000; i++) {
+                final String id = "id-" + i;
+                final int shard = f.logicalShard(id, 7);
+                assertTrue(f+": "+id, shard >= 0 && shard < 7);
+                assertEquals(shard, f.logicalShard(id, 7));
+            }
+        }
+        assertEquals(ShardHashFunction.fnv1a, ShardHashFunction.create("FNV1A"));
+    }
+
+}
@@ -0,0 +1,58 @@
+package org.cobbzilla.wizard.dao.shard;
+
+import org.cobbzilla.wizard.util.ResultCollectorBase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ShardSearchTest {
+
+    private static ShardSearch search() {
+        return new ShardSearch().setComparator(Comparator.naturalOrder());
+    }
+
+    private static List<List<Integer>> shards() {
+        return Arrays.asList(
+                Arrays.asList(1, 4, 7, 10),
+                Collections.emptyList(),
+                null,
+                Arrays.asList(2, 5, 8),
+                Arrays.asList(3, 6, 9, 11, 12));
+    }
+
+    @Test public void testMerge () {
+        final ShardSearch search = search();
+        final List<Integer> merged = search.merge(shards());
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12), merged);
+        assertEquals(merged, search.getCollector().getResults());
+    }
+
+    @Test public void testMergeStopsAtMaxResults () {
+        final ShardSearch search = search().setMaxResults(5);
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5), search.merge(shards()));
+    }
+
+    @Test public void testMergeStopsWhenCollectorIsFull () {
+        final List<Object> seen = new ArrayList<>();
+        final ShardSearch search = search().setCollector(new ResultCollectorBase() {
+            @Override public boolean addResult(Object thing) {
+                seen.add(thing);
+                return seen.size() < 3;
+            }
+        });
+        assertEquals(Arrays.asList(1, 2, 3), search.merge(shards()));
+        assertEquals(Arrays.<Object>asList(1, 2, 3), seen);
+    }
+
+    @Test public void testMergeNothing () {
+        assertTrue(search().merge(Arrays.asList(null, Collections.<Integer>emptyList())).isEmpty());
+        assertTrue(search().merge(Collections.<List<Integer>>emptyList()).isEmpty());
+    }
+
+}
@@ -0,0 +1,93 @@
+package org.cobbzilla.wizard.filters;
+
+import org.cobbzilla.wizard.cache.redis.RedisService;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class LocalRateLimiterTest {
+
+    public static final long PTTL = 60000;
+
+    // counts requests per key in memory, returning (count, pttl) for each limit like the batch script
+    public static class FakeRedis extends RedisService {
+        private final Map<String, Long> counts = new HashMap<>();
+        private final List<Long> evals = new ArrayList<>();
+
+        @Override public String loadScript(String script) { return "sha"; }
+
+        @Override public Object eval(String scriptsha, List<String> keys, List<String> args) {
+            final long added = Long.parseLong(args.get(0));
+            evals.add(added);
+            final long count = counts.merge(keys.get(0), added, Long::sum);
+            final List<Long> result = new ArrayList<>();
+            for (int i=1; i<args.size(); i+=3) {
+                result.add(count);
+                result.add(PTTL);
+            }
+            return result;
+        }
+    }
+
+    private final FakeRedis redis = new FakeRedis();
+
+    private static ApiRateLimit limit(int limit, double localThreshold, int maxLocalBatch) {
+        final ApiRateLimit l = new ApiRateLimit(limit, "1m", "1m");
+        l.setLocalThreshold(localThreshold);
+        l.setMaxLocalBatch(maxLocalBatch);
+        // keep the background sync out of the way
+        l.setSyncInterval("1h");
+        return l;
+    }
+
+    private LocalRateLimiter limiter(ApiRateLimit limit, int maxKeys) {
+        return new LocalRateLimiter(redis, Arrays.asList(limit),
+                Arrays.asList(String.valueOf(limit.getLimit()), limit.getInterval(), limit.getBlock()), maxKeys);
+    }
+
+    @Test public void testDecidesLocallyWellBelowLimit () {
+        final LocalRateLimiter limiter = limiter(limit(10, 0.5, 3), 100);
+        for (int i=0; i<5; i++) assertNull(limiter.check("k"));
+
+        // three admitted locally, then maxLocalBatch forces a check that sends them along,
+        // then the shared count reaches the threshold and every request goes to redis
+        assertEquals(3, limiter.getStats().getLocalAllowed());
+        assertEquals(2, limiter.getStats().getRemoteAllowed());
+        assertEquals(Arrays.asList(4L, 1L), redis.evals);
+        assertEquals(Long.valueOf(5), redis.counts.get("k"));
+    }
+
+    @Test public void testWithoutThresholdAlwaysChecksRedis () {
+        final LocalRateLimiter limiter = limiter(limit(10, 0, 3), 100);
+        for (int i=0; i<3; i++) assertNull(limiter.check("k"));
+        assertEquals(0, limiter.getStats().getLocalDecisions());
+        assertEquals(Arrays.asList(1L, 1L, 1L), redis.evals);
+    }
+
+    @Test public void testBlockedKeyIsRejectedLocally () {
+        final LocalRateLimiter limiter = limiter(limit(2, 0.5, 3), 100);
+        assertNull(limiter.check("k"));
+        assertEquals(Integer.valueOf(0), limiter.check("k"));
+        assertEquals(Integer.valueOf(0), limiter.check("k"));
+        assertEquals(1, limiter.getStats().getRemoteRejected());
+        assertEquals(1, limiter.getStats().getLocalRejected());
+        assertEquals(2, redis.evals.size());
+    }
+
+    @Test public void testNewKeysBeyondMaxKeysGoToRedis () {
+        final LocalRateLimiter limiter = limiter(limit(10, 0.5, 3), 1);
+        assertNull(limiter.check("a"));
+        assertNull(limiter.check("b"));
+        assertNull(limiter.check("b"));
+        assertEquals(1, limiter.getStats().getLocalAllowed());
+        assertEquals(2, limiter.getStats().getOverflows());
+        assertEquals(Long.valueOf(2), redis.counts.get("b"));
+    }
+
+}
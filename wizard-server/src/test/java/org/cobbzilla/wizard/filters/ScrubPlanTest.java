@@ -0,0 +1,93 @@
+package org.cobbzilla.wizard.filters;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ScrubPlanTest {
+
+    public static class Child implements Scrubbable {
+        public static final ScrubbableField[] SCRUB = { new ScrubbableField(Child.class, "token", String.class) };
+        @Getter @Setter private String token;
+        @Getter @Setter private String label;
+        @Override public ScrubbableField[] fieldsToScrub() { return SCRUB; }
+    }
+
+    public static class Account implements Scrubbable {
+        public static final ScrubbableField[] SCRUB = {
+                new ScrubbableField(Account.class, "password", String.class),
+                new ScrubbableField(Account.class, "apiKey", String.class),
+                new ScrubbableField(Account.class, "children.*", List.class),
+                // does not apply to Account
+                new ScrubbableField(Child.class, "label", String.class)
+        };
+        @Getter @Setter private String name;
+        @Getter @Setter private String password;
+        @Getter private String apiKey;
+        @Getter @Setter private List<Child> children;
+        @Override public ScrubbableField[] fieldsToScrub() { return SCRUB; }
+
+        // a fluent setter: its return value must be discarded
+        public Account setApiKey(String apiKey) { this.apiKey = apiKey; return this; }
+    }
+
+    @Accessors(chain=true)
+    public static class Custom implements CustomScrubbage {
+        public static final ScrubbableField[] SCRUB = { new ScrubbableField(Custom.class, "secret", String.class) };
+        @Getter @Setter private String secret;
+        @Override public ScrubbableField[] fieldsToScrub() { return SCRUB; }
+        @Override public void scrub(Object entity, ScrubbableField field) { ((Custom) entity).setSecret("***"); }
+    }
+
+    private static Child child(String token, String label) {
+        final Child c = new Child();
+        c.setToken(token);
+        c.setLabel(label);
+        return c;
+    }
+
+    @Test public void testScrub () {
+        final Account account = new Account().setApiKey("key");
+        account.setName("n");
+        account.setPassword("pw");
+        account.setChildren(Arrays.asList(child("t1", "l1"), child("t2", "l2")));
+
+        ScrubPlan.get(Account.class, Account.SCRUB).apply(account);
+
+        assertEquals("n", account.getName());
+        assertNull(account.getPassword());
+        assertNull(account.getApiKey());
+        for (Child c : account.getChildren()) {
+            assertNull(c.getToken());
+            assertNotNull(c.getLabel());
+        }
+    }
+
+    @Test public void testNullValuesAreSkipped () {
+        final Account account = new Account();
+        ScrubPlan.get(Account.class, Account.SCRUB).apply(account);
+        assertNull(account.getPassword());
+        assertNull(account.getChildren());
+    }
+
+    @Test public void testCustomScrubbage () {
+        final Custom custom = new Custom().setSecret("s");
+        ScrubPlan.get(Custom.class, Custom.SCRUB).apply(custom);
+        assertEquals("***", custom.getSecret());
+    }
+
+    @Test public void testPlansAreCached () {
+        final ScrubPlan plan = ScrubPlan.get(Account.class, Account.SCRUB);
+        assertSame(plan, ScrubPlan.get(Account.class, Account.SCRUB));
+        assertTrue(plan.isFor(Account.class, Account.SCRUB));
+        assertFalse(plan.isFor(Child.class, Account.SCRUB));
+        assertFalse(plan.isFor(Account.class, Child.SCRUB));
+    }
+
+}